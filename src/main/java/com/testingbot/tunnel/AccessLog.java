@@ -0,0 +1,348 @@
+package com.testingbot.tunnel;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access log of the proxied requests.
+ *
+ * Request threads claim a pre-allocated slot in a bounded ring buffer and only
+ * copy references into it, they never take a lock or wait for I/O. A single
+ * background thread formats the entries and writes them in batches to stdout or
+ * a rolling file. When the buffer is full the entry is dropped and counted.
+ */
+public final class AccessLog {
+    static final int DEFAULT_CAPACITY = 8192;
+    static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+    static final int MAX_FILES = 5;
+    private static final long IDLE_PARK_NANOS = 20_000_000L;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static volatile AccessLog instance;
+
+    private final int mask;
+    private final Entry[] entries;
+    // slot i is free for position p when sequences[i] == p, and holds the entry of position p when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private long head;
+    private long reportedDrops;
+    private volatile OutputStream out;
+    private volatile boolean running;
+
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+    private byte[] bytes = new byte[16 * 1024];
+    private long lastSecond = -1;
+    private String secondPrefix;
+
+    AccessLog(int capacity, OutputStream out) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.entries = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.out = out;
+    }
+
+    public static AccessLog getInstance() {
+        AccessLog log = instance;
+        if (log == null) {
+            synchronized (AccessLog.class) {
+                log = instance;
+                if (log == null) {
+                    log = new AccessLog(DEFAULT_CAPACITY, System.out);
+                    log.start();
+                    instance = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Writes the access log to a file which is rolled over at {@value #MAX_FILE_SIZE} bytes,
+     * keeping {@value #MAX_FILES} old files.
+     */
+    public static void toFile(String file) throws IOException {
+        getInstance().setOutput(new RollingFile(Paths.get(file), MAX_FILE_SIZE, MAX_FILES));
+    }
+
+    /**
+     * @return the number of entries dropped because the buffer was full
+     */
+    public static long getDroppedEntries() {
+        AccessLog log = instance;
+        return log == null ? 0 : log.getDropped();
+    }
+
+    /**
+     * Writes out whatever is still buffered, used at shutdown.
+     */
+    public static void flush() {
+        AccessLog log = instance;
+        if (log != null) {
+            log.drain();
+        }
+    }
+
+    void setOutput(OutputStream output) {
+        OutputStream previous;
+        synchronized (this) {
+            drain();
+            previous = out;
+            out = output;
+        }
+        if (previous != System.out && previous != System.err) {
+            try {
+                previous.close();
+            } catch (IOException ex) {
+                Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Could not close access log", ex);
+            }
+        }
+    }
+
+    void start() {
+        running = true;
+        Thread writer = new Thread(() -> {
+            while (running) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an entry, called from the request threads. The target is logged as
+     * scheme://host:port/path, leaving out the port when it is the default for the scheme.
+     *
+     * @param status the status sent to the client
+     * @param elapsedNanos time spent handling the request
+     * @return false when the buffer was full and the entry was dropped
+     */
+    public boolean log(Statistics.Route route, String method, String scheme, String host, int port, String path, int status, long elapsedNanos) {
+        long position = tail.get();
+        while (true) {
+            long available = sequences.get((int) position & mask) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        int slot = (int) position & mask;
+        Entry entry = entries[slot];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.route = route;
+        entry.method = method;
+        entry.scheme = scheme;
+        entry.host = host;
+        entry.port = port;
+        entry.path = path;
+        entry.status = status;
+        entry.elapsedNanos = elapsedNanos;
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Formats and writes all queued entries as one batch.
+     *
+     * @return the number of entries written
+     */
+    synchronized int drain() {
+        text.setLength(0);
+        int count = 0;
+        while (count <= mask) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            Entry entry = entries[slot];
+            format(entry);
+            entry.clear();
+            sequences.set(slot, head + mask + 1);
+            head++;
+            count++;
+        }
+
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            appendTimestamp(System.currentTimeMillis());
+            text.append("Access log buffer full, dropped ").append(drops - reportedDrops).append(" entries\n");
+            reportedDrops = drops;
+        }
+
+        if (text.length() > 0) {
+            write();
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        appendTimestamp(entry.timeMillis);
+        text.append('[').append(entry.method).append("] ").append(entry.scheme).append("://").append(entry.host);
+        if (entry.port > 0 && !isDefaultPort(entry.scheme, entry.port)) {
+            text.append(':').append(entry.port);
+        }
+        if (entry.path != null) {
+            text.append(entry.path);
+        }
+        text.append(" (").append(entry.status).append(") - ").append(entry.elapsedNanos / 1_000_000).append(" ms");
+        if (entry.route != Statistics.Route.HTTP) {
+            text.append(' ').append(entry.route.getLabel());
+        }
+        text.append('\n');
+    }
+
+    private void appendTimestamp(long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != lastSecond) {
+            lastSecond = second;
+            secondPrefix = TIMESTAMP.format(Instant.ofEpochSecond(second));
+        }
+        int millis = (int) (timeMillis % 1000);
+        text.append(secondPrefix).append('.');
+        if (millis < 100) {
+            text.append('0');
+        }
+        if (millis < 10) {
+            text.append('0');
+        }
+        text.append(millis).append(' ');
+    }
+
+    private static boolean isDefaultPort(String scheme, int port) {
+        return ("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443);
+    }
+
+    private void write() {
+        int length = text.length();
+        if (bytes.length < length) {
+            bytes = new byte[Integer.highestOneBit(length) << 1];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            bytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        try {
+            OutputStream output = out;
+            output.write(bytes, 0, length);
+            output.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Could not write access log", ex);
+        }
+    }
+
+    private static final class Entry {
+        long timeMillis;
+        Statistics.Route route;
+        String method;
+        String scheme;
+        String host;
+        int port;
+        String path;
+        int status;
+        long elapsedNanos;
+
+        void clear() {
+            method = null;
+            scheme = null;
+            host = null;
+            path = null;
+        }
+    }
+
+    /**
+     * File output which moves {@code file} to {@code file.1} (and so on) once it grows past the maximum size.
+     */
+    static final class RollingFile extends OutputStream {
+        private final Path file;
+        private final long maxSize;
+        private final int maxFiles;
+        private OutputStream out;
+        private long size;
+
+        RollingFile(Path file, long maxSize, int maxFiles) throws IOException {
+            this.file = file;
+            this.maxSize = maxSize;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        private void open() throws IOException {
+            size = Files.exists(file) ? Files.size(file) : 0;
+            out = new FileOutputStream(file.toFile(), true);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (size > 0 && size + len > maxSize) {
+                roll();
+            }
+            out.write(b, off, len);
+            size += len;
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            Files.deleteIfExists(rolled(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rolled(i))) {
+                    Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+
+        Path rolled(int index) {
+            return file.resolveSibling(file.getFileName() + "." + index);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
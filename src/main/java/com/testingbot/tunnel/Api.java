@@ -1,6 +1,8 @@
 package com.testingbot.tunnel;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
@@ -13,39 +15,51 @@ import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
 import org.apache.hc.client5.http.classic.methods.HttpDelete;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
 import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
 import org.apache.hc.core5.http.NameValuePair;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
+import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
 
 /**
+ * Client of the TestingBot tunnel API.
+ *
+ * All calls share one pooled HTTP client, so polling the tunnel state reuses a
+ * kept-alive TLS connection instead of a handshake per call. Responses are read
+ * as a stream into a {@link TunnelInfo}. Polls are conditional: a tunnel which
+ * did not change since the previous poll costs a bodiless 304.
  *
  * @author TestingBot
  */
-public class Api {
+public class Api implements Closeable {
+
+    private static final TimeValue IDLE_CONNECTION_TIMEOUT = TimeValue.ofSeconds(30);
 
-    private final String clientKey;
-    private final String clientSecret;
+    private final String authorization;
     private String apiHost = "api.testingbot.com";
     private String apiScheme = "https";
     private final App app;
     private int tunnelID;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonFactory jsonFactory = new JsonFactory();
     private Supplier<HttpClientBuilder> httpClientBuilderSupplier = HttpClientBuilder::create;
+    private CloseableHttpClient httpClient;
 
     public Api(App app) {
         this.app = app;
-        this.clientKey = app.getClientKey();
-        this.clientSecret = app.getClientSecret();
+        String auth = app.getClientKey() + ":" + app.getClientSecret();
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -69,7 +83,7 @@ public class Api {
         this.httpClientBuilderSupplier = supplier;
     }
 
-    public JsonNode createTunnel() throws Exception {
+    public TunnelInfo createTunnel() throws Exception {
         try {
             List<NameValuePair> nameValuePairs = new ArrayList<>(2);
             nameValuePairs.add(new BasicNameValuePair("tunnel_version", App.VERSION.toString()));
@@ -83,7 +97,10 @@ public class Api {
                 nameValuePairs.add(new BasicNameValuePair("no_bump", String.valueOf(app.isNoBump())));
             }
             nameValuePairs.add(new BasicNameValuePair("shared", String.valueOf(app.isShared())));
-            return this._post(apiScheme + "://" + apiHost + "/v1/tunnel/create", nameValuePairs);
+            HttpPost postRequest = new HttpPost(apiScheme + "://" + apiHost + "/v1/tunnel/create");
+            postRequest.setEntity(new UrlEncodedFormEntity(nameValuePairs));
+            // errors such as bad credentials come back as {"error": ...}
+            return execute(postRequest, false, null);
         }
         catch (Exception e) {
             throw new Exception("Could not start tunnel: " + e.getMessage());
@@ -94,9 +111,30 @@ public class Api {
         this.tunnelID = tunnelID;
     }
 
-    public JsonNode pollTunnel(String tunnelID) throws Exception {
+    public TunnelInfo pollTunnel(String tunnelID) throws Exception {
+        return pollTunnel(tunnelID, null, 0);
+    }
+
+    /**
+     * Polls the tunnel, conditionally on the previous answer.
+     *
+     * @param previous the previous answer, returned as is when the tunnel did not change
+     * @param waitSeconds how long the API may hold the request until the tunnel
+     * changes, 0 to answer at once. The API answers at once if it does not long-poll.
+     */
+    public TunnelInfo pollTunnel(String tunnelID, TunnelInfo previous, int waitSeconds) throws Exception {
         try {
-            return this._get(apiScheme + "://" + apiHost + "/v1/tunnel/" + tunnelID);
+            HttpGet getRequest = new HttpGet(apiScheme + "://" + apiHost + "/v1/tunnel/" + tunnelID);
+            if (previous != null && previous.getEtag() != null) {
+                getRequest.setHeader(HttpHeaders.IF_NONE_MATCH, previous.getEtag());
+            }
+            if (waitSeconds > 0) {
+                getRequest.setHeader("Prefer", "wait=" + waitSeconds);
+                getRequest.setConfig(RequestConfig.custom()
+                    .setResponseTimeout(Timeout.ofSeconds(waitSeconds + 10))
+                    .build());
+            }
+            return execute(getRequest, true, previous);
         }
         catch (Exception e) {
             throw new Exception("Could not get tunnel info: " + e.getMessage());
@@ -104,98 +142,60 @@ public class Api {
     }
 
     public void destroyTunnel() throws Exception {
-        RequestConfig requestConfig = RequestConfig.custom()
+        HttpDelete deleteRequest = new HttpDelete(apiScheme + "://" + apiHost + "/v1/tunnel/" + this.tunnelID);
+        // runs on shutdown, do not hold it up
+        deleteRequest.setConfig(RequestConfig.custom()
             .setConnectTimeout(Timeout.of(1, TimeUnit.SECONDS))
             .setConnectionRequestTimeout(Timeout.of(1, TimeUnit.SECONDS))
-            .build();
-
-        HttpClientBuilder builder = httpClientBuilderSupplier.get();
-        builder.setDefaultRequestConfig(requestConfig);
-
-        if (app.getProxy() != null) {
-            String[] splitted = app.getProxy().split(":");
-            int port = splitted.length > 1 ? Integer.parseInt(splitted[1]) : 80;
-            if (app.getProxyAuth() != null) {
-                String[] credentials = app.getProxyAuth().split(":");
-                BasicCredentialsProvider credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(
-                    new AuthScope(splitted[0], port),
-                    new UsernamePasswordCredentials(credentials[0], credentials[1].toCharArray())
-                );
-                builder.setDefaultCredentialsProvider(credsProvider);
-            }
-
-            HttpHost proxy = new HttpHost("http", splitted[0], port);
-            builder.setProxy(proxy);
-        }
-
-        try (CloseableHttpClient httpClient = builder.build()) {
-            String auth = this.clientKey + ":" + this.clientSecret;
-            String encoding = Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
-
-            HttpDelete deleteRequest = new HttpDelete(apiScheme + "://" + apiHost + "/v1/tunnel/" + this.tunnelID);
-            deleteRequest.addHeader("accept", "application/json");
-            deleteRequest.setHeader("Authorization", "Basic " + encoding);
+            .build());
+        authorize(deleteRequest);
+        client().execute(deleteRequest, response -> null);
+    }
 
-            httpClient.execute(deleteRequest, response -> null);
+    /**
+     * Closes the pooled connections.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
         }
     }
 
-    private JsonNode _post(String url, List<NameValuePair> postData) throws Exception {
-        try {
-            HttpClientBuilder builder = httpClientBuilderSupplier.get();
-
-            if (app.getProxy() != null) {
-                String[] splitted = app.getProxy().split(":");
-                int port = splitted.length > 1 ? Integer.parseInt(splitted[1]) : 80;
-                if (app.getProxyAuth() != null) {
-                    String[] credentials = app.getProxyAuth().split(":");
-                    BasicCredentialsProvider credsProvider = new BasicCredentialsProvider();
-                    credsProvider.setCredentials(
-                        new AuthScope(splitted[0], port),
-                        new UsernamePasswordCredentials(credentials[0], credentials[1].toCharArray())
-                    );
-                    builder.setDefaultCredentialsProvider(credsProvider);
-                }
-
-                HttpHost proxy = new HttpHost("http", splitted[0], port);
-                builder.setProxy(proxy);
+    private TunnelInfo execute(HttpUriRequestBase request, boolean requireOk, TunnelInfo previous) throws IOException {
+        authorize(request);
+        return client().execute(request, response -> {
+            if (previous != null && response.getCode() == HttpStatus.SC_NOT_MODIFIED) {
+                return previous;
             }
-
-            String responseBody;
-            try (CloseableHttpClient httpClient = builder.build()) {
-                String auth = this.clientKey + ":" + this.clientSecret;
-                String encoding = Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
-                HttpPost postRequest = new HttpPost(url);
-                postRequest.addHeader("accept", "application/json");
-                postRequest.setHeader("Authorization", "Basic " + encoding);
-                postRequest.setEntity(new UrlEncodedFormEntity(postData));
-
-                responseBody = httpClient.execute(postRequest, response ->
-                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)
-                );
+            if (requireOk && response.getCode() != 200) {
+                throw new IOException("Failed : HTTP error code : " + response.getCode());
             }
-
-            try {
-                String jsonData = responseBody.replaceAll("\\\\", "");
-                if (!jsonData.startsWith("{")) {
-                    jsonData = jsonData.substring(1, (jsonData.length() - 1));
-                }
-
-                return objectMapper.readTree(jsonData);
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Empty response, HTTP status " + response.getCode());
             }
-            catch (Exception e) {
-                throw new Exception("Json parse error: " + e.getMessage() + " for " + responseBody);
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            try (InputStream in = entity.getContent()) {
+                TunnelInfo tunnel = TunnelInfo.parse(jsonFactory, in);
+                return etag == null ? tunnel : tunnel.withEtag(etag.getValue());
             }
+        });
+    }
 
-        } catch (IOException e) {
-            throw new Exception(e.getMessage());
-        }
+    private void authorize(HttpUriRequestBase request) {
+        request.setHeader("accept", "application/json");
+        request.setHeader("Authorization", authorization);
     }
 
-    private JsonNode _get(String url) throws Exception {
-        try {
+    private synchronized CloseableHttpClient client() {
+        if (httpClient == null) {
             HttpClientBuilder builder = httpClientBuilderSupplier.get();
+            // the API closes idle connections on its side, do not pick up one it dropped
+            builder.evictIdleConnections(IDLE_CONNECTION_TIMEOUT);
+            builder.evictExpiredConnections();
+
             if (app.getProxy() != null) {
                 String[] splitted = app.getProxy().split(":");
                 int port = splitted.length > 1 ? Integer.parseInt(splitted[1]) : 80;
@@ -212,37 +212,8 @@ public class Api {
                 HttpHost proxy = new HttpHost("http", splitted[0], port);
                 builder.setProxy(proxy);
             }
-
-            String responseBody;
-            try (CloseableHttpClient httpClient = builder.build()) {
-                String auth = this.clientKey + ":" + this.clientSecret;
-                String encoding = Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
-                HttpGet getRequest = new HttpGet(url);
-                getRequest.addHeader("accept", "application/json");
-                getRequest.setHeader("Authorization", "Basic " + encoding);
-
-                responseBody = httpClient.execute(getRequest, response -> {
-                    if (response.getCode() != 200) {
-                        throw new RuntimeException("Failed : HTTP error code : " + response.getCode());
-                    }
-                    return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
-                });
-            }
-
-            try {
-                String jsonData = responseBody.replaceAll("\\\\", "");
-                if (!jsonData.startsWith("{")) {
-                    jsonData = jsonData.substring(1, (jsonData.length() - 1));
-                }
-
-                return objectMapper.readTree(jsonData);
-            }
-            catch (Exception e) {
-                throw new Exception("Json parse error: " + e.getMessage() + " for " + responseBody);
-            }
-
-        } catch (IOException e) {
-            throw new Exception(e.getMessage());
+            httpClient = builder.build();
         }
+        return httpClient;
     }
 }
@@ -13,9 +13,17 @@ import java.nio.file.Path;
 import java.util.Properties;
 import java.net.Authenticator;
 import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
@@ -27,17 +35,19 @@ import org.apache.commons.cli.*;
 import ch.qos.logback.classic.LoggerContext;
 import org.slf4j.LoggerFactory;
 import ssh.SSHTunnel;
+import ssh.SshProfile;
+import ssh.TunnelFailover;
 import ssh.TunnelPoller;
 
 public class App {
     public static final Float VERSION = getVersionFromProperties();
-    private Api api;
+    private volatile Api api;
     private String clientKey;
     private String clientSecret;
     private String readyFile;
     private int seleniumPort = 4445;
     private String[] fastFail;
-    private SSHTunnel tunnel;
+    private volatile SSHTunnel tunnel;
     private String tunnelIdentifier;
     private String serverIP;
     private final Map<String, String> customHeaders = new HashMap<>();
@@ -48,9 +58,24 @@ public class App {
     private boolean bypassSquid = false;
     private boolean noBump = false;
     private boolean debugMode = false;
+    private boolean directRelay = false;
+    private boolean failover = false;
+    private boolean startupTrace = false;
+    private String localWebDirectory;
+    private TunnelFailover tunnelFailover;
     private HttpProxy httpProxy;
     private String proxy;
     private String proxyAuth;
+    private int proxyPoolSize = 4;
+    private int selectors = 0;
+    private int sshSessions = 1;
+    private SshProfile sshProfile = SshProfile.DEFAULT;
+    private long maxRequestSize = DEFAULT_MAX_BODY_SIZE;
+    private long maxResponseSize = DEFAULT_MAX_BODY_SIZE;
+    private int reconnectMaxDelay = 30;
+    private int controlPort = 8004;
+    private int reuseIdleTimeout = 600;
+    private ControlServer controlServer;
     private String[] basicAuth;
     private String pac = null;
     private int metricsPort = 8003;
@@ -76,6 +101,9 @@ public class App {
     }
 
     private static final int MINIMUM_JAVA_VERSION = 11;
+    private static final long MEGABYTE = 1024L * 1024;
+    private static final long SELF_TEST_BUDGET = 5;
+    static final long DEFAULT_MAX_BODY_SIZE = 100 * MEGABYTE;
 
     static boolean checkJavaVersion() {
         int major = getMajorJavaVersion();
@@ -130,6 +158,9 @@ public class App {
         Option pacOption = Option.builder().longOpt("pac").hasArg().desc("Proxy autoconfiguration. Should be a http(s) URL").build();
         options.addOption(pacOption);
 
+        Option proxyPoolSize = Option.builder().longOpt("proxy-pool-size").hasArg().argName("SIZE").desc("Number of idle connections to keep open to the proxy configured with --proxy. Default 4, 0 disables the pool.").build();
+        options.addOption(proxyPoolSize);
+
         Option proxyAuth = new Option("z", "proxy-userpwd", true, "Username and password required to access the proxy configured with --proxy.");
         proxyAuth.setArgName("user:pwd");
         options.addOption(proxyAuth);
@@ -138,6 +169,40 @@ public class App {
         logfile.setArgName("FILE");
         options.addOption(logfile);
 
+        Option selectors = Option.builder().longOpt("selectors").hasArg().argName("COUNT").desc("Number of selector threads for proxied connections. Defaults to half of the available cores.").build();
+        options.addOption(selectors);
+
+        Option sshSessions = Option.builder().longOpt("ssh-sessions").hasArg().argName("COUNT").desc("Number of SSH sessions to the tunnel server to spread the connections to the hub over. Default 1.").build();
+        options.addOption(sshSessions);
+
+        Option sshProfile = Option.builder().longOpt("ssh-profile").hasArg().argName("PROFILE").desc("SSH algorithms to use: default, throughput (AES-GCM, large TCP buffers), low-latency (AES-128-GCM, system TCP buffers) or low-bandwidth (zlib compression).").build();
+        options.addOption(sshProfile);
+
+        Option maxRequestSize = Option.builder().longOpt("max-request-size").hasArg().argName("MB").desc("Largest request body the Selenium forwarder accepts, in megabytes. Default 100, 0 disables the limit.").build();
+        options.addOption(maxRequestSize);
+
+        Option maxResponseSize = Option.builder().longOpt("max-response-size").hasArg().argName("MB").desc("Largest response body the Selenium forwarder relays, in megabytes. Default 100, 0 disables the limit.").build();
+        options.addOption(maxResponseSize);
+
+        Option reconnectMaxDelay = Option.builder().longOpt("reconnect-max-delay").hasArg().argName("SECONDS").desc("Longest wait between attempts to re-establish a lost SSH connection. Default 30.").build();
+        options.addOption(reconnectMaxDelay);
+
+        options.addOption(null, "startup-trace", false, "Print the start and duration of every startup phase, and the critical path, once the tunnel is ready.");
+        options.addOption(null, "direct-relay", false, "Relay CONNECT and WebSocket tunnels through pooled direct buffers with gathering writes.");
+        options.addOption(null, "reuse", false, "Attach to the tunnel a previous job on this machine left running in the background, or start one. Jobs attach in milliseconds instead of starting a tunnel each.");
+
+        Option reuseIdle = Option.builder().longOpt("reuse-idle").hasArg().argName("SECONDS").desc("Stop the background tunnel of --reuse once no job was attached for this long. Default 600.").build();
+        options.addOption(reuseIdle);
+
+        Option controlPort = Option.builder().longOpt("control-port").hasArg().argName("PORT").desc("Local port of the background tunnel of --reuse. Default 8004.").build();
+        options.addOption(controlPort);
+
+        options.addOption(null, "daemon", false, "Run as the background tunnel of --reuse, started by --reuse itself.");
+        options.addOption(null, "failover", false, "When the SSH connection is lost, start a standby tunnel alongside the reconnect attempts and switch to it if it is ready first.");
+
+        Option accessLog = Option.builder().longOpt("access-log").hasArg().argName("FILE").desc("Write the access log of proxied requests to a rolling file instead of stdout.").build();
+        options.addOption(accessLog);
+
         Option identifier = new Option("i", "tunnel-identifier", true, "Add an identifier to this tunnel connection.\n In case of multiple tunnels, specify this identifier in your desired capabilities to use this specific tunnel connection.");
         identifier.setArgName("id");
         options.addOption(identifier);
@@ -215,6 +280,14 @@ public class App {
                 }
             }
 
+            if (commandLine.hasOption("access-log")) {
+                try {
+                    AccessLog.toFile(commandLine.getOptionValue("access-log"));
+                } catch (IOException e) {
+                    System.err.println("Cannot write access log to " + commandLine.getOptionValue("access-log") + ".\nMake sure the directory exists and that we have the proper rights to write to this directory.");
+                }
+            }
+
             String clientKey = null;
             String clientSecret = null;
 
@@ -222,13 +295,15 @@ public class App {
                 app.seleniumPort = Integer.parseInt(commandLine.getOptionValue("se-port"));
             }
 
+            // without --localproxy a free port is picked while the tunnel VM boots
             if (commandLine.hasOption("localproxy")) {
                 app.setJettyPort(Integer.parseInt(commandLine.getOptionValue("localproxy")));
-            } else {
-                app.setFreeJettyPort();
             }
 
             if (commandLine.hasOption("doctor")) {
+                if (app.getJettyPort() == 0) {
+                    app.setFreeJettyPort();
+                }
                 app.doctor();
                 return;
             }
@@ -273,6 +348,42 @@ public class App {
                 app.setProxy(line);
             }
 
+            if (commandLine.hasOption("selectors")) {
+                app.setSelectors(Integer.parseInt(commandLine.getOptionValue("selectors")));
+            }
+
+            if (commandLine.hasOption("ssh-sessions")) {
+                app.setSshSessions(Integer.parseInt(commandLine.getOptionValue("ssh-sessions")));
+            }
+
+            if (commandLine.hasOption("ssh-profile")) {
+                app.setSshProfile(SshProfile.fromLabel(commandLine.getOptionValue("ssh-profile").trim()));
+            }
+
+            if (commandLine.hasOption("max-request-size")) {
+                app.setMaxRequestSize(Long.parseLong(commandLine.getOptionValue("max-request-size")) * MEGABYTE);
+            }
+
+            if (commandLine.hasOption("max-response-size")) {
+                app.setMaxResponseSize(Long.parseLong(commandLine.getOptionValue("max-response-size")) * MEGABYTE);
+            }
+
+            if (commandLine.hasOption("reconnect-max-delay")) {
+                app.setReconnectMaxDelay(Integer.parseInt(commandLine.getOptionValue("reconnect-max-delay")));
+            }
+
+            if (commandLine.hasOption("reuse-idle")) {
+                app.setReuseIdleTimeout(Integer.parseInt(commandLine.getOptionValue("reuse-idle")));
+            }
+
+            if (commandLine.hasOption("control-port")) {
+                app.setControlPort(Integer.parseInt(commandLine.getOptionValue("control-port")));
+            }
+
+            if (commandLine.hasOption("proxy-pool-size")) {
+                app.setProxyPoolSize(Integer.parseInt(commandLine.getOptionValue("proxy-pool-size")));
+            }
+
             if (commandLine.hasOption("extra-headers")) {
                 String extraHeadersValue = commandLine.getOptionValue("extra-headers");
                 ObjectMapper mapper = new ObjectMapper();
@@ -326,6 +437,18 @@ public class App {
                 app.bypassSquid = true;
             }
 
+            if (commandLine.hasOption("direct-relay")) {
+                app.directRelay = true;
+            }
+
+            if (commandLine.hasOption("failover")) {
+                app.failover = true;
+            }
+
+            if (commandLine.hasOption("startup-trace")) {
+                app.startupTrace = true;
+            }
+
             if (commandLine.hasOption("nobump")) {
                 Logger.getLogger(App.class.getName()).log(Level.INFO, "Disable SSL bumping. SSL certificates will not be rewritten.");
                 app.noBump = true;
@@ -349,7 +472,16 @@ public class App {
             }
 
             if (commandLine.hasOption("web")) {
-                new LocalWebServer(commandLine.getOptionValue("web"));
+                app.localWebDirectory = commandLine.getOptionValue("web");
+            }
+
+            List<List<String>> tunnelArguments = ControlClient.tunnelArguments(commandLine);
+            if (commandLine.hasOption("reuse")) {
+                app.attach(tunnelArguments);
+                return;
+            }
+            if (commandLine.hasOption("daemon")) {
+                app.startControlServer(ControlClient.fingerprint(app.clientKey, tunnelArguments));
             }
 
             app.init();
@@ -362,6 +494,8 @@ public class App {
     private PidPoller pidPoller;
     private TunnelPoller poller;
     private HttpForwarder httpForwarder;
+    private StartupTimings startupTimings = new StartupTimings();
+    private long pollBegin;
 
     private String[] getUserData() {
         if (System.getenv("TESTINGBOT_KEY") != null && System.getenv("TESTINGBOT_SECRET") != null) {
@@ -386,12 +520,9 @@ public class App {
         Thread cleanupThread = new Thread() {
             @Override
             public void run() {
-                if (readyFile != null) {
-                    File f = new File(readyFile);
-                    if (f.exists() && !f.delete()) {
-                        Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not delete ready file: " + readyFile);
-                    }
-                }
+                deleteReadyFile();
+
+                AccessLog.flush();
 
                 if (tunnel != null) {
                     tunnel.stop();
@@ -408,46 +539,147 @@ public class App {
         Runtime.getRuntime().addShutdownHook(cleanupThread);
     }
 
+    /**
+     * Attaches this job to the tunnel running in the background (--reuse), starts
+     * that tunnel when there is none, and stays attached until this job ends.
+     */
+    void attach(List<List<String>> tunnelArguments) throws InterruptedException {
+        long begin = System.nanoTime();
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+        for (List<String> argument : tunnelArguments) {
+            command.addAll(argument);
+        }
+        command.add("--daemon");
+        File log = new File(System.getProperty("java.io.tmpdir"), "testingbot-tunnel-" + controlPort + ".log");
+
+        ControlClient.Attachment attachment;
+        try {
+            attachment = ControlClient.attach(controlPort, ControlClient.fingerprint(clientKey, tunnelArguments), command, log);
+        } catch (IOException ex) {
+            System.err.println("Could not attach to the background tunnel: " + ex.getMessage() + "\nIts log is " + log);
+            System.exit(1);
+            return;
+        }
+        Logger.getLogger(App.class.getName()).log(Level.INFO, "Attached to the background tunnel in {0}ms, its log is {1}.\nSelenium port {2}, local proxy port {3}. You may start your tests.",
+            new Object[] { (System.nanoTime() - begin) / 1000000, log, Integer.toString(attachment.getSeleniumPort()), Integer.toString(attachment.getProxyPort()) });
+        writeReadyFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            deleteReadyFile();
+            try {
+                attachment.close();
+            } catch (IOException ex) {
+                // detached anyway when this process is gone
+            }
+        }));
+
+        attachment.awaitTunnelStopped();
+        Logger.getLogger(App.class.getName()).log(Level.SEVERE, "The background tunnel stopped, see {0}", log);
+        System.exit(1);
+    }
+
+    /**
+     * Opens the control port of the background tunnel (--daemon).
+     */
+    void startControlServer(String fingerprint) {
+        try {
+            controlServer = new ControlServer(this, controlPort, fingerprint, reuseIdleTimeout * 1000L, () -> System.exit(0));
+        } catch (IOException ex) {
+            // another background tunnel took the port first, the jobs attach to that one
+            System.err.println("Could not open control port " + controlPort + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
     public void boot() throws Exception {
         api = new Api(this);
-        JsonNode tunnelData = null;
+        if (failover) {
+            tunnelFailover = new TunnelFailover(this);
+        }
+        startupTimings = new StartupTimings();
+        OpenMetrics.registerStartupTimings(startupTimings);
+        TunnelInfo tunnelData = null;
+
+        // the tunnel VM takes longest to come up, ask for it before anything else
+        long apiBegin = startupTimings.begin();
+        CompletableFuture<TunnelInfo> creating = CompletableFuture.supplyAsync(() -> {
+            try {
+                TunnelInfo created = api.createTunnel();
+                startupTimings.end(StartupTimings.Phase.API_CREATE, apiBegin);
+                return created;
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        });
+
+        // the local work does not depend on the tunnel VM, do it while it boots
+        prepareLocally();
+        // only starts them, testing them needs the tunnel
+        startProxies();
 
         try {
-            tunnelData = api.createTunnel();
-        } catch (Exception e) {
+            tunnelData = creating.join();
+        } catch (CompletionException e) {
             System.err.println("Creating a new tunnel failed, please make sure you're supplying correct credentials and that you can connect to the TestingBot network.\nUse --doctor to verify if everything is set up correctly.");
-            System.err.println(e.getMessage());
+            System.err.println(e.getCause().getMessage());
             System.exit(1);
         }
 
-        if (tunnelData.has("error")) {
-            System.err.println("An error ocurred: " + tunnelData.get("error").asText());
-            if (tunnelData.get("error").asText().contains("401")) {
+        if (tunnelData.hasError()) {
+            System.err.println("An error ocurred: " + tunnelData.getError());
+            if (tunnelData.getError().contains("401")) {
             	System.err.println("Missing required arguments API_KEY API_SECRET\nYou can get these two values from https://testingbot.com/members/user/edit");
             }
             System.exit(1);
         }
 
-        trackPid();
-
-        startInsightServer();
-
-        if (tunnelData.has("id")) {
-            this.tunnelID = Integer.parseInt(tunnelData.get("id").asText());
+        if (tunnelData.getId() != null) {
+            this.tunnelID = Integer.parseInt(tunnelData.getId());
             api.setTunnelID(tunnelID);
         }
 
-        if (Float.parseFloat(tunnelData.get("version").asText()) > App.VERSION) {
-            System.err.println("A new version (" + tunnelData.get("version").asText() + ") is available for download at https://testingbot.com\nYou have version " + App.VERSION);
+        if (tunnelData.getVersion() != null && Float.parseFloat(tunnelData.getVersion()) > App.VERSION) {
+            System.err.println("A new version (" + tunnelData.getVersion() + ") is available for download at https://testingbot.com\nYou have version " + App.VERSION);
         }
 
         Logger.getLogger(App.class.getName()).log(Level.INFO, "Please wait while your personal Tunnel Server is being setup. Shouldn't take more than a minute.\nWhen the tunnel is ready you will see a message \"You may start your tests.\"");
 
-        if (tunnelData.get("state").asText().equals("READY")) {
+        pollBegin = startupTimings.begin();
+        if (tunnelData.isReady()) {
             this.tunnelReady(tunnelData);
         } else {
-            poller = new TunnelPoller(this, tunnelData.get("id").asText());
+            poller = new TunnelPoller(this, tunnelData.getId());
+        }
+    }
+
+    /**
+     * Gets everything ready which stays on this machine: ports, the metrics and
+     * local web servers, and the ready file.
+     */
+    private void prepareLocally() {
+        long begin = startupTimings.begin();
+        if (jettyPort == 0) {
+            setFreeJettyPort();
+        }
+        getSSHPort();
+        // a ready file left behind by a previous run would let the tests start now
+        deleteReadyFile();
+        if (readyFile != null) {
+            File directory = new File(readyFile).getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.canWrite()) {
+                Logger.getLogger(App.class.getName()).log(Level.WARNING, "Can not write the ready file to {0}, make sure the directory exists and we have permission to write to it.", directory);
+            }
         }
+        if (localWebDirectory != null) {
+            new LocalWebServer(localWebDirectory);
+            localWebDirectory = null;
+        }
+        trackPid();
+        startInsightServer();
+        startupTimings.end(StartupTimings.Phase.LOCAL_PREPARE, begin);
     }
 
     public void startInsightServer() {
@@ -459,6 +691,10 @@ public class App {
     }
 
     public void stop() {
+        // waits until a standby tunnel and the tunnels still draining are destroyed
+        if (tunnelFailover != null) {
+            tunnelFailover.stop();
+        }
         if (tunnel != null) {
             tunnel.stop(true);
         }
@@ -474,44 +710,164 @@ public class App {
         try {
             System.out.println("Shutting down your personal Tunnel Server.");
             api.destroyTunnel();
+            api.close();
         } catch (Exception ex) {
             Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
-    public void tunnelReady(JsonNode apiResponse) {
+    public void tunnelReady(TunnelInfo apiResponse) {
+        if (pollBegin != 0) {
+            startupTimings.end(StartupTimings.Phase.POLL, pollBegin);
+        }
         // server is booted, make the connection
         try {
-            String _serverIP = apiResponse.get("ip").asText();
-            tunnel = new SSHTunnel(this, _serverIP);
+            String _serverIP = apiResponse.getIp();
+            // the proxies were started while the tunnel VM booted
+            if (httpForwarder == null) {
+                startProxies();
+            }
+            try {
+                tunnel = new SSHTunnel(this, _serverIP);
+                tunnel.registerMetrics();
+            } catch (Exception ex) {
+                stopProxies();
+                throw ex;
+            }
             if (tunnel.isAuthenticated()) {
-                this.serverIP = _serverIP;
+                setServerIP(_serverIP);
                 Logger.getLogger(App.class.getName()).log(Level.INFO, "Successfully authenticated, setting up forwarding.");
                 tunnel.createPortForwarding();
-                this.startProxies();
+                // both tests go through the tunnel server, they need the forwards
+                this.selfTest();
+                this.writeReadyFile();
+                startupTimings.ready();
+                Logger.getLogger(App.class.getName()).log(Level.INFO, "Startup timings: {0}", startupTimings);
+                if (startupTrace) {
+                    Logger.getLogger(App.class.getName()).log(Level.INFO, "Startup trace:\n{0}", startupTimings.trace());
+                }
                 Logger.getLogger(App.class.getName()).log(Level.INFO, "The Tunnel is ready, ip: {0}\nYou may start your tests.", _serverIP);
                 Logger.getLogger(App.class.getName()).log(Level.INFO, "To stop the tunnel, press CTRL+C");
+                if (controlServer != null) {
+                    controlServer.tunnelReady();
+                }
+            } else {
+                stopProxies();
+                tunnelFailed("could not authenticate with the tunnel server " + _serverIP);
             }
         } catch (Exception ex) {
             Logger.getLogger(App.class.getName()).log(Level.INFO, "Something went wrong while setting up the Tunnel.");
             Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
+            tunnelFailed(String.valueOf(ex.getMessage()));
         }
     }
 
+    /**
+     * The tunnel could not be set up, jobs waiting for it in the background (--reuse) are told so.
+     */
+    public void tunnelFailed(String reason) {
+        if (controlServer != null) {
+            controlServer.tunnelFailed(reason);
+        }
+    }
+
+    /**
+     * Starts the forwarder and the local proxy. Their self-tests go through the
+     * tunnel server, they run from {@link #tunnelReady(TunnelInfo)} once the port
+     * forwarding is set up.
+     */
     private void startProxies() {
+        long begin = startupTimings.begin();
         httpForwarder = new HttpForwarder(this);
 
-        if (!httpForwarder.testForwarding()) {
-            Logger.getLogger(App.class.getName()).log(Level.SEVERE, "! Forwarder testing failed, localhost port {0} does not seem to be able to reach our hub (hub.testingbot.com)", Integer.toString(getSeleniumPort()));
-        }
-
         if (!this.noProxy) {
             this.httpProxy = new HttpProxy(this);
-            if (this.getProxy() == null && !this.httpProxy.testProxy()) {
-                Logger.getLogger(App.class.getName()).log(Level.INFO, "! Tunnel might not work properly, test failed");
+        }
+        startupTimings.end(StartupTimings.Phase.PROXY_START, begin);
+    }
+
+    private void stopProxies() {
+        if (httpForwarder != null) {
+            httpForwarder.stop();
+            httpForwarder = null;
+        }
+        if (httpProxy != null) {
+            httpProxy.stop();
+            httpProxy = null;
+        }
+    }
+
+    /**
+     * Tests the forwarder and the proxy side by side, now that the port forwarding
+     * is set up.
+     */
+    private void selfTest() {
+        BooleanSupplier proxyTest = this.httpProxy != null && this.getProxy() == null ? httpProxy::testProxy : null;
+        if (!tunnel.isPortForwardingEstablished()) {
+            // nothing reaches the tunnel server
+            startupTimings.selfTestDone(StartupTimings.SelfTest.FORWARDER, false);
+            if (proxyTest != null) {
+                startupTimings.selfTestDone(StartupTimings.SelfTest.PROXY, false);
             }
+            return;
         }
+        selfTest(startupTimings, getSeleniumPort(), httpForwarder::testForwarding, proxyTest, TimeUnit.SECONDS.toMillis(SELF_TEST_BUDGET));
+    }
 
+    /**
+     * Only the forwarder test holds up the caller, for at most the budget; the
+     * proxy test goes through our API and reports into the timings when it is done.
+     *
+     * @param proxyTest null when the proxy is not tested
+     */
+    static void selfTest(StartupTimings timings, int seleniumPort, BooleanSupplier forwarderTest, BooleanSupplier proxyTest, long budgetMillis) {
+        CompletableFuture<Boolean> forwarder = selfTest(timings, StartupTimings.SelfTest.FORWARDER,
+            StartupTimings.Phase.FORWARDER_SELF_TEST, forwarderTest);
+        forwarder.thenAccept(passed -> {
+            if (!passed) {
+                Logger.getLogger(App.class.getName()).log(Level.SEVERE, "! Forwarder testing failed, localhost port {0} does not seem to be able to reach our hub (hub.testingbot.com)", Integer.toString(seleniumPort));
+            }
+        });
+        if (proxyTest != null) {
+            selfTest(timings, StartupTimings.SelfTest.PROXY, StartupTimings.Phase.PROXY_SELF_TEST, proxyTest)
+                .thenAccept(passed -> {
+                    if (!passed) {
+                        Logger.getLogger(App.class.getName()).log(Level.INFO, "! Tunnel might not work properly, test failed");
+                    }
+                });
+        }
+        try {
+            forwarder.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.WARNING, "Forwarder test still running after {0} ms, not waiting for it", budgetMillis);
+        } catch (ExecutionException ex) {
+            // reported above
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CompletableFuture<Boolean> selfTest(StartupTimings timings, StartupTimings.SelfTest test, StartupTimings.Phase phase, BooleanSupplier check) {
+        return CompletableFuture.supplyAsync(() -> {
+            long begin = timings.begin();
+            boolean passed = check.getAsBoolean();
+            timings.end(phase, begin);
+            return passed;
+        })
+            .exceptionally(ex -> false)
+            .whenComplete((passed, ex) -> timings.selfTestDone(test, passed));
+    }
+
+    private void deleteReadyFile() {
+        if (readyFile != null) {
+            File f = new File(readyFile);
+            if (f.exists() && !f.delete()) {
+                Logger.getLogger(App.class.getName()).log(Level.WARNING, "Could not delete ready file: " + readyFile);
+            }
+        }
+    }
+
+    private void writeReadyFile() {
         if (this.readyFile != null) {
             File f = new File(this.readyFile);
             if (f.exists()) {
@@ -538,10 +894,53 @@ public class App {
         return httpProxy;
     }
 
+    public HttpForwarder getHttpForwarder() {
+        return httpForwarder;
+    }
+
+    /**
+     * @return the SSH tunnel the forwarder currently sends to
+     */
+    public SSHTunnel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * @return the standby tunnel handling, null without --failover
+     */
+    public TunnelFailover getTunnelFailover() {
+        return tunnelFailover;
+    }
+
+    /**
+     * Makes a connected standby tunnel the current one. The forwarder picks up its
+     * port and server IP in one step, requests already on their way finish on the
+     * previous tunnel.
+     *
+     * @param standby the connected standby tunnel, with its port forwarding set up
+     * @param standbyApi the API client holding the id of the standby tunnel
+     * @param standbyTunnelID the id of the standby tunnel
+     */
+    public synchronized void switchTunnel(SSHTunnel standby, Api standbyApi, int standbyTunnelID) {
+        this.tunnel = standby;
+        this.api = standbyApi;
+        this.tunnelID = standbyTunnelID;
+        this.sshPort = standby.getLocalPort();
+        setServerIP(standby.getServer());
+        standby.registerMetrics();
+    }
+
     public int getTunnelID() {
         return tunnelID;
     }
 
+    /**
+     * @return the phase durations of the current tunnel startup
+     */
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
+    }
+
     public Api getApi() {
         return api;
     }
@@ -661,6 +1060,16 @@ public class App {
         return serverIP;
     }
 
+    /**
+     * @param serverIP the IP of the tunnel server, the forwarder picks it up for its TB-Tunnel header
+     */
+    public void setServerIP(String serverIP) {
+        this.serverIP = serverIP;
+        if (httpForwarder != null) {
+            httpForwarder.refreshHeaders();
+        }
+    }
+
     public boolean isBypassingSquid() {
         return bypassSquid;
     }
@@ -669,6 +1078,17 @@ public class App {
         return noBump;
     }
 
+    /**
+     * @return whether a standby tunnel is started when the SSH connection is lost
+     */
+    public boolean isFailover() {
+        return failover;
+    }
+
+    public void setFailover(boolean failover) {
+        this.failover = failover;
+    }
+
     /**
      * @return the debugMode
      */
@@ -683,6 +1103,137 @@ public class App {
         this.debugMode = debugMode;
     }
 
+    /**
+     * @return whether CONNECT and WebSocket tunnels are relayed with pooled buffers and gathering writes
+     */
+    public boolean isDirectRelay() {
+        return directRelay;
+    }
+
+    public void setDirectRelay(boolean directRelay) {
+        this.directRelay = directRelay;
+    }
+
+    /**
+     * @return the number of selector threads for proxied connections, 0 when it is derived from the cores
+     */
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors) {
+        if (selectors < 0) {
+            throw new IllegalArgumentException("Invalid number of selectors. Must be 0 or more but got: " + selectors);
+        }
+        this.selectors = selectors;
+    }
+
+    /**
+     * @return the number of SSH sessions to the tunnel server
+     */
+    public int getSshSessions() {
+        return sshSessions;
+    }
+
+    public void setSshSessions(int sshSessions) {
+        if (sshSessions < 1) {
+            throw new IllegalArgumentException("Invalid number of SSH sessions. Must be 1 or more but got: " + sshSessions);
+        }
+        this.sshSessions = sshSessions;
+    }
+
+    public SshProfile getSshProfile() {
+        return sshProfile;
+    }
+
+    public void setSshProfile(SshProfile sshProfile) {
+        this.sshProfile = sshProfile;
+    }
+
+    /**
+     * @return the largest request body in bytes the forwarder accepts, 0 for no limit
+     */
+    public long getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    public void setMaxRequestSize(long maxRequestSize) {
+        if (maxRequestSize < 0) {
+            throw new IllegalArgumentException("Invalid maximum request size. Must be 0 or more but got: " + maxRequestSize);
+        }
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * @return the largest response body in bytes the forwarder relays, 0 for no limit
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    public void setMaxResponseSize(long maxResponseSize) {
+        if (maxResponseSize < 0) {
+            throw new IllegalArgumentException("Invalid maximum response size. Must be 0 or more but got: " + maxResponseSize);
+        }
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * @return the longest wait between reconnect attempts, in seconds
+     */
+    public int getReconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    public void setReconnectMaxDelay(int reconnectMaxDelay) {
+        if (reconnectMaxDelay < 1) {
+            throw new IllegalArgumentException("Invalid maximum reconnect delay. Must be 1 or more but got: " + reconnectMaxDelay);
+        }
+        this.reconnectMaxDelay = reconnectMaxDelay;
+    }
+
+    /**
+     * @return the local port of the background tunnel of --reuse
+     */
+    public int getControlPort() {
+        return controlPort;
+    }
+
+    public void setControlPort(int controlPort) {
+        if (controlPort < 1 || controlPort > 65535) {
+            throw new IllegalArgumentException("Invalid control port. Must be between 1-65535 but got: " + controlPort);
+        }
+        this.controlPort = controlPort;
+    }
+
+    /**
+     * @return how long the background tunnel of --reuse keeps running without a job attached, in seconds
+     */
+    public int getReuseIdleTimeout() {
+        return reuseIdleTimeout;
+    }
+
+    public void setReuseIdleTimeout(int reuseIdleTimeout) {
+        if (reuseIdleTimeout < 1) {
+            throw new IllegalArgumentException("Invalid reuse idle timeout. Must be 1 or more but got: " + reuseIdleTimeout);
+        }
+        this.reuseIdleTimeout = reuseIdleTimeout;
+    }
+
+    public int getProxyPoolSize() {
+        return proxyPoolSize;
+    }
+
+    /**
+     * @param proxyPoolSize the number of idle connections to keep open to the upstream proxy, 0 to disable
+     */
+    public void setProxyPoolSize(int proxyPoolSize) {
+        if (proxyPoolSize < 0) {
+            throw new IllegalArgumentException("Invalid proxy pool size. Must be 0 or more but got: " + proxyPoolSize);
+        }
+        this.proxyPoolSize = proxyPoolSize;
+    }
+
     public String getProxyAuth() {
         return proxyAuth;
     }
@@ -0,0 +1,214 @@
+package com.testingbot.tunnel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+
+/**
+ * The job side of --reuse: attaches to the tunnel running in the background,
+ * and starts that tunnel when there is none.
+ */
+final class ControlClient {
+    // options of the job itself, they do not change the tunnel
+    private static final Set<String> JOB_OPTIONS = Set.of("reuse", "daemon", "readyfile");
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final long RETRY_DELAY = 100;
+    private static final long START_TIMEOUT = 30000;
+    // the tunnel VM may take minutes to boot, the job waits for it
+    private static final int READY_TIMEOUT = 600000;
+
+    private ControlClient() {
+    }
+
+    /**
+     * A job attached to the background tunnel, closing it detaches.
+     */
+    static final class Attachment implements Closeable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final int seleniumPort;
+        private final int proxyPort;
+
+        private Attachment(Socket socket, BufferedReader reader, int seleniumPort, int proxyPort) {
+            this.socket = socket;
+            this.reader = reader;
+            this.seleniumPort = seleniumPort;
+            this.proxyPort = proxyPort;
+        }
+
+        int getSeleniumPort() {
+            return seleniumPort;
+        }
+
+        int getProxyPort() {
+            return proxyPort;
+        }
+
+        /**
+         * Blocks until the background tunnel goes away.
+         */
+        void awaitTunnelStopped() {
+            try {
+                while (reader.read() != -1) {
+                    // ignore
+                }
+            } catch (IOException ex) {
+                // stopped
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return the arguments to start the background tunnel with, without the ones of the job:
+     *         every option with its values, then the positional arguments in their order
+     */
+    static List<List<String>> tunnelArguments(CommandLine commandLine) {
+        List<List<String>> arguments = new ArrayList<>();
+        for (Option option : commandLine.getOptions()) {
+            String name = option.getLongOpt() != null ? option.getLongOpt() : option.getOpt();
+            if (JOB_OPTIONS.contains(name)) {
+                continue;
+            }
+            List<String> argument = new ArrayList<>();
+            argument.add("--" + name);
+            if (option.getValues() != null) {
+                argument.addAll(Arrays.asList(option.getValues()));
+            }
+            arguments.add(argument);
+        }
+        if (!commandLine.getArgList().isEmpty()) {
+            arguments.add(new ArrayList<>(commandLine.getArgList()));
+        }
+        return arguments;
+    }
+
+    /**
+     * @return identifies the account and the options of a tunnel, whatever the order of the options
+     */
+    static String fingerprint(String clientKey, List<List<String>> tunnelArguments) {
+        // an option is sorted together with its values, so they can not trade places with those of another option
+        List<List<String>> sorted = new ArrayList<>(tunnelArguments);
+        sorted.sort(ControlClient::compare);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.valueOf(clientKey).getBytes(StandardCharsets.UTF_8));
+            for (List<String> argument : sorted) {
+                digest.update((byte) 1);
+                for (String value : argument) {
+                    digest.update((byte) 0);
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int compare(List<String> first, List<String> second) {
+        for (int i = 0; i < first.size() && i < second.size(); i++) {
+            int order = first.get(i).compareTo(second.get(i));
+            if (order != 0) {
+                return order;
+            }
+        }
+        return Integer.compare(first.size(), second.size());
+    }
+
+    /**
+     * Attaches to the tunnel on the control port, starting it with the command when
+     * nothing listens there yet, and waits until the tunnel is ready.
+     *
+     * @param command starts the background tunnel, null to only attach
+     * @param log receives the output of the background tunnel
+     */
+    static Attachment attach(int controlPort, String fingerprint, List<String> command, File log) throws IOException, InterruptedException {
+        Process daemon = null;
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), controlPort), CONNECT_TIMEOUT);
+                return handshake(socket, fingerprint);
+            } catch (ConnectException ex) {
+                socket.close();
+                if (command == null) {
+                    throw ex;
+                }
+                if (daemon == null) {
+                    daemon = new ProcessBuilder(command)
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                        .start();
+                } else if (!daemon.isAlive()) {
+                    throw new IOException("The background tunnel exited with code " + daemon.exitValue());
+                } else if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("The background tunnel did not open control port " + controlPort);
+                }
+                Thread.sleep(RETRY_DELAY);
+            }
+        }
+    }
+
+    private static Attachment handshake(Socket socket, String fingerprint) throws IOException {
+        try {
+            socket.setSoTimeout(READY_TIMEOUT);
+            socket.getOutputStream().write((ControlServer.ATTACH + " " + fingerprint + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String reply;
+            try {
+                reply = reader.readLine();
+            } catch (SocketTimeoutException ex) {
+                throw new IOException("The background tunnel was not ready after " + TimeUnit.MILLISECONDS.toSeconds(READY_TIMEOUT) + " seconds");
+            }
+            if (reply == null) {
+                throw new IOException("The background tunnel stopped before it was ready");
+            }
+            if (reply.startsWith(ControlServer.FAILED + " ")) {
+                throw new IOException("The background tunnel could not be started: " + reply.substring(ControlServer.FAILED.length() + 1));
+            }
+            String[] parts = reply.split(" ");
+            if (ControlServer.MISMATCH.equals(parts[0])) {
+                throw new IOException("The tunnel running on control port " + socket.getPort()
+                    + " was started with other options. Stop it, or use --control-port to run another one.");
+            }
+            if (!ControlServer.READY.equals(parts[0]) || parts.length < 3) {
+                throw new IOException("Unexpected reply on the control port: " + reply);
+            }
+            Attachment attachment = new Attachment(socket, reader, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            // stays attached for as long as the job runs
+            socket.setSoTimeout(0);
+            return attachment;
+        } catch (IOException | RuntimeException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+}
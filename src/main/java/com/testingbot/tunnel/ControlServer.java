@@ -0,0 +1,197 @@
+package com.testingbot.tunnel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Control socket of a tunnel kept running in the background for --reuse.
+ *
+ * A job attaches by sending {@code ATTACH <fingerprint>} and keeping the
+ * connection open, the reply {@code READY <se-port> <proxy-port>} comes as soon
+ * as the tunnel is ready, or {@code FAILED <reason>} when it could not be
+ * started. The job detaches by closing the connection, which the
+ * OS also does when the job is killed. The tunnel is stopped once no job was
+ * attached for the idle timeout.
+ *
+ * Only listens on the loopback interface.
+ */
+final class ControlServer implements Closeable {
+    static final String ATTACH = "ATTACH";
+    static final String READY = "READY";
+    static final String MISMATCH = "MISMATCH";
+    static final String FAILED = "FAILED";
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    // lets the waiting jobs read why the tunnel failed before it stops
+    private static final long FAILED_GRACE = 1000;
+
+    private final App app;
+    private final String fingerprint;
+    private final long idleTimeoutMillis;
+    private final Runnable onIdle;
+    private final ServerSocket serverSocket;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-control");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService idleTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-control-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // guarded by this
+    private int attached;
+    private ScheduledFuture<?> teardown;
+
+    /**
+     * @param fingerprint identifies the options of the tunnel, jobs with other options are refused
+     * @param onIdle stops the tunnel once no job was attached for the idle timeout, or once it failed to start
+     */
+    ControlServer(App app, int port, String fingerprint, long idleTimeoutMillis, Runnable onIdle) throws IOException {
+        this.app = app;
+        this.fingerprint = fingerprint;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.onIdle = onIdle;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        // the job which started the tunnel attaches right away
+        scheduleTeardown();
+        Thread acceptor = new Thread(this::accept, "tunnel-control-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers the jobs waiting for the tunnel.
+     */
+    void tunnelReady() {
+        ready.complete(null);
+    }
+
+    /**
+     * Tells the jobs waiting for the tunnel that it could not be started, and stops it.
+     */
+    void tunnelFailed(String reason) {
+        if (ready.completeExceptionally(new IOException(reason))) {
+            idleTimer.schedule(onIdle, FAILED_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized int getAttached() {
+        return attached;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+        idleTimer.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            } catch (IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    Logger.getLogger(ControlServer.class.getName()).log(Level.WARNING, "Control socket failed: {0}", ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(HANDSHAKE_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            OutputStream out = s.getOutputStream();
+            if (line == null || !line.startsWith(ATTACH + " ")) {
+                return;
+            }
+            if (!fingerprint.equals(line.substring(ATTACH.length() + 1).trim())) {
+                out.write((MISMATCH + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            attach();
+            try {
+                try {
+                    ready.get();
+                } catch (ExecutionException ex) {
+                    out.write(String.format("%s %s%n", FAILED, ex.getCause().getMessage()).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    return;
+                }
+                out.write(String.format("%s %d %d%n", READY, app.getSeleniumPort(), app.getJettyPort()).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Logger.getLogger(ControlServer.class.getName()).log(Level.INFO, "Job attached, {0} attached", getAttached());
+                // the job sends nothing more, wait for it to go away
+                s.setSoTimeout(0);
+                InputStream in = s.getInputStream();
+                while (in.read() != -1) {
+                    // ignore
+                }
+            } finally {
+                detach();
+            }
+        } catch (SocketException ex) {
+            // the job was killed
+        } catch (IOException ex) {
+            Logger.getLogger(ControlServer.class.getName()).log(Level.FINE, "Control connection failed", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void attach() {
+        attached++;
+        if (teardown != null) {
+            teardown.cancel(false);
+            teardown = null;
+        }
+    }
+
+    private synchronized void detach() {
+        attached--;
+        Logger.getLogger(ControlServer.class.getName()).log(Level.INFO, "Job detached, {0} attached", attached);
+        if (attached == 0) {
+            scheduleTeardown();
+        }
+    }
+
+    private synchronized void scheduleTeardown() {
+        teardown = idleTimer.schedule(() -> {
+            synchronized (this) {
+                if (attached > 0) {
+                    return;
+                }
+            }
+            Logger.getLogger(ControlServer.class.getName()).log(Level.INFO,
+                "No job attached for {0} seconds, stopping the tunnel", TimeUnit.MILLISECONDS.toSeconds(idleTimeoutMillis));
+            onIdle.run();
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -22,8 +22,15 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
  * @author TestingBot
  */
 public class HttpForwarder {
+    /**
+     * Connections per pool to the forwarded hub port: one pool per WebDriver session,
+     * which sends its commands one at a time, and one for requests outside of a session.
+     */
+    static final int MAX_CONNECTIONS_PER_POOL = 32;
+
     private final int seleniumPort;
     private final Server httpProxy;
+    private final ForwarderServlet forwarderServlet;
 
     public HttpForwarder(App app) {
         this.seleniumPort = app.getSeleniumPort();
@@ -36,9 +43,11 @@ public class HttpForwarder {
 
         httpProxy.addConnector(connector);
 
-        ServletHolder servletHolder = new ServletHolder(new ForwarderServlet(app));
+        forwarderServlet = new ForwarderServlet(app);
+        ServletHolder servletHolder = new ServletHolder(forwarderServlet);
         servletHolder.setInitParameter("idleTimeout", "440000");
         servletHolder.setInitParameter("timeout", "440000");
+        servletHolder.setInitParameter("maxConnections", String.valueOf(MAX_CONNECTIONS_PER_POOL));
         if (app.getProxy() != null) {
             servletHolder.setInitParameter("proxy", app.getProxy());
         }
@@ -52,6 +61,7 @@ public class HttpForwarder {
         ctxHandler.addServlet(servletHolder, "/*");
 
         httpProxy.setHandler(ctxHandler);
+        OpenMetrics.registerThreadPool("forwarder", httpProxy.getThreadPool());
 
         try {
             httpProxy.start();
@@ -69,14 +79,28 @@ public class HttpForwarder {
         }
     }
 
-    public boolean testForwarding() {
-        // Give the SSH tunnel a moment to fully establish
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+    /**
+     * Picks up changed tunnel settings, such as a new server IP.
+     */
+    public void refreshHeaders() {
+        forwarderServlet.refreshHeaders();
+    }
+
+    /**
+     * @param sshPort local port of an SSH forward to the hub
+     * @return the WebDriver commands still being relayed over that forward
+     */
+    public long getActiveRequests(int sshPort) {
+        return forwarderServlet.getActiveRequests(sshPort);
+    }
 
+    /**
+     * Sends a request to the hub through the forwarder, run it once the SSH port
+     * forwarding is set up.
+     *
+     * @return whether the hub answered
+     */
+    public boolean testForwarding() {
         RequestConfig cfg = RequestConfig.custom()
             .setConnectTimeout(Timeout.of(5, TimeUnit.SECONDS))
             .setResponseTimeout(Timeout.of(10, TimeUnit.SECONDS))
@@ -1,7 +1,9 @@
 package com.testingbot.tunnel;
 
 import com.testingbot.tunnel.proxy.CustomConnectHandler;
+import com.testingbot.tunnel.proxy.DirectRelay;
 import com.testingbot.tunnel.proxy.TunnelProxyServlet;
+import com.testingbot.tunnel.proxy.UpstreamProxyPool;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -24,7 +26,7 @@ import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.apache.hc.core5.util.Timeout;
 
-import org.eclipse.jetty.proxy.ConnectHandler;
+import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Request;
@@ -44,6 +46,8 @@ public final class HttpProxy {
     private final Server httpProxy;
     private final int randomNumber = (int )(Math.random() * 50 + 1);
     private final Thread shutDownHook;
+    // most proxies drop idle connections after a minute or more, replace ours well before that
+    private static final long PROXY_POOL_MAX_IDLE = 30000;
 
     public HttpProxy(App app) {
         this.app = app;
@@ -60,8 +64,20 @@ public final class HttpProxy {
         httpProxy.addConnector(proxyConnector);
         httpProxy.setStopAtShutdown(true);
 
-        ConnectHandler connectHandler = new CustomConnectHandler(app);
+        CustomConnectHandler connectHandler = new CustomConnectHandler(app);
         WebsocketHandler websocketHandler = new WebsocketHandler();
+        websocketHandler.setDebugMode(app.isDebugMode());
+        if (app.isDirectRelay()) {
+            ByteBufferPool relayBufferPool = DirectRelay.newBufferPool();
+            connectHandler.setByteBufferPool(relayBufferPool);
+            connectHandler.setDirectRelay(true);
+            websocketHandler.setByteBufferPool(relayBufferPool);
+            websocketHandler.setDirectRelay(true);
+        }
+        if (app.getSelectors() > 0) {
+            connectHandler.setSelectors(app.getSelectors());
+            websocketHandler.setSelectors(app.getSelectors());
+        }
 
         ServletContextHandler contextHandler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
         contextHandler.setContextPath("/");  // Root path for all requests
@@ -99,15 +115,24 @@ public final class HttpProxy {
         }
 
         proxyServlet.setInitParameter("jetty", String.valueOf(app.getJettyPort()));
+        proxyServlet.setInitParameter("selectors", String.valueOf(app.getSelectors() > 0 ? app.getSelectors() : WebsocketHandler.defaultSelectors()));
 
         contextHandler.addServlet(proxyServlet, "/*");  // Proxy all HTTP requests
 
+        if (app.getProxy() != null && app.getProxyPoolSize() > 0) {
+            UpstreamProxyPool proxyPool = newUpstreamProxyPool(app.getProxy(), app.getProxyPoolSize());
+            httpProxy.addBean(proxyPool);
+            contextHandler.setAttribute(UpstreamProxyPool.ATTRIBUTE, proxyPool);
+            connectHandler.setUpstreamProxyPool(proxyPool);
+        }
+
         // Add the context handler to the server
         HandlerList handlers = new HandlerList();
         handlers.addHandler(websocketHandler);  // For handling WS requests
         handlers.addHandler(connectHandler);  // For handling HTTPS requests (if needed)
         handlers.addHandler(contextHandler);  // For handling HTTP requests through proxy servlet
         httpProxy.setHandler(handlers);
+        OpenMetrics.registerThreadPool("proxy", httpProxy.getThreadPool());
 
         start();
 
@@ -116,6 +141,20 @@ public final class HttpProxy {
         Runtime.getRuntime().addShutdownHook(shutDownHook);
     }
 
+    private static UpstreamProxyPool newUpstreamProxyPool(String proxy, int size) {
+        int colon = proxy.indexOf(':');
+        String host = colon == -1 ? proxy : proxy.substring(0, colon);
+        int port = colon == -1 ? 80 : Integer.parseInt(proxy.substring(colon + 1));
+        UpstreamProxyPool pool = new UpstreamProxyPool(host, port, size, PROXY_POOL_MAX_IDLE);
+
+        OpenMetrics.gauge("tunnel_upstream_proxy_pool_idle", "Idle connections to the upstream proxy")
+            .sample("", pool::getIdleCount);
+        OpenMetrics.counter("tunnel_upstream_proxy_pool_acquired", "Connections to the upstream proxy requested from the pool")
+            .sample(OpenMetrics.label("result", "hit"), pool::getHits)
+            .sample(OpenMetrics.label("result", "miss"), pool::getMisses);
+        return pool;
+    }
+
     public void stop() {
         Runtime.getRuntime().removeShutdownHook(shutDownHook);
 
@@ -135,6 +174,13 @@ public final class HttpProxy {
         }
     }
 
+    /**
+     * Asks our API to fetch a page from a test server on this machine. The request
+     * reaches it through the tunnel server and the remote port forward, so this only
+     * works once the port forwarding is set up.
+     *
+     * @return whether the page came through the tunnel
+     */
     public boolean testProxy() {
         Server server = null;
         try {
@@ -20,6 +20,7 @@ public class InsightServer {
 
         // Register the servlet and map it to the root URL pattern
         handler.addServlet(JsonServlet.class, "/*");
+        handler.addServlet(MetricsServlet.class, "/metrics");
 
         try {
             server.start();
@@ -28,13 +29,121 @@ public class InsightServer {
         }
     }
 
+    /**
+     * Prometheus scrape endpoint, in the OpenMetrics text format.
+     */
+    public static class MetricsServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            resp.setContentType(OpenMetrics.CONTENT_TYPE);
+            resp.setStatus(HttpServletResponse.SC_OK);
+            OpenMetrics.getInstance().writeTo(resp.getOutputStream());
+        }
+    }
+
     public static class JsonServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
             resp.setContentType("application/json");
             resp.setStatus(HttpServletResponse.SC_OK);
-            resp.getWriter().println("{\"version\":\"" + App.VERSION + "\", \"uptime\":\"" + (System.currentTimeMillis() - Statistics.getStartTime()) + "\","
-                + "\"numberOfRequests\":\"" + Statistics.getNumberOfRequests() + "\", \"bytesTransferred\":" + Statistics.getBytesTransferred() + "}");
+            StringBuilder json = new StringBuilder(512);
+            json.append("{\"version\":\"").append(App.VERSION).append("\", \"uptime\":\"").append(System.currentTimeMillis() - Statistics.getStartTime()).append("\",")
+                .append("\"numberOfRequests\":\"").append(Statistics.getNumberOfRequests()).append("\", \"bytesTransferred\":").append(Statistics.getBytesTransferred())
+                .append(", \"routes\":{");
+            appendRoutes(json);
+            json.append("}, \"latency\":{");
+            appendLatencies(json);
+            json.append("}, \"webdriver\":{");
+            appendWebDriverCommands(json);
+            json.append("}}");
+            resp.getWriter().println(json);
+        }
+
+        private static void appendRoutes(StringBuilder json) {
+            Statistics.Route[] routes = Statistics.Route.values();
+            for (int i = 0; i < routes.length; i++) {
+                Statistics.Route route = routes[i];
+                if (i > 0) {
+                    json.append(", ");
+                }
+                json.append('"').append(route.getLabel()).append("\":{")
+                    .append("\"requests\":").append(Statistics.getNumberOfRequests(route))
+                    .append(", \"bytesUpstream\":").append(Statistics.getBytesTransferred(route, Statistics.Direction.UPSTREAM))
+                    .append(", \"bytesDownstream\":").append(Statistics.getBytesTransferred(route, Statistics.Direction.DOWNSTREAM))
+                    .append('}');
+            }
+        }
+
+        private static void appendLatencies(StringBuilder json) {
+            Statistics.Route[] routes = Statistics.Route.values();
+            for (int i = 0; i < routes.length; i++) {
+                Statistics.Route route = routes[i];
+                if (i > 0) {
+                    json.append(", ");
+                }
+                json.append('"').append(route.getLabel()).append("\":{\"ttfb\":");
+                appendHistogram(json, Statistics.getTimeToFirstByte(route));
+                json.append(", \"total\":");
+                appendHistogram(json, Statistics.getTotalTime(route));
+                json.append('}');
+            }
+        }
+
+        /**
+         * Only the commands which have been forwarded at least once.
+         */
+        private static void appendWebDriverCommands(StringBuilder json) {
+            boolean first = true;
+            for (WebDriverCommand command : WebDriverCommand.values()) {
+                LatencyHistogram histogram = Statistics.getWebDriverTime(command);
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                if (!first) {
+                    json.append(", ");
+                }
+                first = false;
+                json.append('"').append(command.getLabel()).append("\":{\"time\":");
+                appendHistogram(json, histogram);
+                json.append(", \"bytesUpstream\":").append(Statistics.getWebDriverBytes(command, Statistics.Direction.UPSTREAM))
+                    .append(", \"bytesDownstream\":").append(Statistics.getWebDriverBytes(command, Statistics.Direction.DOWNSTREAM))
+                    .append('}');
+            }
+        }
+
+        /**
+         * Percentiles are reported in milliseconds with microsecond precision.
+         */
+        private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+            json.append("{\"count\":").append(histogram.getCount());
+            json.append(", \"p50\":");
+            appendMillis(json, histogram.getValueAtPercentile(50));
+            json.append(", \"p90\":");
+            appendMillis(json, histogram.getValueAtPercentile(90));
+            json.append(", \"p99\":");
+            appendMillis(json, histogram.getValueAtPercentile(99));
+            json.append(", \"p999\":");
+            appendMillis(json, histogram.getValueAtPercentile(99.9));
+            json.append(", \"max\":");
+            appendMillis(json, histogram.getMax());
+            json.append('}');
+        }
+
+        private static void appendMillis(StringBuilder json, long nanos) {
+            long micros = nanos / 1_000;
+            long fraction = micros % 1_000;
+            json.append(micros / 1_000).append('.');
+            if (fraction < 100) {
+                json.append('0');
+            }
+            if (fraction < 10) {
+                json.append('0');
+            }
+            json.append(fraction);
         }
     }
 }
@@ -0,0 +1,426 @@
+package com.testingbot.tunnel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongSupplier;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Registry of metric families, rendered in the OpenMetrics text format.
+ *
+ * Families and their samples are registered once (sample names and labels are
+ * pre-rendered at that point), a scrape only appends numbers into a buffer that
+ * is reused between scrapes.
+ */
+public final class OpenMetrics {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    public static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Default histogram buckets for latencies, in nanoseconds.
+     */
+    public static final long[] LATENCY_BUCKETS = {
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L,
+        250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L,
+        30_000_000_000L, 60_000_000_000L
+    };
+
+    /**
+     * Histogram buckets for payload sizes, in bytes.
+     */
+    public static final long[] SIZE_BUCKETS = {
+        1L << 10, 1L << 12, 1L << 14, 1L << 16, 1L << 18, 1L << 20, 1L << 22, 1L << 24, 1L << 26
+    };
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<Family> ordered = new CopyOnWriteArrayList<>();
+    private static final AtomicIntegerArray exportedCommands = new AtomicIntegerArray(WebDriverCommand.values().length);
+    private static final OpenMetrics INSTANCE = new OpenMetrics();
+
+    static {
+        registerTunnelMetrics();
+        registerJvmMetrics();
+    }
+
+    private final StringBuilder text = new StringBuilder(32 * 1024);
+    private byte[] bytes = new byte[32 * 1024];
+
+    public static OpenMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public static Family counter(String name, String help) {
+        return family(name, "counter", help);
+    }
+
+    public static Family gauge(String name, String help) {
+        return family(name, "gauge", help);
+    }
+
+    public static Family histogram(String name, String help) {
+        return family(name, "histogram", help);
+    }
+
+    private static synchronized Family family(String name, String type, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, type, help);
+            families.put(name, family);
+            ordered.add(family);
+        } else if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    /**
+     * Exposes the startup phases of the current tunnel, replacing those of a previous one.
+     */
+    public static void registerStartupTimings(StartupTimings timings) {
+        Family phases = gauge("tunnel_startup_phase_milliseconds", "Duration of the phases of the tunnel startup, some of them run concurrently");
+        for (StartupTimings.Phase phase : StartupTimings.Phase.values()) {
+            phases.sample(label("phase", phase.getLabel()), () -> timings.getMillis(phase));
+        }
+        gauge("tunnel_startup_milliseconds", "Time from creating the tunnel until it was ready for tests")
+            .sample("", timings::getTotalMillis);
+        Family selfTests = gauge("tunnel_self_test_result", "Outcome of the self-tests of the tunnel: 1 passed, -1 failed, 0 running or not run");
+        for (StartupTimings.SelfTest test : StartupTimings.SelfTest.values()) {
+            selfTests.sample(label("test", test.getLabel()), () -> timings.getSelfTestResult(test));
+        }
+    }
+
+    /**
+     * Exposes thread usage of a Jetty server thread pool.
+     *
+     * @param name the value of the {@code pool} label
+     * @param threadPool the pool of the server
+     */
+    public static void registerThreadPool(String name, ThreadPool threadPool) {
+        String labels = label("pool", name);
+        gauge("jetty_threads", "Threads in the Jetty thread pool")
+            .sample(labels, threadPool::getThreads);
+        gauge("jetty_threads_idle", "Idle threads in the Jetty thread pool")
+            .sample(labels, threadPool::getIdleThreads);
+        if (threadPool instanceof ThreadPool.SizedThreadPool) {
+            ThreadPool.SizedThreadPool sized = (ThreadPool.SizedThreadPool) threadPool;
+            gauge("jetty_threads_max", "Maximum threads of the Jetty thread pool")
+                .sample(labels, sized::getMaxThreads);
+        }
+        if (threadPool instanceof QueuedThreadPool) {
+            QueuedThreadPool queued = (QueuedThreadPool) threadPool;
+            gauge("jetty_threads_busy", "Busy threads in the Jetty thread pool")
+                .sample(labels, queued::getBusyThreads);
+            gauge("jetty_queue_size", "Jobs waiting for a thread in the Jetty thread pool")
+                .sample(labels, queued::getQueueSize);
+        }
+    }
+
+    /**
+     * Adds the samples of a WebDriver command the first time it is forwarded, so
+     * that only the commands a test suite uses show up.
+     */
+    public static void exportWebDriverCommand(WebDriverCommand command) {
+        int index = command.ordinal();
+        if (exportedCommands.get(index) != 0 || !exportedCommands.compareAndSet(index, 0, 1)) {
+            return;
+        }
+        String labels = label("command", command.getLabel());
+        histogram("tunnel_webdriver_command_duration_seconds", "Time until the response of the hub to a WebDriver command was relayed")
+            .sample(labels, Statistics.getWebDriverTime(command), LATENCY_BUCKETS, NANOS_PER_SECOND);
+        Family bytes = counter("tunnel_webdriver_command_bytes", "Payload bytes of WebDriver commands (upstream) and their responses (downstream)");
+        for (Statistics.Direction direction : Statistics.Direction.values()) {
+            bytes.sample(labels + "," + label("direction", direction.getLabel()), () -> Statistics.getWebDriverBytes(command, direction));
+        }
+    }
+
+    /**
+     * @param name label name
+     * @param value raw label value, escaped here
+     * @return {@code name="value"}
+     */
+    public static String label(String name, String value) {
+        StringBuilder sb = new StringBuilder(name.length() + value.length() + 3);
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Renders every registered family and writes it to the given stream.
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        text.setLength(0);
+        render(text);
+
+        int length = text.length();
+        if (bytes.length < length) {
+            bytes = new byte[Integer.highestOneBit(length) << 1];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            bytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        out.write(bytes, 0, length);
+    }
+
+    void render(StringBuilder out) {
+        for (Family family : ordered) {
+            family.render(out);
+        }
+        out.append("# EOF\n");
+    }
+
+    /**
+     * Appends {@code value / unit} as a decimal number, without going through a double.
+     */
+    static void appendScaled(StringBuilder out, long value, long unit) {
+        if (unit == 1) {
+            out.append(value);
+            return;
+        }
+        if (value < 0) {
+            out.append('-');
+            value = -value;
+        }
+        out.append(value / unit);
+        long fraction = value % unit;
+        if (fraction == 0) {
+            return;
+        }
+        out.append('.');
+        for (long digit = unit / 10; digit > 0 && fraction > 0; digit /= 10) {
+            out.append((char) ('0' + fraction / digit));
+            fraction %= digit;
+        }
+    }
+
+    private static void registerTunnelMetrics() {
+        Family requests = counter("tunnel_requests", "Requests handled per proxy path");
+        Family bytes = counter("tunnel_bytes", "Bytes relayed per proxy path and direction");
+        Family throughput = gauge("tunnel_throughput_bytes_per_second", "Bytes per second relayed per proxy path and direction since the previous scrape");
+        Family open = gauge("tunnel_open_connections", "Open tunnels or in-flight requests per proxy path");
+        Family ttfb = histogram("tunnel_time_to_first_byte_seconds", "Time until the first response byte (CONNECT: until the tunnel is established)");
+        Family total = histogram("tunnel_request_duration_seconds", "Time until the response is fully relayed (CONNECT: tunnel lifetime)");
+
+        for (Statistics.Route route : Statistics.Route.values()) {
+            String routeLabel = label("route", route.getLabel());
+            requests.sample(routeLabel, () -> Statistics.getNumberOfRequests(route));
+            for (Statistics.Direction direction : Statistics.Direction.values()) {
+                bytes.sample(routeLabel + "," + label("direction", direction.getLabel()),
+                    () -> Statistics.getBytesTransferred(route, direction));
+                throughput.sample(routeLabel + "," + label("direction", direction.getLabel()),
+                    () -> Statistics.getThroughput(route, direction));
+            }
+            open.sample(routeLabel, () -> Statistics.getOpenConnections(route));
+            ttfb.sample(routeLabel, Statistics.getTimeToFirstByte(route), LATENCY_BUCKETS, NANOS_PER_SECOND);
+            total.sample(routeLabel, Statistics.getTotalTime(route), LATENCY_BUCKETS, NANOS_PER_SECOND);
+        }
+
+        Family frames = counter("tunnel_websocket_frames", "WebSocket frames relayed per direction");
+        for (Statistics.Direction direction : Statistics.Direction.values()) {
+            frames.sample(label("direction", direction.getLabel()), () -> Statistics.getWebSocketFrames(direction));
+        }
+
+        Family bodies = histogram("tunnel_forwarder_body_bytes", "Sizes of the request (upstream) and response (downstream) bodies relayed by the Selenium forwarder");
+        for (Statistics.Direction direction : Statistics.Direction.values()) {
+            bodies.sample(label("direction", direction.getLabel()), Statistics.getForwarderBodySize(direction), SIZE_BUCKETS, 1);
+        }
+
+        counter("tunnel_access_log_dropped", "Access log entries dropped because the buffer was full")
+            .sample("", AccessLog::getDroppedEntries);
+        gauge("tunnel_uptime_seconds", "Seconds since the tunnel was started")
+            .sample("", () -> Statistics.getStartTime() == 0 ? 0 : (System.currentTimeMillis() - Statistics.getStartTime()) / 1000);
+        gauge("tunnel_info", "Version of the tunnel")
+            .sample(label("version", String.valueOf(App.VERSION)), () -> 1);
+    }
+
+    private static void registerJvmMetrics() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Family memoryBytes = gauge("jvm_memory_bytes", "JVM memory usage");
+        memoryBytes.sample("area=\"heap\",kind=\"used\"", () -> memory.getHeapMemoryUsage().getUsed());
+        memoryBytes.sample("area=\"heap\",kind=\"committed\"", () -> memory.getHeapMemoryUsage().getCommitted());
+        memoryBytes.sample("area=\"heap\",kind=\"max\"", () -> memory.getHeapMemoryUsage().getMax());
+        memoryBytes.sample("area=\"nonheap\",kind=\"used\"", () -> memory.getNonHeapMemoryUsage().getUsed());
+        memoryBytes.sample("area=\"nonheap\",kind=\"committed\"", () -> memory.getNonHeapMemoryUsage().getCommitted());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge("jvm_threads", "Live JVM threads").sample("", threads::getThreadCount);
+
+        Family collections = counter("jvm_gc_collections", "Garbage collections per collector");
+        Family collectionTime = counter("jvm_gc_collection_milliseconds", "Time spent in garbage collection per collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String gcLabel = label("gc", gc.getName());
+            collections.sample(gcLabel, gc::getCollectionCount);
+            collectionTime.sample(gcLabel, gc::getCollectionTime);
+        }
+    }
+
+    /**
+     * A named metric with one sample per label set.
+     */
+    public static final class Family {
+        private final String name;
+        private final String type;
+        private final String header;
+        private final CopyOnWriteArrayList<Sample> samples = new CopyOnWriteArrayList<>();
+
+        private Family(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.header = "# TYPE " + name + " " + type + "\n# HELP " + name + " " + help + "\n";
+        }
+
+        /**
+         * Registers (or replaces) the counter or gauge sample with the given labels.
+         *
+         * @param labels pre-rendered labels, see {@link OpenMetrics#label(String, String)}, may be empty
+         * @param value supplies the current value on every scrape
+         * @return this family
+         */
+        public Family sample(String labels, LongSupplier value) {
+            if ("histogram".equals(type)) {
+                throw new IllegalArgumentException(name + " is a histogram");
+            }
+            String suffix = "counter".equals(type) ? "_total" : "";
+            return put(new ValueSample(labels, name + suffix + braces(labels) + " ", value));
+        }
+
+        /**
+         * Registers (or replaces) the histogram sample with the given labels.
+         *
+         * @param labels pre-rendered labels, may be empty
+         * @param histogram the histogram to expose
+         * @param buckets upper bounds of the exposed buckets, in the unit of the histogram
+         * @param unit divisor turning a histogram value into the exposed unit
+         * @return this family
+         */
+        public Family sample(String labels, LatencyHistogram histogram, long[] buckets, long unit) {
+            if (!"histogram".equals(type)) {
+                throw new IllegalArgumentException(name + " is not a histogram");
+            }
+            return put(new HistogramSample(name, labels, histogram, buckets, unit));
+        }
+
+        public void remove(String labels) {
+            samples.removeIf(sample -> sample.labels.equals(labels));
+        }
+
+        private synchronized Family put(Sample sample) {
+            for (int i = 0; i < samples.size(); i++) {
+                if (samples.get(i).labels.equals(sample.labels)) {
+                    samples.set(i, sample);
+                    return this;
+                }
+            }
+            samples.add(sample);
+            return this;
+        }
+
+        private void render(StringBuilder out) {
+            if (samples.isEmpty()) {
+                return;
+            }
+            out.append(header);
+            for (Sample sample : samples) {
+                sample.render(out);
+            }
+        }
+
+        private static String braces(String labels) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+    }
+
+    private abstract static class Sample {
+        final String labels;
+
+        Sample(String labels) {
+            this.labels = labels;
+        }
+
+        abstract void render(StringBuilder out);
+    }
+
+    private static final class ValueSample extends Sample {
+        private final String prefix;
+        private final LongSupplier value;
+
+        ValueSample(String labels, String prefix, LongSupplier value) {
+            super(labels);
+            this.prefix = prefix;
+            this.value = value;
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            out.append(prefix).append(value.getAsLong()).append('\n');
+        }
+    }
+
+    private static final class HistogramSample extends Sample {
+        private final LatencyHistogram histogram;
+        private final long[] buckets;
+        private final long unit;
+        private final String[] bucketPrefixes;
+        private final String countPrefix;
+        private final String sumPrefix;
+
+        HistogramSample(String name, String labels, LatencyHistogram histogram, long[] buckets, long unit) {
+            super(labels);
+            this.histogram = histogram;
+            this.buckets = buckets.clone();
+            this.unit = unit;
+            String separator = labels.isEmpty() ? "" : labels + ",";
+            this.bucketPrefixes = new String[buckets.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                StringBuilder le = new StringBuilder();
+                appendScaled(le, buckets[i], unit);
+                bucketPrefixes[i] = name + "_bucket{" + separator + "le=\"" + le + "\"} ";
+            }
+            bucketPrefixes[buckets.length] = name + "_bucket{" + separator + "le=\"+Inf\"} ";
+            this.countPrefix = name + "_count" + Family.braces(labels) + " ";
+            this.sumPrefix = name + "_sum" + Family.braces(labels) + " ";
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            // a fine grained bucket counts towards an exposed bucket once its upper bound fits in it
+            int fine = 0;
+            int fineBuckets = histogram.getBuckets();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                while (fine < fineBuckets && LatencyHistogram.getBucketUpperBound(fine) <= buckets[i]) {
+                    cumulative += histogram.getBucketCount(fine++);
+                }
+                out.append(bucketPrefixes[i]).append(cumulative).append('\n');
+            }
+            while (fine < fineBuckets) {
+                cumulative += histogram.getBucketCount(fine++);
+            }
+            out.append(bucketPrefixes[buckets.length]).append(cumulative).append('\n');
+            out.append(countPrefix).append(cumulative).append('\n');
+            out.append(sumPrefix);
+            appendScaled(out, histogram.getSum(), unit);
+            out.append('\n');
+        }
+    }
+}
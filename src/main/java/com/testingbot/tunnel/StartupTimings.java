@@ -0,0 +1,207 @@
+package com.testingbot.tunnel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations of the phases of bringing a tunnel up, from creating it with the
+ * API until the tests may start.
+ *
+ * Some phases run concurrently, so their durations do not add up to the total.
+ * Every phase names the phases it waits for, which gives the critical path of
+ * the startup, see {@link #trace()}.
+ */
+public final class StartupTimings {
+
+    public enum Phase {
+        API_CREATE("api_create"),
+        POLL("poll", API_CREATE),
+        SSH_CONNECT("ssh_connect", POLL),
+        SSH_AUTH("ssh_auth", SSH_CONNECT),
+        FORWARD("forward", SSH_AUTH),
+        PROXY_START("proxy_start"),
+        PROXY_SELF_TEST("proxy_self_test", FORWARD, PROXY_START),
+        FORWARDER_SELF_TEST("forwarder_self_test", FORWARD, PROXY_START),
+        LOCAL_PREPARE("local_prepare");
+
+        private final String label;
+        private final Phase[] dependencies;
+
+        Phase(String label, Phase... dependencies) {
+            this.label = label;
+            this.dependencies = dependencies;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Checks of the tunnel once it is connected.
+     */
+    public enum SelfTest {
+        FORWARDER("forwarder"),
+        PROXY("proxy");
+
+        private final String label;
+
+        SelfTest(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public static final int SELF_TEST_PENDING = 0;
+    public static final int SELF_TEST_PASSED = 1;
+    public static final int SELF_TEST_FAILED = -1;
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicIntegerArray selfTests = new AtomicIntegerArray(SelfTest.values().length);
+    private final AtomicLongArray durations = new AtomicLongArray(Phase.values().length);
+    // System.nanoTime() at the end of a phase, 0 until it ran
+    private final AtomicLongArray ends = new AtomicLongArray(Phase.values().length);
+    private volatile long readyNanos;
+
+    /**
+     * @return System.nanoTime() to pass to {@link #end(Phase, long)}
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    public void end(Phase phase, long beginNanos) {
+        record(phase, beginNanos, System.nanoTime());
+    }
+
+    /**
+     * Records a phase which ended just now.
+     */
+    public void record(Phase phase, long nanos) {
+        long now = System.nanoTime();
+        record(phase, now - nanos, now);
+    }
+
+    public void record(Phase phase, long beginNanos, long endNanos) {
+        durations.set(phase.ordinal(), endNanos - beginNanos);
+        ends.set(phase.ordinal(), endNanos);
+    }
+
+    public long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(durations.get(phase.ordinal()));
+    }
+
+    public void selfTestDone(SelfTest test, boolean passed) {
+        selfTests.set(test.ordinal(), passed ? SELF_TEST_PASSED : SELF_TEST_FAILED);
+    }
+
+    /**
+     * @return {@link #SELF_TEST_PASSED}, {@link #SELF_TEST_FAILED}, or {@link #SELF_TEST_PENDING}
+     * while it runs or when it does not run
+     */
+    public int getSelfTestResult(SelfTest test) {
+        return selfTests.get(test.ordinal());
+    }
+
+    /**
+     * Marks the tunnel as ready for tests.
+     */
+    public void ready() {
+        readyNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the time from the start until the tunnel was ready, 0 while it is starting
+     */
+    public long getTotalMillis() {
+        long ready = readyNanos;
+        return ready == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(ready - startNanos);
+    }
+
+    /**
+     * @return the phases the ready tunnel waited for, in order: every phase is the
+     * dependency of the next one which ended last. Phases which ended after the
+     * tunnel was ready, such as a self-test running in the background, are left out.
+     */
+    public List<Phase> getCriticalPath() {
+        List<Phase> path = new ArrayList<>();
+        Phase last = latest(Phase.values());
+        while (last != null) {
+            path.add(last);
+            last = latest(last.dependencies);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * @return the phase which ended last, a phase which did not run stands in for its dependencies
+     */
+    private Phase latest(Phase[] phases) {
+        Phase latest = null;
+        long latestEnd = 0;
+        long ready = readyNanos;
+        for (Phase phase : phases) {
+            long end = ends.get(phase.ordinal());
+            if (end != 0 && ready != 0 && end - ready > 0) {
+                continue;
+            }
+            Phase candidate = end != 0 ? phase : latest(phase.dependencies);
+            if (candidate != null && (latest == null || ends.get(candidate.ordinal()) - latestEnd > 0)) {
+                latest = candidate;
+                latestEnd = ends.get(candidate.ordinal());
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return the phases with their start and duration, the ones on the critical path marked with a *
+     */
+    public String trace() {
+        List<Phase> criticalPath = getCriticalPath();
+        List<Phase> phases = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            if (ends.get(phase.ordinal()) != 0) {
+                phases.add(phase);
+            }
+        }
+        phases.sort(Comparator.comparingLong(phase -> ends.get(phase.ordinal()) - durations.get(phase.ordinal())));
+
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(String.format("%-22s %8s %9s%n", "phase", "start", "duration"));
+        for (Phase phase : phases) {
+            long start = ends.get(phase.ordinal()) - durations.get(phase.ordinal()) - startNanos;
+            sb.append(String.format("%-22s %6dms %7dms%s%n", phase.getLabel(), TimeUnit.NANOSECONDS.toMillis(start),
+                getMillis(phase), criticalPath.contains(phase) ? " *" : ""));
+        }
+        sb.append("critical path:");
+        for (Phase phase : criticalPath) {
+            sb.append(' ').append(phase.getLabel()).append(" (").append(getMillis(phase)).append("ms)");
+            if (phase != criticalPath.get(criticalPath.size() - 1)) {
+                sb.append(" ->");
+            }
+        }
+        return sb.append(", total ").append(getTotalMillis()).append("ms").toString();
+    }
+
+    /**
+     * @return a single line like {@code api_create=120ms poll=5003ms ... total=6120ms}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(160);
+        for (Phase phase : Phase.values()) {
+            sb.append(phase.getLabel()).append('=').append(getMillis(phase)).append("ms ");
+        }
+        return sb.append("total=").append(getTotalMillis()).append("ms").toString();
+    }
+}
@@ -1,15 +1,107 @@
 package com.testingbot.tunnel;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide traffic counters.
+ *
+ * The counters are updated from every Jetty worker thread, so they are striped
+ * {@link LongAdder}s: recording never takes a lock and concurrent updates never
+ * get lost. Reads sum the stripes and are only a snapshot.
+ */
 public class Statistics {
-    private static long numberOfRequests = 0;
-    private static long startTime = 0;
-    private static long bytesTransferred = 0;
 
     /**
-     * @return the numberOfRequests
+     * The proxy path a request travelled through.
+     */
+    public enum Route {
+        HTTP("http"),
+        CONNECT("connect"),
+        WEBSOCKET("websocket"),
+        FORWARDER("forwarder");
+
+        private final String label;
+
+        Route(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * UPSTREAM is traffic from the browser towards the site under test (or the hub),
+     * DOWNSTREAM is the traffic flowing back.
+     */
+    public enum Direction {
+        UPSTREAM("upstream"),
+        DOWNSTREAM("downstream");
+
+        private final String label;
+
+        Direction(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final int ROUTES = Route.values().length;
+    private static final int DIRECTIONS = Direction.values().length;
+
+    private static final LongAdder[] requests = newAdders(ROUTES);
+    private static final LongAdder[] bytes = newAdders(ROUTES * DIRECTIONS);
+    private static final LongAdder[] openConnections = newAdders(ROUTES);
+    private static final LongAdder[] webSocketFrames = newAdders(DIRECTIONS);
+    private static final int COMMANDS = WebDriverCommand.values().length;
+    private static final LatencyHistogram[] webDriverTime = newHistograms(COMMANDS);
+    private static final LongAdder[] webDriverBytes = newAdders(COMMANDS * DIRECTIONS);
+    private static final LatencyHistogram[] timeToFirstByte = newHistograms(ROUTES);
+    private static final LatencyHistogram[] totalTime = newHistograms(ROUTES);
+    private static final LatencyHistogram[] forwarderBodySize = newHistograms(DIRECTIONS);
+    private static final long[] throughputWindowBytes = new long[ROUTES * DIRECTIONS];
+    private static final long[] throughputWindowStart = new long[ROUTES * DIRECTIONS];
+    private static final long[] throughput = new long[ROUTES * DIRECTIONS];
+    private static volatile long startTime = 0;
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static LatencyHistogram[] newHistograms(int size) {
+        LatencyHistogram[] histograms = new LatencyHistogram[size];
+        for (int i = 0; i < size; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * @return the total number of requests over all routes
      */
     public static long getNumberOfRequests() {
-        return numberOfRequests;
+        long total = 0;
+        for (LongAdder adder : requests) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param route the proxy path
+     * @return the number of requests handled by this route
+     */
+    public static long getNumberOfRequests(Route route) {
+        return requests[route.ordinal()].sum();
     }
 
     /**
@@ -27,17 +119,199 @@ public class Statistics {
     }
 
     /**
-     * @return the bytesTransferred
+     * @return the total number of bytes relayed over all routes, in both directions
      */
     public static long getBytesTransferred() {
-        return bytesTransferred;
+        long total = 0;
+        for (LongAdder adder : bytes) {
+            total += adder.sum();
+        }
+        return total;
     }
 
+    /**
+     * @param route the proxy path
+     * @param direction the direction of the traffic
+     * @return the number of bytes relayed by this route in the given direction
+     */
+    public static long getBytesTransferred(Route route, Direction direction) {
+        return bytes[route.ordinal() * DIRECTIONS + direction.ordinal()].sum();
+    }
+
+    /**
+     * Records response bytes of a plain HTTP request.
+     */
     public static void addBytesTransferred(long aBytesTransferred) {
-        bytesTransferred += aBytesTransferred;
+        addBytesTransferred(Route.HTTP, Direction.DOWNSTREAM, aBytesTransferred);
+    }
+
+    public static void addBytesTransferred(Route route, Direction direction, long aBytesTransferred) {
+        bytes[route.ordinal() * DIRECTIONS + direction.ordinal()].add(aBytesTransferred);
+    }
+
+    /**
+     * Bytes per second relayed by the route in the given direction, averaged
+     * over the time since the previous call that is at least a second ago.
+     * Meant to be polled, e.g. by the metrics endpoint.
+     *
+     * @param route the proxy path
+     * @param direction the direction of the traffic
+     * @return the throughput in bytes per second
+     */
+    public static synchronized long getThroughput(Route route, Direction direction) {
+        int index = route.ordinal() * DIRECTIONS + direction.ordinal();
+        long now = System.nanoTime();
+        long current = bytes[index].sum();
+        if (throughputWindowStart[index] == 0) {
+            throughputWindowStart[index] = now;
+            throughputWindowBytes[index] = current;
+        } else if (now - throughputWindowStart[index] >= 1_000_000_000L) {
+            throughput[index] = (current - throughputWindowBytes[index]) * 1_000_000_000L / (now - throughputWindowStart[index]);
+            throughputWindowStart[index] = now;
+            throughputWindowBytes[index] = current;
+        }
+        return throughput[index];
+    }
+
+    /**
+     * @param direction the direction of the traffic
+     * @return the number of WebSocket frames relayed in the given direction
+     */
+    public static long getWebSocketFrames(Direction direction) {
+        return webSocketFrames[direction.ordinal()].sum();
+    }
+
+    public static void addWebSocketFrames(Direction direction, long frames) {
+        webSocketFrames[direction.ordinal()].add(frames);
     }
 
+    /**
+     * Records a WebDriver command forwarded to the hub.
+     *
+     * @param command the command
+     * @param elapsedNanos time until the response of the hub was relayed
+     * @param requestBytes size of the command payload
+     * @param responseBytes size of the response payload
+     */
+    public static void addWebDriverCommand(WebDriverCommand command, long elapsedNanos, long requestBytes, long responseBytes) {
+        webDriverTime[command.ordinal()].record(elapsedNanos);
+        webDriverBytes[command.ordinal() * DIRECTIONS + Direction.UPSTREAM.ordinal()].add(requestBytes);
+        webDriverBytes[command.ordinal() * DIRECTIONS + Direction.DOWNSTREAM.ordinal()].add(responseBytes);
+    }
+
+    /**
+     * @param command the command
+     * @return the latencies of the command, its count is the number of times it was sent
+     */
+    public static LatencyHistogram getWebDriverTime(WebDriverCommand command) {
+        return webDriverTime[command.ordinal()];
+    }
+
+    /**
+     * @param command the command
+     * @param direction UPSTREAM for the command payloads, DOWNSTREAM for the responses
+     * @return the number of payload bytes
+     */
+    public static long getWebDriverBytes(WebDriverCommand command, Direction direction) {
+        return webDriverBytes[command.ordinal() * DIRECTIONS + direction.ordinal()].sum();
+    }
+
+    /**
+     * Records a plain HTTP request.
+     */
     public static void addRequest() {
-        numberOfRequests += 1;
+        addRequest(Route.HTTP);
+    }
+
+    public static void addRequest(Route route) {
+        requests[route.ordinal()].increment();
+    }
+
+    /**
+     * Marks a tunnel (CONNECT, WebSocket) or an in-flight request (HTTP, forwarder) as open.
+     */
+    public static void connectionOpened(Route route) {
+        openConnections[route.ordinal()].increment();
+    }
+
+    public static void connectionClosed(Route route) {
+        openConnections[route.ordinal()].decrement();
+    }
+
+    /**
+     * @param route the proxy path
+     * @return the number of tunnels or in-flight requests currently open on this route
+     */
+    public static long getOpenConnections(Route route) {
+        return openConnections[route.ordinal()].sum();
+    }
+
+    /**
+     * Time until the first response byte (for CONNECT: until the tunnel to the
+     * target is established).
+     *
+     * @param route the proxy path
+     * @return the histogram to record into or read from
+     */
+    public static LatencyHistogram getTimeToFirstByte(Route route) {
+        return timeToFirstByte[route.ordinal()];
+    }
+
+    /**
+     * Time until the response has been fully relayed (for CONNECT: the lifetime
+     * of the tunnel).
+     *
+     * @param route the proxy path
+     * @return the histogram to record into or read from
+     */
+    public static LatencyHistogram getTotalTime(Route route) {
+        return totalTime[route.ordinal()];
+    }
+
+    /**
+     * Sizes of the bodies relayed by the Selenium forwarder, in bytes.
+     *
+     * @param direction UPSTREAM for the request bodies, DOWNSTREAM for the response bodies
+     * @return the histogram to record into or read from
+     */
+    public static LatencyHistogram getForwarderBodySize(Direction direction) {
+        return forwarderBodySize[direction.ordinal()];
+    }
+
+    /**
+     * Clears all counters, used by tests.
+     */
+    static void reset() {
+        for (LongAdder adder : requests) {
+            adder.reset();
+        }
+        for (LongAdder adder : bytes) {
+            adder.reset();
+        }
+        for (LongAdder adder : openConnections) {
+            adder.reset();
+        }
+        for (LongAdder adder : webSocketFrames) {
+            adder.reset();
+        }
+        for (LongAdder adder : webDriverBytes) {
+            adder.reset();
+        }
+        for (LatencyHistogram histogram : webDriverTime) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : forwarderBodySize) {
+            histogram.reset();
+        }
+        synchronized (Statistics.class) {
+            Arrays.fill(throughputWindowBytes, 0);
+            Arrays.fill(throughputWindowStart, 0);
+            Arrays.fill(throughput, 0);
+        }
+        for (int i = 0; i < ROUTES; i++) {
+            timeToFirstByte[i].reset();
+            totalTime[i].reset();
+        }
+        startTime = 0;
     }
 }
@@ -0,0 +1,160 @@
+package com.testingbot.tunnel;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A tunnel as described by the TestingBot API.
+ *
+ * Read straight from the response stream, fields other than the ones below are
+ * skipped without being materialized.
+ */
+public final class TunnelInfo {
+    public static final String READY = "READY";
+
+    private final String id;
+    private final String state;
+    private final String ip;
+    private final String version;
+    private final String error;
+    private final String etag;
+
+    public TunnelInfo(String id, String state, String ip, String version, String error) {
+        this(id, state, ip, version, error, null);
+    }
+
+    TunnelInfo(String id, String state, String ip, String version, String error, String etag) {
+        this.id = id;
+        this.state = state;
+        this.ip = ip;
+        this.version = version;
+        this.error = error;
+        this.etag = etag;
+    }
+
+    /**
+     * @return this tunnel, tagged with the ETag of the response it was read from
+     */
+    TunnelInfo withEtag(String etag) {
+        return new TunnelInfo(id, state, ip, version, error, etag);
+    }
+
+    /**
+     * Reads a tunnel from a JSON object. Responses which wrap the object in a JSON
+     * string are unwrapped.
+     */
+    static TunnelInfo parse(JsonFactory factory, InputStream in) throws IOException {
+        try (JsonParser parser = factory.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_STRING) {
+                try (JsonParser wrapped = factory.createParser(parser.getText())) {
+                    return parse(wrapped, wrapped.nextToken());
+                }
+            }
+            return parse(parser, token);
+        }
+    }
+
+    private static TunnelInfo parse(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object but got " + token);
+        }
+        String id = null;
+        String state = null;
+        String ip = null;
+        String version = null;
+        String error = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            switch (name) {
+                case "id":
+                    id = scalar(parser);
+                    break;
+                case "state":
+                    state = scalar(parser);
+                    break;
+                case "ip":
+                    ip = scalar(parser);
+                    break;
+                case "version":
+                    version = scalar(parser);
+                    break;
+                case "error":
+                    error = scalar(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return new TunnelInfo(id, state, ip, version, error);
+    }
+
+    private static String scalar(JsonParser parser) throws IOException {
+        if (parser.currentToken().isScalarValue()) {
+            return parser.getValueAsString();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * @return the id of the tunnel, null in an error response
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the state of the tunnel VM, for example READY
+     */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return READY.equals(state);
+    }
+
+    /**
+     * @return the IP of the tunnel VM, once it is ready
+     */
+    public String getIp() {
+        return ip;
+    }
+
+    /**
+     * @return the latest version of the tunnel client
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the error the API reported, null when there is none
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean hasError() {
+        return error != null;
+    }
+
+    /**
+     * @return the ETag the API sent along, null when it did not send one
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelInfo{id=" + id + ", state=" + state + ", ip=" + ip + ", version=" + version
+            + (error == null ? "" : ", error=" + error) + "}";
+    }
+}
@@ -0,0 +1,216 @@
+package com.testingbot.tunnel;
+
+import java.util.Arrays;
+
+/**
+ * The W3C WebDriver commands, recognised from the method and path of a request
+ * to the Selenium forwarder.
+ *
+ * The route templates are compiled into a trie once. Matching walks the path
+ * segment by segment and compares them in place, so a lookup does not allocate.
+ */
+public enum WebDriverCommand {
+    NEW_SESSION("new_session", "POST", "/session"),
+    DELETE_SESSION("delete_session", "DELETE", "/session/{session}"),
+    STATUS("status", "GET", "/status"),
+    GET_TIMEOUTS("get_timeouts", "GET", "/session/{session}/timeouts"),
+    SET_TIMEOUTS("set_timeouts", "POST", "/session/{session}/timeouts"),
+    NAVIGATE_TO("navigate_to", "POST", "/session/{session}/url"),
+    GET_CURRENT_URL("get_current_url", "GET", "/session/{session}/url"),
+    BACK("back", "POST", "/session/{session}/back"),
+    FORWARD("forward", "POST", "/session/{session}/forward"),
+    REFRESH("refresh", "POST", "/session/{session}/refresh"),
+    GET_TITLE("get_title", "GET", "/session/{session}/title"),
+    GET_WINDOW_HANDLE("get_window_handle", "GET", "/session/{session}/window"),
+    CLOSE_WINDOW("close_window", "DELETE", "/session/{session}/window"),
+    SWITCH_TO_WINDOW("switch_to_window", "POST", "/session/{session}/window"),
+    GET_WINDOW_HANDLES("get_window_handles", "GET", "/session/{session}/window/handles"),
+    NEW_WINDOW("new_window", "POST", "/session/{session}/window/new"),
+    SWITCH_TO_FRAME("switch_to_frame", "POST", "/session/{session}/frame"),
+    SWITCH_TO_PARENT_FRAME("switch_to_parent_frame", "POST", "/session/{session}/frame/parent"),
+    GET_WINDOW_RECT("get_window_rect", "GET", "/session/{session}/window/rect"),
+    SET_WINDOW_RECT("set_window_rect", "POST", "/session/{session}/window/rect"),
+    MAXIMIZE_WINDOW("maximize_window", "POST", "/session/{session}/window/maximize"),
+    MINIMIZE_WINDOW("minimize_window", "POST", "/session/{session}/window/minimize"),
+    FULLSCREEN_WINDOW("fullscreen_window", "POST", "/session/{session}/window/fullscreen"),
+    GET_ACTIVE_ELEMENT("get_active_element", "GET", "/session/{session}/element/active"),
+    GET_ELEMENT_SHADOW_ROOT("get_element_shadow_root", "GET", "/session/{session}/element/{element}/shadow"),
+    FIND_ELEMENT("find_element", "POST", "/session/{session}/element"),
+    FIND_ELEMENTS("find_elements", "POST", "/session/{session}/elements"),
+    FIND_ELEMENT_FROM_ELEMENT("find_element_from_element", "POST", "/session/{session}/element/{element}/element"),
+    FIND_ELEMENTS_FROM_ELEMENT("find_elements_from_element", "POST", "/session/{session}/element/{element}/elements"),
+    FIND_ELEMENT_FROM_SHADOW_ROOT("find_element_from_shadow_root", "POST", "/session/{session}/shadow/{shadow}/element"),
+    FIND_ELEMENTS_FROM_SHADOW_ROOT("find_elements_from_shadow_root", "POST", "/session/{session}/shadow/{shadow}/elements"),
+    IS_ELEMENT_SELECTED("is_element_selected", "GET", "/session/{session}/element/{element}/selected"),
+    GET_ELEMENT_ATTRIBUTE("get_element_attribute", "GET", "/session/{session}/element/{element}/attribute/{name}"),
+    GET_ELEMENT_PROPERTY("get_element_property", "GET", "/session/{session}/element/{element}/property/{name}"),
+    GET_ELEMENT_CSS_VALUE("get_element_css_value", "GET", "/session/{session}/element/{element}/css/{name}"),
+    GET_ELEMENT_TEXT("get_element_text", "GET", "/session/{session}/element/{element}/text"),
+    GET_ELEMENT_TAG_NAME("get_element_tag_name", "GET", "/session/{session}/element/{element}/name"),
+    GET_ELEMENT_RECT("get_element_rect", "GET", "/session/{session}/element/{element}/rect"),
+    IS_ELEMENT_ENABLED("is_element_enabled", "GET", "/session/{session}/element/{element}/enabled"),
+    GET_COMPUTED_ROLE("get_computed_role", "GET", "/session/{session}/element/{element}/computedrole"),
+    GET_COMPUTED_LABEL("get_computed_label", "GET", "/session/{session}/element/{element}/computedlabel"),
+    ELEMENT_CLICK("element_click", "POST", "/session/{session}/element/{element}/click"),
+    ELEMENT_CLEAR("element_clear", "POST", "/session/{session}/element/{element}/clear"),
+    ELEMENT_SEND_KEYS("element_send_keys", "POST", "/session/{session}/element/{element}/value"),
+    GET_PAGE_SOURCE("get_page_source", "GET", "/session/{session}/source"),
+    EXECUTE_SCRIPT("execute_script", "POST", "/session/{session}/execute/sync"),
+    EXECUTE_ASYNC_SCRIPT("execute_async_script", "POST", "/session/{session}/execute/async"),
+    GET_ALL_COOKIES("get_all_cookies", "GET", "/session/{session}/cookie"),
+    GET_NAMED_COOKIE("get_named_cookie", "GET", "/session/{session}/cookie/{name}"),
+    ADD_COOKIE("add_cookie", "POST", "/session/{session}/cookie"),
+    DELETE_COOKIE("delete_cookie", "DELETE", "/session/{session}/cookie/{name}"),
+    DELETE_ALL_COOKIES("delete_all_cookies", "DELETE", "/session/{session}/cookie"),
+    PERFORM_ACTIONS("perform_actions", "POST", "/session/{session}/actions"),
+    RELEASE_ACTIONS("release_actions", "DELETE", "/session/{session}/actions"),
+    DISMISS_ALERT("dismiss_alert", "POST", "/session/{session}/alert/dismiss"),
+    ACCEPT_ALERT("accept_alert", "POST", "/session/{session}/alert/accept"),
+    GET_ALERT_TEXT("get_alert_text", "GET", "/session/{session}/alert/text"),
+    SEND_ALERT_TEXT("send_alert_text", "POST", "/session/{session}/alert/text"),
+    TAKE_SCREENSHOT("take_screenshot", "GET", "/session/{session}/screenshot"),
+    TAKE_ELEMENT_SCREENSHOT("take_element_screenshot", "GET", "/session/{session}/element/{element}/screenshot"),
+    PRINT_PAGE("print_page", "POST", "/session/{session}/print"),
+    OTHER("other", null, null);
+
+    /**
+     * Clients like Selenium Grid put the commands below a prefix such as /wd/hub.
+     */
+    private static final int MAX_PREFIX_SEGMENTS = 3;
+    private static final Node ROOT = new Node();
+
+    static {
+        for (WebDriverCommand command : values()) {
+            if (command.template != null) {
+                ROOT.add(command);
+            }
+        }
+    }
+
+    private final String label;
+    private final String method;
+    private final String template;
+
+    WebDriverCommand(String label, String method, String template) {
+        this.label = label;
+        this.method = method;
+        this.template = template;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param path the request path, without the query string
+     * @return the command, {@link #OTHER} when the request is not a known WebDriver command
+     */
+    public static WebDriverCommand match(String method, String path) {
+        if (method == null || path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return OTHER;
+        }
+        int start = 0;
+        for (int skipped = 0; skipped <= MAX_PREFIX_SEGMENTS; skipped++) {
+            WebDriverCommand command = ROOT.match(method, path, start);
+            if (command != null) {
+                return command;
+            }
+            start = path.indexOf('/', start + 1);
+            if (start == -1) {
+                break;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * One path segment of the trie. Literal children are tried before the wildcard.
+     */
+    private static final class Node {
+        private String[] literals = new String[0];
+        private Node[] children = new Node[0];
+        private Node wildcard;
+        private WebDriverCommand get;
+        private WebDriverCommand post;
+        private WebDriverCommand delete;
+
+        void add(WebDriverCommand command) {
+            Node node = this;
+            for (String segment : command.template.substring(1).split("/")) {
+                node = segment.startsWith("{") ? node.wildcard() : node.literal(segment);
+            }
+            switch (command.method) {
+                case "GET":
+                    node.get = command;
+                    break;
+                case "POST":
+                    node.post = command;
+                    break;
+                default:
+                    node.delete = command;
+                    break;
+            }
+        }
+
+        private Node wildcard() {
+            if (wildcard == null) {
+                wildcard = new Node();
+            }
+            return wildcard;
+        }
+
+        private Node literal(String segment) {
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].equals(segment)) {
+                    return children[i];
+                }
+            }
+            literals = Arrays.copyOf(literals, literals.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            literals[literals.length - 1] = segment;
+            children[children.length - 1] = new Node();
+            return children[children.length - 1];
+        }
+
+        /**
+         * @param position index of the '/' in front of the next segment, or the end of the path
+         */
+        WebDriverCommand match(String method, String path, int position) {
+            int start = position + 1;
+            if (start >= path.length()) {
+                return command(method);
+            }
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            int length = end - start;
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].length() == length && path.regionMatches(start, literals[i], 0, length)) {
+                    WebDriverCommand command = children[i].match(method, path, end);
+                    if (command != null) {
+                        return command;
+                    }
+                }
+            }
+            if (wildcard != null && length > 0) {
+                return wildcard.match(method, path, end);
+            }
+            return null;
+        }
+
+        private WebDriverCommand command(String method) {
+            switch (method) {
+                case "GET":
+                    return get;
+                case "POST":
+                    return post;
+                case "DELETE":
+                    return delete;
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.testingbot.tunnel.proxy;
+
+import org.eclipse.jetty.io.AbstractConnection;
+
+/**
+ * Per-connection read buffer size that follows the traffic of the connection.
+ *
+ * A read that fills the whole buffer means more data was waiting, so the
+ * buffer is doubled (up to {@link #MAX_SIZE}) for streams like video or large
+ * binary frames. After a run of small reads the buffer is halved again (down to
+ * {@link #MIN_SIZE}), so idle chatty sockets do not hold on to large buffers.
+ */
+final class AdaptiveBufferSize {
+    static final int MIN_SIZE = 1024;
+    static final int MAX_SIZE = 64 * 1024;
+    static final int SHRINK_AFTER = 8;
+
+    private final AbstractConnection connection;
+    private int size;
+    private int smallReads;
+
+    AdaptiveBufferSize(AbstractConnection connection, int initialSize) {
+        this.connection = connection;
+        this.size = Math.max(MIN_SIZE, Math.min(MAX_SIZE, initialSize));
+        connection.setInputBufferSize(size);
+    }
+
+    /**
+     * @param read the number of bytes the last read returned
+     */
+    void onRead(int read) {
+        if (read >= size) {
+            smallReads = 0;
+            if (size < MAX_SIZE) {
+                resize(size * 2);
+            }
+        } else if (read > 0 && read < size / 4) {
+            if (++smallReads >= SHRINK_AFTER) {
+                smallReads = 0;
+                if (size > MIN_SIZE) {
+                    resize(size / 2);
+                }
+            }
+        } else if (read > 0) {
+            smallReads = 0;
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    private void resize(int newSize) {
+        size = newSize;
+        connection.setInputBufferSize(newSize);
+    }
+}
@@ -1,24 +1,30 @@
 package com.testingbot.tunnel.proxy;
 
+import com.testingbot.tunnel.AccessLog;
 import com.testingbot.tunnel.App;
 import com.testingbot.tunnel.Statistics;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.SelectorManager;
 import org.eclipse.jetty.proxy.ConnectHandler;
 import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Promise;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,11 +32,16 @@ import java.util.logging.Logger;
  * Custom ConnectHandler for Jetty 11 that handles proxy connections.
  */
 public class CustomConnectHandler extends ConnectHandler {
+    private static final String START_NANOS_ATTRIBUTE = CustomConnectHandler.class.getName() + ".startNanos";
+    private static final String PROXY_TARGET_ATTRIBUTE = CustomConnectHandler.class.getName() + ".proxyTarget";
     private boolean debugMode = false;
 
     private final String proxyHost;
     private final int proxyPort;
     private String proxyAuth = null;
+    private UpstreamProxyPool proxyPool;
+    private int selectors = WebsocketHandler.defaultSelectors();
+    private boolean directRelay = false;
 
     public CustomConnectHandler(final App app) {
         final String proxy = app.getProxy();
@@ -53,17 +64,43 @@ public class CustomConnectHandler extends ConnectHandler {
         }
     }
 
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors) {
+        this.selectors = selectors;
+    }
+
+    @Override
+    protected SelectorManager newSelectorManager() {
+        return new ConnectManager(getExecutor(), getScheduler(), selectors) {
+        };
+    }
+
+    /**
+     * @param directRelay relay the tunnels with {@link DirectRelay} instead of the relay loop of Jetty
+     */
+    public void setDirectRelay(boolean directRelay) {
+        this.directRelay = directRelay;
+    }
+
     public void setDebugMode(boolean mode) {
         debugMode = mode;
     }
 
+    /**
+     * @param pool warm connections to the upstream proxy, used instead of connecting for every CONNECT
+     */
+    public void setUpstreamProxyPool(UpstreamProxyPool pool) {
+        proxyPool = pool;
+    }
+
     @Override
     public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        String method = request.getMethod();
-        Statistics.addRequest();
-
         if (HttpMethod.CONNECT.is(request.getMethod())) {
-            Logger.getLogger(CustomConnectHandler.class.getName()).log(Level.INFO, "[{0}] {1} ({2})", new Object[]{method, request.getRequestURL().toString().split(":443")[0].replaceAll("http:", "https:"), response.toString().substring(9, 12)});
+            request.setAttribute(START_NANOS_ATTRIBUTE, System.nanoTime());
+            Statistics.addRequest(Statistics.Route.CONNECT);
         }
 
         if (debugMode) {
@@ -83,6 +120,67 @@ public class CustomConnectHandler extends ConnectHandler {
         super.handle(target, baseRequest, request, response);
     }
 
+    @Override
+    protected DownstreamConnection newDownstreamConnection(EndPoint endPoint, ConcurrentMap<String, Object> context) {
+        return new DownstreamConnection(endPoint, getExecutor(), getByteBufferPool(), context) {
+            private DirectRelay relay;
+
+            @Override
+            public void onFillable() {
+                if (!directRelay) {
+                    super.onFillable();
+                    return;
+                }
+                if (relay == null) {
+                    relay = new DirectRelay(this, this::read);
+                }
+                relay.iterate();
+            }
+
+            @Override
+            protected int read(EndPoint endPoint, ByteBuffer buffer) throws IOException {
+                int read = super.read(endPoint, buffer);
+                if (read > 0) {
+                    Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.UPSTREAM, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    protected void onConnectSuccess(ConnectContext connectContext, UpstreamConnection upstreamConnection) {
+        HttpServletRequest request = connectContext.getRequest();
+        long startNanos = startNanos(request);
+        long elapsed = startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+        if (startNanos != 0) {
+            Statistics.getTimeToFirstByte(Statistics.Route.CONNECT).record(elapsed);
+        }
+        logConnect(request, HttpServletResponse.SC_OK, elapsed);
+        super.onConnectSuccess(connectContext, upstreamConnection);
+    }
+
+    @Override
+    protected void onConnectFailure(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, Throwable failure) {
+        long startNanos = startNanos(request);
+        logConnect(request, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, startNanos == 0 ? 0 : System.nanoTime() - startNanos);
+        super.onConnectFailure(request, response, asyncContext, failure);
+    }
+
+    private static void logConnect(HttpServletRequest request, int status, long elapsed) {
+        AccessLog.getInstance().log(Statistics.Route.CONNECT, request.getMethod(), "https", request.getServerName(), request.getServerPort(), null, status, elapsed);
+    }
+
+    @Override
+    protected UpstreamConnection newUpstreamConnection(EndPoint endPoint, ConnectContext connectContext) {
+        return new TunnelConnection(endPoint, connectContext);
+    }
+
+    private static long startNanos(HttpServletRequest request) {
+        Object start = request.getAttribute(START_NANOS_ATTRIBUTE);
+        return start instanceof Long ? (Long) start : 0;
+    }
+
     @Override
     protected void connectToServer(HttpServletRequest request, String host, int port, Promise<SocketChannel> promise) {
         if (proxyHost == null) {
@@ -92,78 +190,27 @@ public class CustomConnectHandler extends ConnectHandler {
         }
     }
 
+    /**
+     * Only opens (or takes a warm one from the pool) the connection to the upstream proxy, the CONNECT exchange with it
+     * happens asynchronously in {@link TunnelConnection} once the selector reports
+     * the connection as established.
+     */
     private void connectToProxy(HttpServletRequest request, String host, int port, Promise<SocketChannel> promise) {
-        SocketChannel channel = null;
-        Selector selector = null;
+        request.setAttribute(PROXY_TARGET_ATTRIBUTE, host + ":" + port);
+        SocketChannel channel = proxyPool == null ? null : proxyPool.acquire();
+        if (channel != null) {
+            promise.succeeded(channel);
+            return;
+        }
+
         try {
             channel = SocketChannel.open();
             channel.socket().setTcpNoDelay(true);
             channel.configureBlocking(false);
             channel.connect(newConnectAddress(proxyHost, proxyPort));
-
-            selector = Selector.open();
-            channel.register(selector, SelectionKey.OP_CONNECT);
-            while (selector.select() > 0) {
-                final Set<SelectionKey> keys = selector.selectedKeys();
-                final Iterator<SelectionKey> iterator = keys.iterator();
-                while (iterator.hasNext()) {
-                    final SelectionKey key = iterator.next();
-                    iterator.remove();
-
-                    if (key.isConnectable()) {
-                        if (!channel.finishConnect()) {
-                            throw new IOException("Failure: channel.finishConnect()");
-                        }
-
-                        channel.register(selector, SelectionKey.OP_READ);
-
-                        final StringBuilder connect = new StringBuilder();
-                        connect.append(request.getMethod()).append(' ').append(host).append(':').append(port).append(' ').append(request.getProtocol());
-                        final Enumeration<String> headerNames = request.getHeaderNames();
-                        while (headerNames.hasMoreElements()) {
-                            final String headerName = headerNames.nextElement();
-                            final String headerValue = request.getHeader(headerName);
-                            connect.append('\n').append(headerName).append(": ").append(headerValue);
-                        }
-
-                        if (proxyAuth != null)
-                            connect.append("\nProxy-Authorization: Basic ").append(proxyAuth);
-
-                        connect.append("\r\n\r\n");
-
-                        final ByteBuffer buffer = ByteBuffer.wrap(connect.toString().getBytes());
-                        while (buffer.hasRemaining())
-                            channel.write(buffer);
-                    } else if (key.isReadable() && channel.isConnected()) {
-                        final ByteBuffer buffer = ByteBuffer.allocate(1024);
-                        final StringBuilder response = new StringBuilder();
-                        while (channel.read(buffer) > 0) {
-                            buffer.flip();
-                            while (buffer.hasRemaining())
-                                response.append((char) buffer.get());
-                        }
-
-                        String responseStr = response.toString();
-                        if (!responseStr.contains("200")) {
-                            String errorMsg = String.format("Upstream proxy (%s:%d) rejected CONNECT request to %s:%d. Response: %s",
-                                    proxyHost, proxyPort, host, port, responseStr.split("\r\n")[0]);
-                            throw new IOException(errorMsg);
-                        }
-
-                        if (debugMode) {
-                            LOG.info("Successfully established CONNECT tunnel through upstream proxy {}:{} to {}:{}",
-                                    proxyHost, proxyPort, host, port);
-                        }
-
-                        selector.close();
-                        promise.succeeded(channel);
-                        return;
-                    }
-                }
-            }
+            promise.succeeded(channel);
         } catch (IOException x) {
-            LOG.error("Failed to establish CONNECT tunnel through upstream proxy {}:{} to {}:{}: {}",
-                    proxyHost, proxyPort, host, port, x.getMessage());
+            LOG.error("Failed to connect to upstream proxy {}:{}: {}", proxyHost, proxyPort, x.getMessage());
             if (channel != null) {
                 try {
                     channel.close();
@@ -171,14 +218,128 @@ public class CustomConnectHandler extends ConnectHandler {
                     LOG.error("Error closing channel after failure: {}", t.getMessage(), t);
                 }
             }
-            if (selector != null) {
-                try {
-                    selector.close();
-                } catch (IOException t) {
-                    LOG.error("Error closing selector after failure: {}", t.getMessage(), t);
+            promise.failed(x);
+        }
+    }
+
+    private ByteBuffer newProxyConnectRequest(HttpServletRequest request, String target) {
+        StringBuilder connect = new StringBuilder(256);
+        connect.append("CONNECT ").append(target).append(" HTTP/1.1\r\n");
+        connect.append("Host: ").append(target).append("\r\n");
+        Enumeration<String> headerNames = request.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            String headerName = headerNames.nextElement();
+            if (HttpHeader.HOST.is(headerName) || (proxyAuth != null && HttpHeader.PROXY_AUTHORIZATION.is(headerName))) {
+                continue;
+            }
+            connect.append(headerName).append(": ").append(request.getHeader(headerName)).append("\r\n");
+        }
+        if (proxyAuth != null) {
+            connect.append("Proxy-Authorization: Basic ").append(proxyAuth).append("\r\n");
+        }
+        connect.append("\r\n");
+        return ByteBuffer.wrap(connect.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Connection to the target (or to the upstream proxy, which is asked to CONNECT
+     * to the target first). Counts the bytes coming back from the target.
+     */
+    private class TunnelConnection extends UpstreamConnection implements HttpHandshake.Listener {
+        private final ConnectContext connectContext;
+        private final long startNanos;
+        private ByteBuffer pending;
+        private DirectRelay relay;
+
+        TunnelConnection(EndPoint endPoint, ConnectContext connectContext) {
+            super(endPoint, CustomConnectHandler.this.getExecutor(), CustomConnectHandler.this.getByteBufferPool(), connectContext);
+            this.connectContext = connectContext;
+            this.startNanos = startNanos(connectContext.getRequest());
+        }
+
+        @Override
+        public void onOpen() {
+            Statistics.connectionOpened(Statistics.Route.CONNECT);
+            Object target = connectContext.getRequest().getAttribute(PROXY_TARGET_ATTRIBUTE);
+            if (target == null) {
+                super.onOpen();
+            } else {
+                new HttpHandshake(getEndPoint(), getByteBufferPool(), this)
+                    .start(newProxyConnectRequest(connectContext.getRequest(), target.toString()));
+            }
+        }
+
+        @Override
+        public void onResponse(int status, String reason, HttpFields headers, ByteBuffer remaining) {
+            Object target = connectContext.getRequest().getAttribute(PROXY_TARGET_ATTRIBUTE);
+            if (status != HttpServletResponse.SC_OK) {
+                onFailure(new IOException(String.format("Upstream proxy (%s:%d) rejected CONNECT request to %s. Response: %d %s",
+                        proxyHost, proxyPort, target, status, reason == null ? "" : reason)));
+                return;
+            }
+            if (debugMode) {
+                LOG.info("Successfully established CONNECT tunnel through upstream proxy {}:{} to {}", proxyHost, proxyPort, target);
+            }
+            if (remaining.hasRemaining()) {
+                pending = remaining;
+            }
+            super.onOpen();
+        }
+
+        @Override
+        public void onFailure(Throwable failure) {
+            LOG.error("Failed to establish CONNECT tunnel through upstream proxy {}:{} to {}: {}",
+                    proxyHost, proxyPort, connectContext.getRequest().getAttribute(PROXY_TARGET_ATTRIBUTE), failure.getMessage());
+            close(failure);
+            onConnectFailure(connectContext.getRequest(), connectContext.getResponse(), connectContext.getAsyncContext(), failure);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            if (pending != null) {
+                // bytes the proxy sent right after its response, relay them without waiting for more
+                getExecutor().execute(this::onFillable);
+            } else {
+                super.onComplete(event);
+            }
+        }
+
+        @Override
+        public void onClose(Throwable cause) {
+            Statistics.connectionClosed(Statistics.Route.CONNECT);
+            if (startNanos != 0) {
+                Statistics.getTotalTime(Statistics.Route.CONNECT).record(System.nanoTime() - startNanos);
+            }
+            super.onClose(cause);
+        }
+
+        @Override
+        public void onFillable() {
+            if (!directRelay) {
+                super.onFillable();
+                return;
+            }
+            if (relay == null) {
+                relay = new DirectRelay(this, this::read);
+            }
+            relay.iterate();
+        }
+
+        @Override
+        protected int read(EndPoint endPoint, ByteBuffer buffer) throws IOException {
+            int read;
+            if (pending != null) {
+                read = BufferUtil.append(buffer, pending);
+                if (!pending.hasRemaining()) {
+                    pending = null;
                 }
+            } else {
+                read = super.read(endPoint, buffer);
             }
-            promise.failed(x);
+            if (read > 0) {
+                Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.DOWNSTREAM, read);
+            }
+            return read;
         }
     }
 }
@@ -0,0 +1,138 @@
+package com.testingbot.tunnel.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.proxy.ProxyConnection;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.IteratingCallback;
+
+/**
+ * Relay loop for opaque tunnels (CONNECT, WebSocket), used instead of the one
+ * of {@link ProxyConnection} when the direct relay is enabled.
+ *
+ * While the socket keeps filling whole buffers, up to {@link #MAX_BUFFERS}
+ * pooled direct buffers are read before they are written to the other side
+ * with one gathering write, so large transfers need fewer write calls. The
+ * buffers come from a pool of its own, see {@link #newBufferPool()}.
+ */
+public final class DirectRelay extends IteratingCallback {
+    static final int MAX_BUFFERS = 4;
+    static final int MIN_CAPACITY = 1024;
+    static final int MAX_CAPACITY = 64 * 1024;
+    static final long MAX_DIRECT_MEMORY = 64L * 1024 * 1024;
+
+    /**
+     * The read method of the relaying connection, which keeps its own accounting.
+     */
+    interface Reader {
+        int read(EndPoint endPoint, ByteBuffer buffer) throws IOException;
+    }
+
+    private final ProxyConnection connection;
+    private final ByteBufferPool bufferPool;
+    private final Reader reader;
+    // one array per batch size, so a gathering write does not allocate
+    private final ByteBuffer[][] batches = new ByteBuffer[MAX_BUFFERS][];
+    private ByteBuffer[] batch;
+
+    DirectRelay(ProxyConnection connection, Reader reader) {
+        this.connection = connection;
+        this.bufferPool = connection.getByteBufferPool();
+        this.reader = reader;
+        for (int i = 0; i < MAX_BUFFERS; i++) {
+            batches[i] = new ByteBuffer[i + 1];
+        }
+    }
+
+    /**
+     * Buffer pool for the tunnels with size classes from {@value #MIN_CAPACITY} bytes
+     * to {@value #MAX_CAPACITY} bytes and at most {@value #MAX_DIRECT_MEMORY} bytes of
+     * idle direct memory.
+     */
+    public static ByteBufferPool newBufferPool() {
+        return new ArrayByteBufferPool(MIN_CAPACITY, MIN_CAPACITY, MAX_CAPACITY, -1, 0, MAX_DIRECT_MEMORY);
+    }
+
+    @Override
+    protected Action process() {
+        ByteBuffer[] buffers = batches[MAX_BUFFERS - 1];
+        int count = 0;
+        int filled = 0;
+        try {
+            while (count < MAX_BUFFERS) {
+                ByteBuffer buffer = bufferPool.acquire(connection.getInputBufferSize(), true);
+                filled = reader.read(connection.getEndPoint(), buffer);
+                if (filled <= 0) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+                buffers[count++] = buffer;
+                if (BufferUtil.space(buffer) > 0) {
+                    // the socket has been drained
+                    break;
+                }
+            }
+        } catch (IOException x) {
+            release(buffers, count);
+            disconnect();
+            return Action.SUCCEEDED;
+        }
+
+        if (count > 0) {
+            batch = batches[count - 1];
+            if (batch != buffers) {
+                System.arraycopy(buffers, 0, batch, 0, count);
+                clear(buffers, count);
+            }
+            // an end of stream is seen again by the next iteration
+            connection.getConnection().getEndPoint().write(this, batch);
+            return Action.SCHEDULED;
+        }
+        if (filled == 0) {
+            connection.fillInterested();
+            return Action.IDLE;
+        }
+        connection.getConnection().getEndPoint().shutdownOutput();
+        return Action.SUCCEEDED;
+    }
+
+    @Override
+    public void succeeded() {
+        releaseBatch();
+        super.succeeded();
+    }
+
+    @Override
+    protected void onCompleteFailure(Throwable x) {
+        releaseBatch();
+        disconnect();
+    }
+
+    private void releaseBatch() {
+        if (batch != null) {
+            release(batch, batch.length);
+            batch = null;
+        }
+    }
+
+    private void release(ByteBuffer[] buffers, int count) {
+        for (int i = 0; i < count; i++) {
+            bufferPool.release(buffers[i]);
+        }
+        clear(buffers, count);
+    }
+
+    private static void clear(ByteBuffer[] buffers, int count) {
+        for (int i = 0; i < count; i++) {
+            buffers[i] = null;
+        }
+    }
+
+    private void disconnect() {
+        connection.close();
+        connection.getConnection().close();
+    }
+}
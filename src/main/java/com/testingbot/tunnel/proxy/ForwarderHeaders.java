@@ -0,0 +1,73 @@
+package com.testingbot.tunnel.proxy;
+
+import com.testingbot.tunnel.App;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+
+/**
+ * The TB-* headers the forwarder adds to every WebDriver command, with the local
+ * port of the SSH forward the commands are sent to.
+ *
+ * They only depend on the tunnel settings, so they are built once and kept
+ * pre-encoded; applying them to a request copies references. A new instance is
+ * built when the settings change, e.g. the server IP after a reconnect, or the
+ * server IP and the port together after a failover to a standby tunnel.
+ */
+public final class ForwarderHeaders {
+    private final String serverIP;
+    private final int sshPort;
+    private final List<HttpField> fields;
+    private final Consumer<HttpFields.Mutable> apply;
+
+    private ForwarderHeaders(String serverIP, int sshPort, List<HttpField> fields) {
+        this.serverIP = serverIP;
+        this.sshPort = sshPort;
+        this.fields = Collections.unmodifiableList(fields);
+        this.apply = headers -> {
+            for (HttpField field : this.fields) {
+                headers.put(field);
+            }
+        };
+    }
+
+    public static ForwarderHeaders of(App app) {
+        List<HttpField> fields = new ArrayList<>(5);
+        if (app.getServerIP() != null) {
+            fields.add(new PreEncodedHttpField("TB-Tunnel", app.getServerIP()));
+        }
+        fields.add(new PreEncodedHttpField("TB-Tunnel-Version", App.VERSION.toString()));
+        fields.add(new PreEncodedHttpField("TB-Credentials", app.getClientKey() + "_" + app.getClientSecret()));
+        if (app.isBypassingSquid()) {
+            fields.add(new PreEncodedHttpField("TB-Tunnel-Port", "2010"));
+        }
+        if (app.getPac() != null) {
+            fields.add(new PreEncodedHttpField("TB-Tunnel-Pac", app.getPac()));
+        }
+        return new ForwarderHeaders(app.getServerIP(), app.getSSHPort(), fields);
+    }
+
+    public void applyTo(Request proxyRequest) {
+        proxyRequest.headers(apply);
+    }
+
+    public String getServerIP() {
+        return serverIP;
+    }
+
+    /**
+     * @return the local port of the SSH forward to the hub
+     */
+    public int getSshPort() {
+        return sshPort;
+    }
+
+    public List<HttpField> getFields() {
+        return fields;
+    }
+}
@@ -1,44 +1,222 @@
 package com.testingbot.tunnel.proxy;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.testingbot.tunnel.AccessLog;
 import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.OpenMetrics;
+import com.testingbot.tunnel.OpenMetrics.Family;
+import com.testingbot.tunnel.Statistics;
+import com.testingbot.tunnel.WebDriverCommand;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.client.AbstractConnectionPool;
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.Destination;
 import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.AsyncRequestContent;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpHeaderValue;
+import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.proxy.AsyncProxyServlet;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.util.Callback;
 import java.util.Enumeration;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Forwards the WebDriver commands of the Selenium tests through the SSH port forward to the hub.
+ *
+ * Every new connection to the forwarded port opens a new SSH channel, so the
+ * connections to it are kept alive and reused. The commands of one WebDriver
+ * session are tagged with the session id, which gives every session its own
+ * pool (a Jetty destination) and keeps its sequential commands on the same
+ * connection.
+ *
+ * Bodies are streamed one buffer at a time, so large screenshots or uploads are
+ * never held in memory as a whole. Bodies over the limits of the {@link App} are
+ * refused with a WebDriver error.
+ */
 public class ForwarderServlet extends AsyncProxyServlet {
+    private static final String SESSION_SEGMENT = "/session/";
+    private static final long DESTINATION_IDLE_TIMEOUT = 440000;
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String HEADERS_ATTRIBUTE = ForwarderServlet.class.getName() + ".headers";
+    private static final String REQUEST_BYTES_ATTRIBUTE = ForwarderServlet.class.getName() + ".requestBytes";
+
     private final App app;
+    private final LongAdder saturated = new LongAdder();
+    private final AtomicReference<ForwarderHeaders> headers;
 
     public ForwarderServlet(App app) {
         this.app = app;
+        this.headers = new AtomicReference<>(ForwarderHeaders.of(app));
+    }
+
+    /**
+     * Rebuilds the TB-* headers from the current settings, requests being forwarded
+     * right now keep the ones they started with.
+     */
+    public void refreshHeaders() {
+        headers.set(ForwarderHeaders.of(app));
     }
 
     @Override
     protected String rewriteTarget(HttpServletRequest request) {
-        return "http://127.0.0.1:" + app.getSSHPort() + request.getRequestURI();
+        // the port and the TB-Tunnel header of a request come from the same settings, a failover switches both at once
+        ForwarderHeaders current = headers.get();
+        request.setAttribute(HEADERS_ATTRIBUTE, current);
+        return "http://127.0.0.1:" + current.getSshPort() + request.getRequestURI();
+    }
+
+    /**
+     * @param sshPort local port of an SSH forward to the hub
+     * @return the requests being relayed or waiting for a connection to that port
+     */
+    public long getActiveRequests(int sshPort) {
+        long sum = 0;
+        for (Destination destination : getHttpClient().getDestinations()) {
+            if (destination instanceof HttpDestination && destination.getPort() == sshPort) {
+                HttpDestination httpDestination = (HttpDestination) destination;
+                sum += httpDestination.getQueuedRequestCount();
+                ConnectionPool pool = httpDestination.getConnectionPool();
+                if (pool instanceof AbstractConnectionPool) {
+                    sum += ((AbstractConnectionPool) pool).getActiveConnectionCount();
+                }
+            }
+        }
+        return sum;
     }
 
     @Override
-    protected void addProxyHeaders(HttpServletRequest clientRequest, Request proxyRequest) {
-        super.addProxyHeaders(clientRequest, proxyRequest);
+    protected HttpClient newHttpClient() {
+        HttpClient client = super.newHttpClient();
+        // sessions which are done release their pool
+        client.setDestinationIdleTimeout(DESTINATION_IDLE_TIMEOUT);
+        // heap buffers from the pool are relayed as they are, direct ones would be copied into a new array per chunk
+        client.setUseInputDirectByteBuffers(false);
+        return client;
+    }
+
+    @Override
+    protected HttpClient createHttpClient() throws ServletException {
+        HttpClient client = super.createHttpClient();
+        OpenMetrics.gauge("tunnel_forwarder_sessions", "WebDriver sessions with their own connection pool to the hub")
+            .sample("", () -> countSessions(client));
+        Family connections = OpenMetrics.gauge("tunnel_forwarder_connections", "Connections from the forwarder to the hub");
+        connections.sample(OpenMetrics.label("state", "active"), () -> sumPools(client, AbstractConnectionPool::getActiveConnectionCount));
+        connections.sample(OpenMetrics.label("state", "idle"), () -> sumPools(client, AbstractConnectionPool::getIdleConnectionCount));
+        connections.sample(OpenMetrics.label("state", "pending"), () -> sumPools(client, AbstractConnectionPool::getPendingConnectionCount));
+        OpenMetrics.gauge("tunnel_forwarder_connections_max", "Maximum connections per pool of the forwarder")
+            .sample("", client::getMaxConnectionsPerDestination);
+        OpenMetrics.gauge("tunnel_forwarder_queued_requests", "Requests waiting for a connection to the hub")
+            .sample("", () -> sumQueued(client));
+        OpenMetrics.counter("tunnel_forwarder_saturated", "Requests which found all connections of their pool busy")
+            .sample("", saturated::sum);
+        return client;
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        long limit = app.getMaxRequestSize();
+        long length = request.getContentLengthLong();
+        if (limit > 0 && length > limit) {
+            Logger.getLogger(ForwarderServlet.class.getName()).log(Level.WARNING, "Refused request {0} with a body of {1} bytes, the limit is {2} bytes", new Object[]{request.getRequestURI(), String.valueOf(length), String.valueOf(limit)});
+            writeWebDriverError(response, BodyTooLargeException.request(length, limit));
+            return;
+        }
+        super.service(request, response);
+    }
+
+    @Override
+    protected void sendProxyRequest(HttpServletRequest clientRequest, HttpServletResponse proxyResponse, Request proxyRequest) {
+        String sessionId = sessionId(clientRequest.getRequestURI());
+        if (sessionId != null) {
+            proxyRequest.tag(sessionId);
+        }
+        Destination destination = getHttpClient().resolveDestination(proxyRequest);
+        if (destination instanceof HttpDestination) {
+            ConnectionPool pool = ((HttpDestination) destination).getConnectionPool();
+            if (pool instanceof AbstractConnectionPool) {
+                AbstractConnectionPool connectionPool = (AbstractConnectionPool) pool;
+                if (connectionPool.getIdleConnectionCount() == 0 && connectionPool.getConnectionCount() >= connectionPool.getMaxConnectionCount()) {
+                    saturated.increment();
+                }
+            }
+        }
+        super.sendProxyRequest(clientRequest, proxyResponse, proxyRequest);
+    }
+
+    /**
+     * @param path the request path, for example /wd/hub/session/{id}/url
+     * @return the WebDriver session id in the path, or null for commands outside of a session
+     */
+    static String sessionId(String path) {
+        if (path == null) {
+            return null;
+        }
+        int start = path.indexOf(SESSION_SEGMENT);
+        if (start == -1) {
+            return null;
+        }
+        start += SESSION_SEGMENT.length();
+        int end = path.indexOf('/', start);
+        if (end == -1) {
+            end = path.length();
+        }
+        return end > start ? path.substring(start, end) : null;
+    }
+
+    private static long countSessions(HttpClient client) {
+        long count = 0;
+        for (Destination destination : client.getDestinations()) {
+            if (destination instanceof HttpDestination && ((HttpDestination) destination).getOrigin().getTag() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-        proxyRequest.header("TB-Tunnel", this.app.getServerIP());
-        proxyRequest.header("TB-Tunnel-Version", App.VERSION.toString());
-        proxyRequest.header("TB-Credentials", this.app.getClientKey() + "_" + this.app.getClientSecret());
-        if (this.app.isBypassingSquid()) {
-            proxyRequest.header("TB-Tunnel-Port", "2010");
+    private static long sumPools(HttpClient client, ToIntFunction<AbstractConnectionPool> count) {
+        long sum = 0;
+        for (Destination destination : client.getDestinations()) {
+            if (destination instanceof HttpDestination) {
+                ConnectionPool pool = ((HttpDestination) destination).getConnectionPool();
+                if (pool instanceof AbstractConnectionPool) {
+                    sum += count.applyAsInt((AbstractConnectionPool) pool);
+                }
+            }
         }
+        return sum;
+    }
 
-        if (this.app.getPac() != null) {
-            proxyRequest.header("TB-Tunnel-Pac", this.app.getPac());
+    private static long sumQueued(HttpClient client) {
+        long sum = 0;
+        for (Destination destination : client.getDestinations()) {
+            if (destination instanceof HttpDestination) {
+                sum += ((HttpDestination) destination).getQueuedRequestCount();
+            }
         }
+        return sum;
+    }
 
-        Logger.getLogger(ForwarderServlet.class.getName()).log(Level.INFO, "[{0}] {1}", new Object[]{clientRequest.getMethod(), clientRequest.getRequestURL()});
+    @Override
+    protected void addProxyHeaders(HttpServletRequest clientRequest, Request proxyRequest) {
+        super.addProxyHeaders(clientRequest, proxyRequest);
+        ForwarderHeaders current = (ForwarderHeaders) clientRequest.getAttribute(HEADERS_ATTRIBUTE);
+        (current == null ? headers.get() : current).applyTo(proxyRequest);
 
         if (app.isDebugMode()) {
             Enumeration<String> headerNames = clientRequest.getHeaderNames();
@@ -55,15 +233,181 @@ public class ForwarderServlet extends AsyncProxyServlet {
         }
     }
 
+    @Override
+    protected void onResponseContent(HttpServletRequest request, HttpServletResponse response, Response proxyResponse, byte[] buffer, int offset, int length, Callback callback) {
+        Statistics.addBytesTransferred(Statistics.Route.FORWARDER, Statistics.Direction.DOWNSTREAM, length);
+        super.onResponseContent(request, response, proxyResponse, buffer, offset, length, callback);
+    }
+
+    @Override
+    protected ReadListener newReadListener(HttpServletRequest request, HttpServletResponse response, Request proxyRequest, AsyncRequestContent content) {
+        long limit = app.getMaxRequestSize();
+        return new StreamReader(request, response, proxyRequest, content) {
+            private long requestBytes;
+
+            @Override
+            protected void onRequestContent(HttpServletRequest request, Request proxyRequest, AsyncRequestContent content, byte[] buffer, int offset, int length, Callback callback) {
+                requestBytes += length;
+                if (limit > 0 && requestBytes > limit) {
+                    // a chunked body without a Content-Length
+                    callback.failed(BodyTooLargeException.request(requestBytes, limit));
+                    return;
+                }
+                // read by the response listener, a chunked body has no Content-Length
+                request.setAttribute(REQUEST_BYTES_ATTRIBUTE, requestBytes);
+                Statistics.addBytesTransferred(Statistics.Route.FORWARDER, Statistics.Direction.UPSTREAM, length);
+                super.onRequestContent(request, proxyRequest, content, buffer, offset, length, callback);
+            }
+
+            @Override
+            public void onAllDataRead() {
+                Statistics.getForwarderBodySize(Statistics.Direction.UPSTREAM).record(requestBytes);
+                super.onAllDataRead();
+            }
+        };
+    }
+
+    @Override
+    protected Response.Listener newProxyResponseListener(HttpServletRequest request, HttpServletResponse response) {
+        Statistics.connectionOpened(Statistics.Route.FORWARDER);
+        long limit = app.getMaxResponseSize();
+        return new ProxyResponseListener(request, response) {
+            private final long startNanos = System.nanoTime();
+            private long responseBytes;
+
+            @Override
+            public void onHeaders(Response proxyResponse) {
+                long length = proxyResponse.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH);
+                if (limit > 0 && length > limit) {
+                    proxyResponse.abort(BodyTooLargeException.response(length, limit));
+                    return;
+                }
+                super.onHeaders(proxyResponse);
+            }
+
+            @Override
+            public void onContent(Response proxyResponse, ByteBuffer content, Callback callback) {
+                responseBytes += content.remaining();
+                if (limit > 0 && responseBytes > limit) {
+                    callback.failed(BodyTooLargeException.response(responseBytes, limit));
+                    return;
+                }
+                super.onContent(proxyResponse, content, callback);
+            }
+
+            @Override
+            public void onBegin(Response proxyResponse) {
+                Statistics.getTimeToFirstByte(Statistics.Route.FORWARDER).record(System.nanoTime() - startNanos);
+                super.onBegin(proxyResponse);
+            }
+
+            @Override
+            public void onComplete(Result result) {
+                long elapsed = System.nanoTime() - startNanos;
+                Statistics.addRequest(Statistics.Route.FORWARDER);
+                Statistics.getTotalTime(Statistics.Route.FORWARDER).record(elapsed);
+                Statistics.connectionClosed(Statistics.Route.FORWARDER);
+                Statistics.getForwarderBodySize(Statistics.Direction.DOWNSTREAM).record(responseBytes);
+                WebDriverCommand command = WebDriverCommand.match(request.getMethod(), request.getRequestURI());
+                Object requestBytes = request.getAttribute(REQUEST_BYTES_ATTRIBUTE);
+                Statistics.addWebDriverCommand(command, elapsed, requestBytes instanceof Long ? (Long) requestBytes : 0, responseBytes);
+                OpenMetrics.exportWebDriverCommand(command);
+                // a refused body is answered after this
+                int status = result.getFailure() instanceof BodyTooLargeException ? ((BodyTooLargeException) result.getFailure()).getStatus() : response.getStatus();
+                AccessLog.getInstance().log(Statistics.Route.FORWARDER, request.getMethod(), request.getScheme(), request.getServerName(), request.getServerPort(), request.getRequestURI(), status, elapsed);
+                super.onComplete(result);
+            }
+        };
+    }
+
     @Override
     protected void onClientRequestFailure(HttpServletRequest clientRequest, Request proxyRequest, HttpServletResponse proxyResponse, Throwable failure) {
         super.onClientRequestFailure(clientRequest, proxyRequest, proxyResponse, failure);
+        if (failure instanceof BodyTooLargeException) {
+            // reported with the response
+            return;
+        }
         Logger.getLogger(ForwarderServlet.class.getName()).log(Level.WARNING, "Error when forwarding request: {0} {1}", new Object[]{failure.getMessage(), Arrays.toString(failure.getStackTrace())});
     }
 
     @Override
     protected void onProxyResponseFailure(HttpServletRequest clientRequest, HttpServletResponse proxyResponse, Response serverResponse, Throwable failure) {
+        if (failure instanceof BodyTooLargeException) {
+            Logger.getLogger(ForwarderServlet.class.getName()).log(Level.WARNING, "Refused {0}: {1}", new Object[]{clientRequest.getRequestURI(), failure.getMessage()});
+            if (!proxyResponse.isCommitted()) {
+                try {
+                    writeWebDriverError(proxyResponse, (BodyTooLargeException) failure);
+                } catch (IOException ex) {
+                    Logger.getLogger(ForwarderServlet.class.getName()).log(Level.FINE, "Could not send the error response", ex);
+                }
+                if (clientRequest.isAsyncStarted()) {
+                    clientRequest.getAsyncContext().complete();
+                }
+                return;
+            }
+        }
         super.onProxyResponseFailure(clientRequest, proxyResponse, serverResponse, failure);
         Logger.getLogger(ForwarderServlet.class.getName()).log(Level.WARNING, "Proxy response failure: {0} {1}", new Object[]{failure.getMessage(), Arrays.toString(failure.getStackTrace())});
     }
+
+    /**
+     * Answers with an error in the format of the WebDriver protocol, so the client
+     * library of the test reports it instead of failing to parse the response.
+     */
+    /**
+     * @return the body of a WebDriver error, with the message escaped
+     */
+    static byte[] webDriverError(String error, String message) throws IOException {
+        ObjectNode value = JSON.createObjectNode();
+        value.put("error", error);
+        value.put("message", message);
+        value.put("stacktrace", "");
+        ObjectNode body = JSON.createObjectNode();
+        body.set("value", value);
+        return JSON.writeValueAsBytes(body);
+    }
+
+    private static void writeWebDriverError(HttpServletResponse response, BodyTooLargeException failure) throws IOException {
+        byte[] body = webDriverError(failure.getError(), failure.getMessage());
+        response.reset();
+        response.setStatus(failure.getStatus());
+        // the rest of the request body is not read
+        response.setHeader(HttpHeader.CONNECTION.asString(), HttpHeaderValue.CLOSE.asString());
+        response.setContentType("application/json;charset=utf-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * A request or response body over the configured limit.
+     */
+    static final class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+        private final String error;
+
+        private BodyTooLargeException(int status, String error, String message) {
+            super(message);
+            this.status = status;
+            this.error = error;
+        }
+
+        static BodyTooLargeException request(long size, long limit) {
+            return new BodyTooLargeException(HttpStatus.BAD_REQUEST_400, "invalid argument",
+                "The request body of at least " + size + " bytes exceeds the limit of " + limit + " bytes of the tunnel (--max-request-size)");
+        }
+
+        static BodyTooLargeException response(long size, long limit) {
+            return new BodyTooLargeException(HttpStatus.INTERNAL_SERVER_ERROR_500, "unknown error",
+                "The response body of at least " + size + " bytes exceeds the limit of " + limit + " bytes of the tunnel (--max-response-size)");
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getError() {
+            return error;
+        }
+    }
 }
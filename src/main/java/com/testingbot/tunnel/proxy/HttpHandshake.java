@@ -0,0 +1,163 @@
+package com.testingbot.tunnel.proxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.eclipse.jetty.http.BadMessageException;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpParser;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Non-blocking HTTP/1.1 request/response exchange on an {@link EndPoint}, used to
+ * negotiate a tunnel before the connection of the endpoint starts relaying.
+ *
+ * The request is written and the response status line and headers are parsed
+ * with Jetty's {@link HttpParser} as the bytes arrive, all from selector
+ * callbacks, so no thread waits for the peer. Bytes received after the headers
+ * belong to the tunnel and are handed to the listener.
+ */
+final class HttpHandshake implements HttpParser.ResponseHandler {
+    static final int MAX_HEADER_BYTES = 8192;
+
+    interface Listener {
+        /**
+         * @param status the status code of the response
+         * @param reason the reason phrase, may be null
+         * @param headers the response headers
+         * @param remaining bytes received after the headers, possibly empty
+         */
+        void onResponse(int status, String reason, HttpFields headers, ByteBuffer remaining);
+
+        void onFailure(Throwable failure);
+    }
+
+    private final EndPoint endPoint;
+    private final ByteBufferPool bufferPool;
+    private final Listener listener;
+    private final HttpParser parser = new HttpParser(this, MAX_HEADER_BYTES);
+    private final HttpFields.Mutable headers = HttpFields.build();
+    private ByteBuffer buffer;
+    private int status;
+    private String reason;
+    private boolean headersComplete;
+    private Throwable failure;
+
+    HttpHandshake(EndPoint endPoint, ByteBufferPool bufferPool, Listener listener) {
+        this.endPoint = endPoint;
+        this.bufferPool = bufferPool;
+        this.listener = listener;
+    }
+
+    void start(ByteBuffer request) {
+        endPoint.write(Callback.from(this::fillInterested, this::fail), request);
+    }
+
+    private void fillInterested() {
+        endPoint.fillInterested(Callback.from(this::onFillable, this::fail));
+    }
+
+    private void onFillable() {
+        try {
+            if (buffer == null) {
+                buffer = bufferPool.acquire(MAX_HEADER_BYTES, false);
+            }
+            while (true) {
+                int filled = endPoint.fill(buffer);
+                if (filled < 0) {
+                    parser.atEOF();
+                }
+                parser.parseNext(buffer);
+                if (failure != null) {
+                    fail(failure);
+                    return;
+                }
+                if (headersComplete) {
+                    succeed();
+                    return;
+                }
+                if (filled < 0) {
+                    fail(new EOFException("Connection closed before the response headers were received"));
+                    return;
+                }
+                if (filled == 0) {
+                    fillInterested();
+                    return;
+                }
+                BufferUtil.compact(buffer);
+            }
+        } catch (Throwable x) {
+            fail(x);
+        }
+    }
+
+    private void succeed() {
+        ByteBuffer remaining = BufferUtil.EMPTY_BUFFER;
+        if (buffer.hasRemaining()) {
+            remaining = ByteBuffer.allocate(buffer.remaining());
+            remaining.put(buffer).flip();
+        }
+        release();
+        listener.onResponse(status, reason, headers, remaining);
+    }
+
+    private void fail(Throwable x) {
+        release();
+        listener.onFailure(x);
+    }
+
+    private void release() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void startResponse(HttpVersion version, int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    @Override
+    public void parsedHeader(HttpField field) {
+        headers.add(field);
+    }
+
+    @Override
+    public boolean headerComplete() {
+        headersComplete = true;
+        // stop parsing, whatever follows belongs to the tunnel
+        return true;
+    }
+
+    @Override
+    public boolean content(ByteBuffer content) {
+        return false;
+    }
+
+    @Override
+    public boolean contentComplete() {
+        return false;
+    }
+
+    @Override
+    public boolean messageComplete() {
+        return true;
+    }
+
+    @Override
+    public void earlyEOF() {
+        failure = new EOFException("Connection closed while reading the response headers");
+    }
+
+    @Override
+    public void badMessage(BadMessageException x) {
+        failure = new IOException("Invalid response: " + x.getReason(), x);
+    }
+}
@@ -1,6 +1,8 @@
 package com.testingbot.tunnel.proxy;
 
+import com.testingbot.tunnel.AccessLog;
 import com.testingbot.tunnel.Statistics;
+import jakarta.servlet.ReadListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.PrintWriter;
@@ -13,9 +15,12 @@ import org.eclipse.jetty.client.api.AuthenticationStore;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.client.util.AsyncRequestContent;
 import org.eclipse.jetty.client.util.BasicAuthentication;
 import org.eclipse.jetty.client.ProxyAuthenticationProtocolHandler;
 import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.io.ClientConnector;
 import org.eclipse.jetty.proxy.AsyncProxyServlet;
 import org.eclipse.jetty.util.Callback;
 import java.net.URI;
@@ -32,26 +37,29 @@ public class TunnelProxyServlet extends AsyncProxyServlet {
     class TunnelProxyResponseListener extends ProxyResponseListener {
         private final HttpServletRequest request;
         private final HttpServletResponse response;
-        public long startTime = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
 
         protected TunnelProxyResponseListener(HttpServletRequest request, HttpServletResponse response) {
             super(request, response);
             this.request = request;
             this.response = response;
+            Statistics.connectionOpened(Statistics.Route.HTTP);
         }
 
         @Override
         public void onBegin(Response proxyResponse) {
-            startTime = System.currentTimeMillis();
+            Statistics.getTimeToFirstByte(Statistics.Route.HTTP).record(System.nanoTime() - startNanos);
             super.onBegin(proxyResponse);
         }
 
         @Override
         public void onComplete(Result result) {
-            long endTime = System.currentTimeMillis();
-            Statistics.addRequest();
+            long elapsed = System.nanoTime() - startNanos;
+            Statistics.addRequest(Statistics.Route.HTTP);
+            Statistics.getTotalTime(Statistics.Route.HTTP).record(elapsed);
+            Statistics.connectionClosed(Statistics.Route.HTTP);
 
-            Logger.getLogger(TunnelProxyServlet.class.getName()).log(Level.INFO, "[{0}] {1} ({2}) - {3}", new Object[]{request.getMethod(), request.getRequestURL().toString(), response.toString().substring(9, 12), (endTime - startTime) + " ms"});
+            AccessLog.getInstance().log(Statistics.Route.HTTP, request.getMethod(), request.getScheme(), request.getServerName(), request.getServerPort(), request.getRequestURI(), response.getStatus(), elapsed);
             if (getServletConfig().getInitParameter("tb_debug") != null) {
                 Enumeration<String> headerNames = request.getHeaderNames();
                 if (headerNames != null) {
@@ -75,10 +83,21 @@ public class TunnelProxyServlet extends AsyncProxyServlet {
 
     @Override
     protected void onResponseContent(HttpServletRequest request, HttpServletResponse response, Response proxyResponse, byte[] buffer, int offset, int length, Callback callback) {
-        Statistics.addBytesTransferred(length);
+        Statistics.addBytesTransferred(Statistics.Route.HTTP, Statistics.Direction.DOWNSTREAM, length);
         super.onResponseContent(request, response, proxyResponse, buffer, offset, length, callback);
     }
 
+    @Override
+    protected ReadListener newReadListener(HttpServletRequest request, HttpServletResponse response, Request proxyRequest, AsyncRequestContent content) {
+        return new StreamReader(request, response, proxyRequest, content) {
+            @Override
+            protected void onRequestContent(HttpServletRequest request, Request proxyRequest, AsyncRequestContent content, byte[] buffer, int offset, int length, Callback callback) {
+                Statistics.addBytesTransferred(Statistics.Route.HTTP, Statistics.Direction.UPSTREAM, length);
+                super.onRequestContent(request, proxyRequest, content, buffer, offset, length, callback);
+            }
+        };
+    }
+
     @Override
     protected void onClientRequestFailure(HttpServletRequest clientRequest, Request proxyRequest, HttpServletResponse proxyResponse, Throwable failure) {
         if (!clientRequest.getRequestURL().toString().contains("squid-internal")) {
@@ -117,7 +136,15 @@ public class TunnelProxyServlet extends AsyncProxyServlet {
 
     @Override
     protected HttpClient newHttpClient() {
-        HttpClient client = new HttpClient();
+        Object pool = getServletContext().getAttribute(UpstreamProxyPool.ATTRIBUTE);
+        ClientConnector clientConnector = pool instanceof UpstreamProxyPool
+            ? new UpstreamProxyPool.PooledClientConnector((UpstreamProxyPool) pool)
+            : new ClientConnector();
+        String selectors = getServletConfig().getInitParameter("selectors");
+        if (selectors != null) {
+            clientConnector.setSelectors(Integer.parseInt(selectors));
+        }
+        HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(clientConnector));
         AuthenticationStore auth;
 
         final String proxy = getServletConfig().getInitParameter("proxy");
@@ -0,0 +1,247 @@
+package com.testingbot.tunnel.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a number of idle TCP connections to the upstream proxy (--proxy) open,
+ * so that a CONNECT or a proxied request does not pay for the TCP handshake
+ * with the proxy.
+ *
+ * A connection taken from the pool is not returned: it either becomes a tunnel
+ * or is kept alive by the HTTP client. The pool is topped up in the background,
+ * idle connections are checked periodically and replaced once they have been
+ * idle for longer than the idle timeout, before the proxy drops them.
+ */
+public class UpstreamProxyPool extends AbstractLifeCycle {
+    /**
+     * ServletContext attribute under which the pool is shared with the proxy servlet.
+     */
+    public static final String ATTRIBUTE = UpstreamProxyPool.class.getName();
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamProxyPool.class);
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private final String host;
+    private final int port;
+    private final int minIdle;
+    private final long maxIdleMillis;
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean filling = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile InetSocketAddress address;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param host the upstream proxy host
+     * @param port the upstream proxy port
+     * @param minIdle the number of idle connections to keep open
+     * @param maxIdleMillis how long a connection may stay idle before it is replaced
+     */
+    public UpstreamProxyPool(String host, int port, int minIdle, long maxIdleMillis) {
+        this.host = host;
+        this.port = port;
+        this.minIdle = minIdle;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-proxy-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, maxIdleMillis / 4);
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        scheduler.shutdownNow();
+        Idle connection;
+        while ((connection = idle.poll()) != null) {
+            size.decrementAndGet();
+            close(connection.channel);
+        }
+        super.doStop();
+    }
+
+    /**
+     * @return a connected, non-blocking channel to the upstream proxy, or null when none is available
+     */
+    public SocketChannel acquire() {
+        Idle connection;
+        while ((connection = idle.pollFirst()) != null) {
+            size.decrementAndGet();
+            if (isHealthy(connection.channel)) {
+                hits.increment();
+                refill();
+                return connection.channel;
+            }
+            close(connection.channel);
+        }
+        misses.increment();
+        refill();
+        return null;
+    }
+
+    /**
+     * @return whether connections to the given address may be taken from this pool
+     */
+    public boolean isProxyAddress(SocketAddress socketAddress) {
+        if (!(socketAddress instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetSocketAddress other = (InetSocketAddress) socketAddress;
+        return other.getPort() == port && (host.equalsIgnoreCase(other.getHostString()) || other.equals(address));
+    }
+
+    public int getIdleCount() {
+        return size.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void refill() {
+        if (size.get() < minIdle && isRunning()) {
+            scheduler.execute(this::fill);
+        }
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Idle connection : idle.toArray(new Idle[0])) {
+            // take it out first, so it is never checked while somebody else is using it
+            if (!idle.remove(connection)) {
+                continue;
+            }
+            boolean expired = TimeUnit.NANOSECONDS.toMillis(now - connection.createdNanos) > maxIdleMillis;
+            if (expired || !isHealthy(connection.channel)) {
+                size.decrementAndGet();
+                close(connection.channel);
+            } else {
+                idle.offerLast(connection);
+            }
+        }
+        fill();
+    }
+
+    private void fill() {
+        if (!filling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (size.get() < minIdle && isRunning()) {
+                SocketChannel channel = connect();
+                if (channel == null) {
+                    return;
+                }
+                idle.offerLast(new Idle(channel));
+                size.incrementAndGet();
+            }
+        } finally {
+            filling.set(false);
+        }
+    }
+
+    private SocketChannel connect() {
+        SocketChannel channel = null;
+        try {
+            if (address == null || address.isUnresolved()) {
+                address = new InetSocketAddress(host, port);
+            }
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException ex) {
+            LOG.warn("Could not open a connection to upstream proxy {}:{}: {}", host, port, ex.getMessage());
+            close(channel);
+            return null;
+        }
+    }
+
+    /**
+     * An idle connection to a proxy has nothing to read; EOF or unexpected data means it is unusable.
+     */
+    private static boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            return false;
+        }
+        try {
+            return channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.debug("Could not close upstream proxy connection", ex);
+            }
+        }
+    }
+
+    private static final class Idle {
+        private final SocketChannel channel;
+        private final long createdNanos = System.nanoTime();
+
+        private Idle(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * ClientConnector for Jetty's HttpClient which takes connections to the upstream proxy from the pool.
+     */
+    public static class PooledClientConnector extends ClientConnector {
+        private final UpstreamProxyPool pool;
+
+        public PooledClientConnector(UpstreamProxyPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void connect(SocketAddress address, Map<String, Object> context) {
+            if (context != null && pool.isRunning() && pool.isProxyAddress(address)) {
+                SocketChannel channel = pool.acquire();
+                if (channel != null) {
+                    context.putIfAbsent(REMOTE_SOCKET_ADDRESS_CONTEXT_KEY, address);
+                    accept(channel, context);
+                    return;
+                }
+            }
+            super.connect(address, context);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.testingbot.tunnel.proxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Counts the WebSocket frames (RFC 6455, section 5.2) in one direction of a relayed stream.
+ *
+ * Only the frame headers are looked at, payloads are skipped over. The stream
+ * arrives in arbitrary chunks, so the state of a header split over two reads
+ * is kept in fields and nothing is allocated per chunk.
+ */
+final class WebSocketFrameCounter {
+    private long payloadRemaining;
+    private int headerRead;
+    private int headerSize;
+    private int extendedLengthBytes;
+    private long length;
+    private long frames;
+
+    /**
+     * Scans the bytes between the absolute positions {@code from} and {@code to}
+     * without changing the position of the buffer.
+     *
+     * @return the number of frames whose header ended in this range
+     */
+    int onBytes(ByteBuffer buffer, int from, int to) {
+        int count = 0;
+        int i = from;
+        while (i < to) {
+            if (payloadRemaining > 0) {
+                int skip = (int) Math.min(payloadRemaining, to - i);
+                payloadRemaining -= skip;
+                i += skip;
+                continue;
+            }
+
+            int b = buffer.get(i++) & 0xFF;
+            headerRead++;
+            if (headerRead == 1) {
+                // FIN, RSV and opcode
+                continue;
+            }
+            if (headerRead == 2) {
+                int length7 = b & 0x7F;
+                extendedLengthBytes = length7 == 126 ? 2 : length7 == 127 ? 8 : 0;
+                headerSize = 2 + extendedLengthBytes + ((b & 0x80) != 0 ? 4 : 0);
+                length = extendedLengthBytes == 0 ? length7 : 0;
+            } else if (headerRead <= 2 + extendedLengthBytes) {
+                length = (length << 8) | b;
+            }
+            if (headerRead == headerSize) {
+                count++;
+                payloadRemaining = length;
+                headerRead = 0;
+            }
+        }
+        frames += count;
+        return count;
+    }
+
+    /**
+     * @return the number of frames seen so far
+     */
+    long getFrames() {
+        return frames;
+    }
+}
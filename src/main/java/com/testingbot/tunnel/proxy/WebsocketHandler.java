@@ -1,5 +1,6 @@
 package com.testingbot.tunnel.proxy;
 
+import com.testingbot.tunnel.Statistics;
 import jakarta.servlet.AsyncContext;
 import jakarta.servlet.AsyncEvent;
 import jakarta.servlet.AsyncListener;
@@ -13,14 +14,16 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.io.ByteBufferPool;
 import org.eclipse.jetty.io.Connection;
 import org.eclipse.jetty.io.EndPoint;
@@ -34,8 +37,10 @@ import org.eclipse.jetty.server.HttpChannel;
 import org.eclipse.jetty.server.HttpTransport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.HostPort;
+import org.eclipse.jetty.util.ProcessorUtils;
 import org.eclipse.jetty.util.Promise;
 import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.eclipse.jetty.util.thread.Scheduler;
@@ -44,6 +49,7 @@ import org.slf4j.LoggerFactory;
 
 public class WebsocketHandler extends HandlerWrapper {
     protected static final Logger LOG = LoggerFactory.getLogger(WebsocketHandler.class);
+    private static final String RESPONSE_HEADERS = "wsResponseHeaders";
     private final Set<String> whiteList;
     private final Set<String> blackList;
     private Executor executor;
@@ -53,6 +59,9 @@ public class WebsocketHandler extends HandlerWrapper {
     private long connectTimeout;
     private long idleTimeout;
     private int bufferSize;
+    private int selectors;
+    private boolean debugMode;
+    private boolean directRelay;
 
     public WebsocketHandler() {
         this((Handler)null);
@@ -64,6 +73,7 @@ public class WebsocketHandler extends HandlerWrapper {
         this.connectTimeout = 15000L;
         this.idleTimeout = 30000L;
         this.bufferSize = 4096;
+        this.selectors = defaultSelectors();
         this.setHandler(handler);
     }
 
@@ -109,48 +119,53 @@ public class WebsocketHandler extends HandlerWrapper {
         this.idleTimeout = idleTimeout;
     }
 
-    private Map<String, String> performWebSocketHandshake(HttpServletRequest clientRequest, SocketChannel channel) throws IOException {
-        // Send WebSocket upgrade request to target
-        StringBuilder requestHeaders = new StringBuilder();
-        requestHeaders.append(clientRequest.getMethod()).append(" ").append(clientRequest.getRequestURI()).append(" ").append(clientRequest.getProtocol()).append("\r\n");
+    /**
+     * The upgrade request as sent by the browser, replayed to the target.
+     */
+    private static ByteBuffer newUpgradeRequest(HttpServletRequest clientRequest) {
+        StringBuilder requestHeaders = new StringBuilder(512);
+        requestHeaders.append(clientRequest.getMethod()).append(' ').append(clientRequest.getRequestURI());
+        if (clientRequest.getQueryString() != null) {
+            requestHeaders.append('?').append(clientRequest.getQueryString());
+        }
+        requestHeaders.append(' ').append(clientRequest.getProtocol()).append("\r\n");
         for (String headerName : Collections.list(clientRequest.getHeaderNames())) {
-            requestHeaders.append(headerName).append(": ").append(clientRequest.getHeader(headerName)).append("\r\n");
+            for (String value : Collections.list(clientRequest.getHeaders(headerName))) {
+                requestHeaders.append(headerName).append(": ").append(value).append("\r\n");
+            }
         }
         requestHeaders.append("\r\n");
+        return ByteBuffer.wrap(requestHeaders.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
 
-        ByteBuffer writeBuffer = ByteBuffer.wrap(requestHeaders.toString().getBytes("UTF-8"));
-        while (writeBuffer.hasRemaining()) {
-            channel.write(writeBuffer);
-        }
-
-        // Read target's WebSocket handshake response (blocking)
-        ByteBuffer readBuffer = ByteBuffer.allocate(4096);
-        StringBuilder responseSB = new StringBuilder();
-        while (!responseSB.toString().contains("\r\n\r\n")) {
-            readBuffer.clear();
-            int n = channel.read(readBuffer);
-            if (n < 0) throw new IOException("Connection closed before WebSocket handshake completed");
-            readBuffer.flip();
-            byte[] bytes = new byte[readBuffer.remaining()];
-            readBuffer.get(bytes);
-            responseSB.append(new String(bytes, "UTF-8"));
-        }
-
-        String fullResponse = responseSB.toString();
-        int headerEnd = fullResponse.indexOf("\r\n\r\n");
-        String headerSection = fullResponse.substring(0, headerEnd);
-        String[] lines = headerSection.split("\r\n");
-
-        Map<String, String> wsResponseHeaders = new LinkedHashMap<>();
-        for (int i = 1; i < lines.length; i++) {
-            int colonIndex = lines[i].indexOf(':');
-            if (colonIndex > 0) {
-                wsResponseHeaders.put(lines[i].substring(0, colonIndex).trim(), lines[i].substring(colonIndex + 1).trim());
-            }
-        }
+    /**
+     * Half of the available cores, like Jetty's own connectors, but not capped:
+     * every parallel browser session relays its WebSocket traffic through these.
+     */
+    public static int defaultSelectors() {
+        return Math.max(1, ProcessorUtils.availableProcessors() / 2);
+    }
+
+    /**
+     * Logs connection setup and every relayed chunk, too verbose for normal operation.
+     */
+    public void setDebugMode(boolean debugMode) {
+        this.debugMode = debugMode;
+    }
 
-        LOG.info("WebSocket handshake with target complete, status: {}, headers: {}", lines[0], wsResponseHeaders.size());
-        return wsResponseHeaders;
+    /**
+     * @param directRelay relay the frames with {@link DirectRelay} instead of the relay loop of Jetty
+     */
+    public void setDirectRelay(boolean directRelay) {
+        this.directRelay = directRelay;
+    }
+
+    public int getSelectors() {
+        return this.selectors;
+    }
+
+    public void setSelectors(int selectors) {
+        this.selectors = selectors;
     }
 
     public int getBufferSize() {
@@ -186,7 +201,7 @@ public class WebsocketHandler extends HandlerWrapper {
     }
 
     protected SelectorManager newSelectorManager() {
-        return new ConnectManager(this.getExecutor(), this.getScheduler(), 1);
+        return new ConnectManager(this.getExecutor(), this.getScheduler(), this.getSelectors());
     }
 
     public void handle(String target, Request jettyRequest, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -214,33 +229,29 @@ public class WebsocketHandler extends HandlerWrapper {
                 return;
             }
 
+            Statistics.addRequest(Statistics.Route.WEBSOCKET);
+
             final AsyncContext asyncContext = request.startAsync();
             asyncContext.setTimeout(0L);
-            LOG.info("Connecting to {}:{}", host, port);
-
-            this.getExecutor().execute(() -> {
-                SocketChannel channel = null;
-                try {
-                    // Connect to target using blocking I/O for the handshake
-                    channel = SocketChannel.open();
-                    channel.socket().setTcpNoDelay(true);
-                    channel.socket().setSoTimeout((int) getConnectTimeout());
-                    channel.connect(new InetSocketAddress(host, port));
-
-                    // Perform the WebSocket handshake with the target synchronously
-                    Map<String, String> wsResponseHeaders = performWebSocketHandshake(request, channel);
-
-                    // Switch to non-blocking for the async relay
-                    channel.configureBlocking(false);
+            if (this.debugMode) {
+                LOG.info("Connecting to {}:{}", host, port);
+            }
 
+            // the upgrade exchange with the target runs on the selector, see UpstreamConnection.onOpen
+            this.connectToServer(request, host, port, new Promise<SocketChannel>() {
+                @Override
+                public void succeeded(SocketChannel channel) {
                     ConnectContext connectContext = new ConnectContext(request, response, asyncContext, httpChannel.getTunnellingEndPoint());
-                    connectContext.getContext().put("wsResponseHeaders", wsResponseHeaders);
+                    if (channel.isConnected()) {
+                        WebsocketHandler.this.selector.accept(channel, connectContext);
+                    } else {
+                        WebsocketHandler.this.selector.connect(channel, connectContext);
+                    }
+                }
 
-                    WebsocketHandler.this.selector.accept(channel, connectContext);
-                } catch (Exception e) {
-                    WebsocketHandler.this.close(channel);
-                    LOG.warn("WebSocket connect/handshake failed", e);
-                    WebsocketHandler.this.onConnectFailure(request, response, asyncContext, e);
+                @Override
+                public void failed(Throwable x) {
+                    WebsocketHandler.this.onConnectFailure(request, response, asyncContext, x);
                 }
             });
         } catch (Exception x) {
@@ -281,7 +292,6 @@ public class WebsocketHandler extends HandlerWrapper {
         return new InetSocketAddress(host, port);
     }
 
-    @SuppressWarnings("unchecked")
     protected void onConnectSuccess(ConnectContext connectContext,WebsocketHandler.UpstreamConnection upstreamConnection) {
         ConcurrentMap<String, Object> context = connectContext.getContext();
         HttpServletRequest request = connectContext.getRequest();
@@ -291,15 +301,17 @@ public class WebsocketHandler extends HandlerWrapper {
         downstreamConnection.setInputBufferSize(this.getBufferSize());
         upstreamConnection.setConnection(downstreamConnection);
         downstreamConnection.setConnection(upstreamConnection);
-        LOG.info("Connection setup completed: {}<->{}", downstreamConnection, upstreamConnection);
+        if (this.debugMode) {
+            LOG.info("Connection setup completed: {}<->{}", downstreamConnection, upstreamConnection);
+        }
 
         HttpServletResponse response = connectContext.getResponse();
 
         // Set the WebSocket response headers from the target's handshake response
-        Map<String, String> wsResponseHeaders = (Map<String, String>) context.get("wsResponseHeaders");
+        HttpFields wsResponseHeaders = (HttpFields) context.get(RESPONSE_HEADERS);
         if (wsResponseHeaders != null) {
-            for (Map.Entry<String, String> entry : wsResponseHeaders.entrySet()) {
-                response.setHeader(entry.getKey(), entry.getValue());
+            for (HttpField field : wsResponseHeaders) {
+                response.addHeader(field.getName(), field.getValue());
             }
         }
 
@@ -318,12 +330,30 @@ public class WebsocketHandler extends HandlerWrapper {
 
     }
 
+    /**
+     * The target answered the upgrade with something else than 101, pass its status on to the browser.
+     */
+    protected void onUpgradeRejected(ConnectContext connectContext, int status, HttpFields headers) {
+        HttpServletResponse response = connectContext.getResponse();
+        for (HttpField field : headers) {
+            if (field.getHeader() != HttpHeader.CONTENT_LENGTH && field.getHeader() != HttpHeader.TRANSFER_ENCODING && field.getHeader() != HttpHeader.CONNECTION) {
+                response.addHeader(field.getName(), field.getValue());
+            }
+        }
+        response.setContentLength(0);
+        response.setHeader(HttpHeader.CONNECTION.asString(), "close");
+        this.sendConnectResponse(connectContext.getRequest(), response, status);
+        connectContext.getAsyncContext().complete();
+    }
+
     private void sendConnectResponse(HttpServletRequest request, HttpServletResponse response, int statusCode) {
         try {
             response.setStatus(statusCode);
+            if (this.debugMode) {
                 LOG.info("CONNECT response sent {} {}", request.getProtocol(), statusCode);
+            }
         } catch (Throwable x) {
-                LOG.info("Could not send CONNECT response", x);
+            LOG.info("Could not send CONNECT response", x);
         }
 
     }
@@ -345,21 +375,34 @@ public class WebsocketHandler extends HandlerWrapper {
 
     private void upgradeConnection(HttpServletRequest request, HttpServletResponse response, Connection connection) {
         request.setAttribute(HttpTransport.UPGRADE_CONNECTION_ATTRIBUTE, connection);
+        if (this.debugMode) {
             LOG.info("Upgraded connection to {}", connection);
-
+        }
     }
 
     protected int read(EndPoint endPoint, ByteBuffer buffer, ConcurrentMap<String, Object> context) throws IOException {
         int read = endPoint.fill(buffer);
-            LOG.info("{} read {} bytes", this, read);
-
+        if (this.debugMode) {
+            LOG.info("{} read {} bytes", endPoint, read);
+        }
         return read;
     }
 
     protected void write(EndPoint endPoint, ByteBuffer buffer, Callback callback, ConcurrentMap<String, Object> context) {
-            LOG.info("{} writing {} bytes", this, buffer.remaining());
+        if (this.debugMode) {
+            LOG.info("{} writing {} bytes", endPoint, buffer.remaining());
+        }
+        endPoint.write(callback, buffer);
+    }
 
-        endPoint.write(callback, new ByteBuffer[]{buffer});
+    /**
+     * Counts the frames in the bytes a read just appended to the buffer.
+     */
+    private static void countFrames(WebSocketFrameCounter counter, Statistics.Direction direction, ByteBuffer buffer, int read) {
+        int frames = counter.onBytes(buffer, buffer.limit() - read, buffer.limit());
+        if (frames > 0) {
+            Statistics.addWebSocketFrames(direction, frames);
+        }
     }
 
     public Set<String> getWhiteListHosts() {
@@ -401,7 +444,9 @@ public class WebsocketHandler extends HandlerWrapper {
         }
 
         public Connection newConnection(SelectableChannel channel, EndPoint endpoint, Object attachment) throws IOException {
+            if (WebsocketHandler.this.debugMode) {
                 WebsocketHandler.LOG.info("Connected to {}", ((SocketChannel)channel).getRemoteAddress());
+            }
 
             WebsocketHandler.ConnectContext connectContext = (WebsocketHandler.ConnectContext)attachment;
             WebsocketHandler.UpstreamConnection connection = WebsocketHandler.this.newUpstreamConnection(endpoint, connectContext);
@@ -422,6 +467,7 @@ public class WebsocketHandler extends HandlerWrapper {
         private final HttpServletResponse response;
         private final AsyncContext asyncContext;
         private final EndPoint endPoint;
+        private final long startNanos = System.nanoTime();
 
         public ConnectContext(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, EndPoint endPoint) {
             this.request = request;
@@ -451,8 +497,13 @@ public class WebsocketHandler extends HandlerWrapper {
         }
     }
 
-    public class UpstreamConnection extends ProxyConnection implements AsyncListener {
+    public class UpstreamConnection extends ProxyConnection implements AsyncListener, HttpHandshake.Listener {
         private final WebsocketHandler.ConnectContext connectContext;
+        private ByteBuffer pending;
+        private AdaptiveBufferSize adaptiveBufferSize;
+        private final WebSocketFrameCounter frames = new WebSocketFrameCounter();
+        private long bytes;
+        private DirectRelay relay;
 
         public UpstreamConnection(EndPoint endPoint, Executor executor, ByteBufferPool bufferPool, WebsocketHandler.ConnectContext connectContext) {
             super(endPoint, executor, bufferPool, connectContext.getContext());
@@ -460,13 +511,90 @@ public class WebsocketHandler extends HandlerWrapper {
         }
 
         public void onOpen() {
+            Statistics.connectionOpened(Statistics.Route.WEBSOCKET);
+            new HttpHandshake(this.getEndPoint(), this.getByteBufferPool(), this).start(newUpgradeRequest(this.connectContext.getRequest()));
+        }
+
+        @Override
+        public void onResponse(int status, String reason, HttpFields headers, ByteBuffer remaining) {
+            if (WebsocketHandler.this.debugMode) {
+                LOG.info("WebSocket handshake with target complete, status: {} {}, headers: {}", status, reason, headers.size());
+            }
+            if (status != HttpServletResponse.SC_SWITCHING_PROTOCOLS) {
+                WebsocketHandler.this.onUpgradeRejected(this.connectContext, status, headers);
+                this.close();
+                return;
+            }
+
+            Statistics.getTimeToFirstByte(Statistics.Route.WEBSOCKET).record(System.nanoTime() - this.connectContext.startNanos);
+            this.connectContext.getContext().put(RESPONSE_HEADERS, headers);
+            if (remaining.hasRemaining()) {
+                // frames the target sent right behind its 101 response
+                this.pending = remaining;
+            }
             super.onOpen();
             this.connectContext.asyncContext.addListener(this);
             WebsocketHandler.this.onConnectSuccess(this.connectContext, this);
         }
 
+        @Override
+        public void onFailure(Throwable failure) {
+            LOG.warn("WebSocket handshake with target failed: {}", failure.toString());
+            this.close(failure);
+            WebsocketHandler.this.onConnectFailure(this.connectContext.getRequest(), this.connectContext.getResponse(), this.connectContext.getAsyncContext(), failure);
+        }
+
+        @Override
+        public void onClose(Throwable cause) {
+            Statistics.connectionClosed(Statistics.Route.WEBSOCKET);
+            long lifetime = System.nanoTime() - this.connectContext.startNanos;
+            Statistics.getTotalTime(Statistics.Route.WEBSOCKET).record(lifetime);
+            if (WebsocketHandler.this.debugMode) {
+                long upstreamFrames = 0;
+                long upstreamBytes = 0;
+                if (this.getConnection() instanceof DownstreamConnection) {
+                    DownstreamConnection downstream = (DownstreamConnection) this.getConnection();
+                    upstreamFrames = downstream.frames.getFrames();
+                    upstreamBytes = downstream.bytes;
+                }
+                LOG.info("WebSocket to {} closed after {} ms: {} frames/{} bytes to the browser, {} frames/{} bytes to the target",
+                    this.getEndPoint().getRemoteSocketAddress(), lifetime / 1_000_000,
+                    this.frames.getFrames(), this.bytes, upstreamFrames, upstreamBytes);
+            }
+            super.onClose(cause);
+        }
+
+        public void onFillable() {
+            if (!WebsocketHandler.this.directRelay) {
+                super.onFillable();
+                return;
+            }
+            if (this.relay == null) {
+                this.relay = new DirectRelay(this, this::read);
+            }
+            this.relay.iterate();
+        }
+
         protected int read(EndPoint endPoint, ByteBuffer buffer) throws IOException {
-            return WebsocketHandler.this.read(endPoint, buffer, this.getContext());
+            if (this.adaptiveBufferSize == null) {
+                this.adaptiveBufferSize = new AdaptiveBufferSize(this, this.getInputBufferSize());
+            }
+            int read;
+            if (this.pending != null) {
+                read = BufferUtil.append(buffer, this.pending);
+                if (!this.pending.hasRemaining()) {
+                    this.pending = null;
+                }
+            } else {
+                read = WebsocketHandler.this.read(endPoint, buffer, this.getContext());
+            }
+            if (read > 0) {
+                this.bytes += read;
+                Statistics.addBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM, read);
+                countFrames(this.frames, Statistics.Direction.DOWNSTREAM, buffer, read);
+            }
+            this.adaptiveBufferSize.onRead(read);
+            return read;
         }
 
         protected void write(EndPoint endPoint, ByteBuffer buffer, Callback callback) {
@@ -474,7 +602,11 @@ public class WebsocketHandler extends HandlerWrapper {
         }
 
         public void onComplete(AsyncEvent event) {
-            this.fillInterested();
+            if (this.pending != null) {
+                this.getExecutor().execute(this::onFillable);
+            } else {
+                this.fillInterested();
+            }
         }
 
         public void onTimeout(AsyncEvent event) {
@@ -490,6 +622,10 @@ public class WebsocketHandler extends HandlerWrapper {
 
     public class DownstreamConnection extends ProxyConnection implements Connection.UpgradeTo {
         private ByteBuffer buffer;
+        private AdaptiveBufferSize adaptiveBufferSize;
+        private final WebSocketFrameCounter frames = new WebSocketFrameCounter();
+        private long bytes;
+        private DirectRelay relay;
 
         public DownstreamConnection(EndPoint endPoint, Executor executor, ByteBufferPool bufferPool, ConcurrentMap<String, Object> context) {
             super(endPoint, executor, bufferPool, context);
@@ -505,18 +641,22 @@ public class WebsocketHandler extends HandlerWrapper {
                 this.fillInterested();
             } else {
                 final int remaining = this.buffer.remaining();
+                // frames the browser sent right behind its upgrade request
+                this.bytes += remaining;
+                Statistics.addBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.UPSTREAM, remaining);
+                countFrames(this.frames, Statistics.Direction.UPSTREAM, this.buffer, remaining);
                 this.write(this.getConnection().getEndPoint(), this.buffer, new Callback() {
                     public void succeeded() {
                         WebsocketHandler.DownstreamConnection.this.buffer = null;
-                            ProxyConnection.LOG.info("{} wrote initial {} bytes to server", WebsocketHandler.DownstreamConnection.this, remaining);
-
+                        if (WebsocketHandler.this.debugMode) {
+                            LOG.info("{} wrote initial {} bytes to server", WebsocketHandler.DownstreamConnection.this, remaining);
+                        }
                         WebsocketHandler.DownstreamConnection.this.fillInterested();
                     }
 
                     public void failed(Throwable x) {
                         WebsocketHandler.DownstreamConnection.this.buffer = null;
-                            ProxyConnection.LOG.info("{} failed to write initial {} bytes to server", new Object[]{this, remaining, x});
-
+                        LOG.info("{} failed to write initial {} bytes to server", WebsocketHandler.DownstreamConnection.this, remaining, x);
                         WebsocketHandler.DownstreamConnection.this.close();
                         WebsocketHandler.DownstreamConnection.this.getConnection().close();
                     }
@@ -524,8 +664,29 @@ public class WebsocketHandler extends HandlerWrapper {
             }
         }
 
+        public void onFillable() {
+            if (!WebsocketHandler.this.directRelay) {
+                super.onFillable();
+                return;
+            }
+            if (this.relay == null) {
+                this.relay = new DirectRelay(this, this::read);
+            }
+            this.relay.iterate();
+        }
+
         protected int read(EndPoint endPoint, ByteBuffer buffer) throws IOException {
-            return WebsocketHandler.this.read(endPoint, buffer, this.getContext());
+            if (this.adaptiveBufferSize == null) {
+                this.adaptiveBufferSize = new AdaptiveBufferSize(this, this.getInputBufferSize());
+            }
+            int read = WebsocketHandler.this.read(endPoint, buffer, this.getContext());
+            if (read > 0) {
+                this.bytes += read;
+                Statistics.addBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.UPSTREAM, read);
+                countFrames(this.frames, Statistics.Direction.UPSTREAM, buffer, read);
+            }
+            this.adaptiveBufferSize.onRead(read);
+            return read;
         }
 
         protected void write(EndPoint endPoint, ByteBuffer buffer, Callback callback) {
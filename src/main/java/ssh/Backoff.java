@@ -0,0 +1,52 @@
+package ssh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Delays between reconnect attempts: none before the first, then exponential
+ * backoff with decorrelated jitter, every delay is picked between the base and
+ * three times the previous one, and capped.
+ *
+ * The jitter spreads the reconnects of many tunnels which lost their connection
+ * at the same moment, for example when a CI fleet loses its network.
+ */
+final class Backoff {
+    private final long baseMillis;
+    private final long capMillis;
+    private final DoubleSupplier random;
+    private long previousMillis = -1;
+
+    Backoff(long baseMillis, long capMillis) {
+        this(baseMillis, capMillis, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param random supplies values between 0 (inclusive) and 1 (exclusive)
+     */
+    Backoff(long baseMillis, long capMillis, DoubleSupplier random) {
+        this.baseMillis = baseMillis;
+        this.capMillis = Math.max(baseMillis, capMillis);
+        this.random = random;
+    }
+
+    /**
+     * @return the delay before the next attempt, in milliseconds
+     */
+    long nextDelayMillis() {
+        if (previousMillis < 0) {
+            previousMillis = 0;
+            return 0;
+        }
+        long upper = Math.max(baseMillis, Math.min(capMillis, previousMillis * 3));
+        previousMillis = baseMillis + (long) (random.getAsDouble() * (upper - baseMillis));
+        return previousMillis;
+    }
+
+    /**
+     * Starts over, the next attempt is immediate again.
+     */
+    void reset() {
+        previousMillis = -1;
+    }
+}
@@ -1,28 +1,44 @@
 package ssh;
 
 import com.testingbot.tunnel.App;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Re-establishes a lost SSH connection: at once, then with a jittered
+ * exponential {@link Backoff} up to --reconnect-max-delay. The local proxy keeps
+ * running meanwhile. When the tunnel VM cannot be reached for
+ * {@link #GIVE_UP_AFTER} a new tunnel is requested, unless a standby tunnel of
+ * the {@link TunnelFailover} is on its way.
  *
  * @author TestingBot
  */
 public class CustomConnectionMonitor {
 
+    private static final long BASE_RETRY_DELAY = 1000;
+    private static final long GIVE_UP_AFTER = 150000;
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ssh-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final SSHTunnel tunnel;
     private final App app;
-    private Timer timer;
-    private boolean retrying = false;
+    private final Backoff backoff;
+    private final AtomicBoolean retrying = new AtomicBoolean();
+    // only used on the reconnect thread
     private int retryAttempts = 0;
-    private static final long CURRENT_RETRY_DELAY = 5000;
-    private static final int MAX_RETRIES = 30;
+    private long retryingSince;
 
     public CustomConnectionMonitor(SSHTunnel tunnel, App app) {
         this.tunnel = tunnel;
         this.app = app;
+        this.backoff = new Backoff(BASE_RETRY_DELAY, TimeUnit.SECONDS.toMillis(app.getReconnectMaxDelay()));
     }
 
     public void connectionLost(Throwable reason) {
@@ -30,84 +46,98 @@ public class CustomConnectionMonitor {
             return;
         }
 
-        if (app.getHttpProxy() != null) {
-            app.getHttpProxy().stop();
-        }
-
         Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.SEVERE,
             String.format("[%s] SSH Connection lost! %s", tunnel.getConnectionId(), reason.getMessage()));
 
-        if (!this.retrying) {
-            this.retrying = true;
-            timer = new Timer("Reconnect-" + tunnel.getConnectionId());
-            timer.schedule(new ReconnectTask(), CURRENT_RETRY_DELAY);
+        TunnelFailover failover = app.getTunnelFailover();
+        if (failover != null) {
+            failover.connectionLost(tunnel);
+        }
+
+        if (retrying.compareAndSet(false, true)) {
+            RECONNECTS.execute(() -> {
+                backoff.reset();
+                retryAttempts = 0;
+                retryingSince = System.currentTimeMillis();
+                scheduleReconnect();
+            });
         }
     }
 
-    private class ReconnectTask extends TimerTask {
+    private void scheduleReconnect() {
+        long delay = backoff.nextDelayMillis();
+        if (delay > 0) {
+            Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
+                String.format("[%s] Will retry in %dms (attempt %d)",
+                    tunnel.getConnectionId(), delay, retryAttempts + 1));
+        }
+        RECONNECTS.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+    }
 
-        @Override
-        public void run() {
-            try {
-                retryAttempts += 1;
+    private void reconnect() {
+        if (tunnel.isShuttingDown() || isReplaced()) {
+            retrying.set(false);
+            return;
+        }
+        try {
+            retryAttempts += 1;
 
-                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
-                    String.format("[%s] Attempting to re-establish SSH Connection (attempt %d, delay %dms)",
-                        tunnel.getConnectionId(), retryAttempts, CURRENT_RETRY_DELAY));
-
-                tunnel.stop();
-                tunnel.connect();
-
-                if (tunnel.isAuthenticated()) {
-                    // Successful reconnection
-                    retrying = false;
-                    timer.cancel();
-
-                    if (app.getHttpProxy() != null) {
-                        app.getHttpProxy().start();
-                    }
-                    tunnel.createPortForwarding();
-
-                    Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
-                        String.format("[%s] Successfully re-established SSH Connection after %d attempts",
-                            tunnel.getConnectionId(), retryAttempts));
-                    CustomConnectionMonitor.this.retryAttempts = 0;
-                    return;
-                }
+            Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
+                String.format("[%s] Attempting to re-establish SSH Connection (attempt %d)",
+                    tunnel.getConnectionId(), retryAttempts));
 
-            } catch (Exception ex) {
-                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.WARNING,
-                    String.format("[%s] Reconnection attempt %d failed: %s",
-                        tunnel.getConnectionId(), retryAttempts, ex.getMessage()));
-            }
+            tunnel.stop();
+            tunnel.connect();
 
-            // Check if we should continue retrying
-            if (retryAttempts >= MAX_RETRIES) {
-                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.WARNING,
-                    String.format("[%s] Giving up retrying after %d attempts. Creating a new Tunnel Connection.",
-                        tunnel.getConnectionId(), retryAttempts));
+            if (tunnel.isAuthenticated()) {
+                tunnel.createPortForwarding();
 
-                // Give up connecting to this tunnel VM, try another one
-                timer.cancel();
-                retrying = false;
-                CustomConnectionMonitor.this.retryAttempts = 0;
-
-                app.stop();
-                try {
-                    app.boot();
-                } catch (Exception ex) {
-                    Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.SEVERE,
-                        String.format("[%s] Failed to create new tunnel: %s", tunnel.getConnectionId(), ex.getMessage()), ex);
+                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
+                    String.format("[%s] Successfully re-established SSH Connection after %d attempts",
+                        tunnel.getConnectionId(), retryAttempts));
+                retrying.set(false);
+                TunnelFailover failover = app.getTunnelFailover();
+                if (failover != null) {
+                    failover.connectionRestored(tunnel);
                 }
-            } else {
-                timer.cancel();
-                timer = new Timer("Reconnect-" + tunnel.getConnectionId());
-                timer.schedule(new ReconnectTask(), CURRENT_RETRY_DELAY);
+                return;
+            }
 
-                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.INFO,
-                    String.format("[%s] Will retry in %dms (attempt %d)",
-                        tunnel.getConnectionId(), CURRENT_RETRY_DELAY, retryAttempts + 1));
+        } catch (Exception ex) {
+            Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.WARNING,
+                String.format("[%s] Reconnection attempt %d failed: %s",
+                    tunnel.getConnectionId(), retryAttempts, ex.getMessage()));
+        }
+
+        // Check if we should continue retrying
+        TunnelFailover failover = app.getTunnelFailover();
+        if (System.currentTimeMillis() - retryingSince >= GIVE_UP_AFTER && (failover == null || !failover.isPending())) {
+            Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.WARNING,
+                String.format("[%s] Giving up retrying after %d attempts. Creating a new Tunnel Connection.",
+                    tunnel.getConnectionId(), retryAttempts));
+
+            // Give up connecting to this tunnel VM, try another one
+            retrying.set(false);
+            if (app.getHttpProxy() != null) {
+                app.getHttpProxy().stop();
+            }
+            app.stop();
+            try {
+                app.boot();
+            } catch (Exception ex) {
+                Logger.getLogger(CustomConnectionMonitor.class.getName()).log(Level.SEVERE,
+                    String.format("[%s] Failed to create new tunnel: %s", tunnel.getConnectionId(), ex.getMessage()), ex);
             }
+        } else {
+            scheduleReconnect();
         }
     }
+
+    /**
+     * @return whether the failover switched to a standby tunnel
+     */
+    private boolean isReplaced() {
+        SSHTunnel current = app.getTunnel();
+        return current != null && current != tunnel;
+    }
 }
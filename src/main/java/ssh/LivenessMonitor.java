@@ -0,0 +1,173 @@
+package ssh;
+
+import com.testingbot.tunnel.LatencyHistogram;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Tells whether an SSH session is alive from the bytes it receives.
+ *
+ * The input stream of the session is wrapped, so every received packet proves
+ * the session alive, and the end of the stream or a read error reports it dead
+ * right away. Only a session which received nothing for the keep-alive interval
+ * is sent a keep-alive; the first bytes after it are the reply, which gives the
+ * round trip time. Without a reply within the timeout the session is dead.
+ *
+ * The interval starts at {@link #MIN_INTERVAL_NANOS} and doubles with every
+ * answered keep-alive up to {@link #MAX_INTERVAL_NANOS}, and drops back when the
+ * round trip time jumps. The timeout follows the smoothed round trip time within
+ * {@link #MIN_TIMEOUT_NANOS} and {@link #MAX_TIMEOUT_NANOS}.
+ */
+final class LivenessMonitor {
+    static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final long MAX_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    static final long MIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(3);
+    static final long MAX_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    interface KeepAlive {
+        void send() throws Exception;
+    }
+
+    interface Listener {
+        void onDead(String reason);
+    }
+
+    private final KeepAlive keepAlive;
+    private final Listener listener;
+    private final LatencyHistogram roundTrips;
+    private final LongSupplier clock;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile long lastReceivedNanos;
+    // only used by check()
+    private boolean awaitingReply;
+    private long keepAliveSentNanos;
+    private long intervalNanos = MIN_INTERVAL_NANOS;
+    private long smoothedRttNanos;
+
+    /**
+     * @param keepAlive sends a keep-alive which the server answers
+     * @param listener told once when the session is found dead
+     * @param roundTrips records the round trip times of the keep-alives
+     */
+    LivenessMonitor(KeepAlive keepAlive, Listener listener, LatencyHistogram roundTrips) {
+        this(keepAlive, listener, roundTrips, System::nanoTime);
+    }
+
+    LivenessMonitor(KeepAlive keepAlive, Listener listener, LatencyHistogram roundTrips, LongSupplier clock) {
+        this.keepAlive = keepAlive;
+        this.listener = listener;
+        this.roundTrips = roundTrips;
+        this.clock = clock;
+        this.lastReceivedNanos = clock.getAsLong();
+    }
+
+    /**
+     * @return the input stream of the session socket, watched by this monitor
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    int read = super.read();
+                    onRead(read == -1 ? -1 : 1);
+                    return read;
+                } catch (IOException ex) {
+                    lost("Read failed: " + ex.getMessage());
+                    throw ex;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    int read = super.read(b, off, len);
+                    onRead(read);
+                    return read;
+                } catch (IOException ex) {
+                    lost("Read failed: " + ex.getMessage());
+                    throw ex;
+                }
+            }
+        };
+    }
+
+    private void onRead(int read) {
+        if (read > 0) {
+            lastReceivedNanos = clock.getAsLong();
+        } else if (read < 0) {
+            lost("Connection closed by the server");
+        }
+    }
+
+    /**
+     * Sends a keep-alive or checks for its reply, called regularly from one thread.
+     */
+    void check() {
+        if (done.get()) {
+            return;
+        }
+        long now = clock.getAsLong();
+        long received = lastReceivedNanos;
+        if (awaitingReply) {
+            if (received - keepAliveSentNanos >= 0) {
+                onReply(received - keepAliveSentNanos);
+            } else if (now - keepAliveSentNanos > getTimeoutNanos()) {
+                lost("No reply to a keep-alive within " + TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos()) + "ms");
+            }
+            return;
+        }
+        if (now - received >= intervalNanos) {
+            awaitingReply = true;
+            keepAliveSentNanos = now;
+            // a write to a dead peer can block, so it does not hold up the checks of other sessions
+            CompletableFuture.runAsync(() -> {
+                try {
+                    keepAlive.send();
+                } catch (Exception ex) {
+                    lost("Keep-alive failed: " + ex.getMessage());
+                }
+            });
+        }
+    }
+
+    private void onReply(long rtt) {
+        awaitingReply = false;
+        roundTrips.record(rtt);
+        if (smoothedRttNanos != 0 && rtt > 2 * smoothedRttNanos) {
+            intervalNanos = MIN_INTERVAL_NANOS;
+        } else {
+            intervalNanos = Math.min(intervalNanos * 2, MAX_INTERVAL_NANOS);
+        }
+        smoothedRttNanos = smoothedRttNanos == 0 ? rtt : (7 * smoothedRttNanos + rtt) / 8;
+    }
+
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    long getTimeoutNanos() {
+        return Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, 4 * smoothedRttNanos));
+    }
+
+    /**
+     * Stops watching, for a session which is closed on purpose.
+     */
+    void stop() {
+        done.set(true);
+    }
+
+    /**
+     * Reports the session dead, only the first report reaches the listener.
+     */
+    void lost(String reason) {
+        if (done.compareAndSet(false, true)) {
+            listener.onDead(reason);
+        }
+    }
+}
@@ -3,60 +3,148 @@ package ssh;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SocketFactory;
 import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.LatencyHistogram;
+import com.testingbot.tunnel.OpenMetrics;
+import com.testingbot.tunnel.OpenMetrics.Family;
+import com.testingbot.tunnel.StartupTimings;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * SSH connection to the tunnel server, with the remote forward into the local
+ * proxy and the local forward to the hub.
+ *
+ * With more than one SSH session (--ssh-sessions) the connections to the hub are
+ * spread over all of them by a {@link SessionForwarder}. The remote forward can
+ * only be bound once on the server, so it stays on the first session. A lost
+ * additional session is reopened on its own; losing the first one reconnects
+ * the whole tunnel.
+ *
+ * The sessions are watched by {@link LivenessMonitor}s, checked every second on
+ * one scheduler thread shared by all tunnels, which also checks the port
+ * forwards. A session is reported dead as soon as its socket closes, and at the
+ * latest {@link LivenessMonitor#MAX_TIMEOUT_NANOS} after an unanswered keep-alive.
+ *
  * @author TestingBot
  */
 public class SSHTunnel {
+    private static final String HUB_HOST = "hub.testingbot.com";
+    private static final long REOPEN_DELAY_SECONDS = 10;
+    private static final ScheduledExecutorService MONITOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ssh-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong deadSessions = new AtomicLong();
+
     private final App app;
     private final JSch jsch;
     private Session session;
+    private final AtomicReferenceArray<Session> sessions;
+    private SessionForwarder sessionForwarder;
     private final String server;
+    private final int localPort;
     private final String connectionId;
-    private Timer keepAliveTimer;
-    private Timer connectionMonitorTimer;
-    private Timer portForwardingMonitorTimer;
+    private final AtomicReferenceArray<LivenessMonitor> monitors;
+    private final LatencyHistogram[] keepAliveRoundTrips;
+    private ScheduledFuture<?> livenessCheck;
+    private ScheduledFuture<?> portForwardingCheck;
+    // bumped by stop(), so a reopen scheduled before does not touch the next connection
+    private volatile int generation;
     private boolean shuttingDown = false;
     private final CustomConnectionMonitor connectionMonitor;
     private boolean portForwardingEstablished = false;
 
     public SSHTunnel(App app, String server) throws Exception {
+        this(app, server, app.getSSHPort());
+    }
+
+    /**
+     * @param localPort the local port forwarded to the hub, a standby tunnel uses one of its own
+     */
+    public SSHTunnel(App app, String server, int localPort) throws Exception {
         /* Create a connection instance */
         this.app = app;
         this.server = server;
+        this.localPort = localPort;
         this.connectionId = UUID.randomUUID().toString().substring(0, 8);
 
         this.jsch = new JSch();
         this.session = null;
+        this.sessions = new AtomicReferenceArray<>(app.getSshSessions());
+        this.monitors = new AtomicReferenceArray<>(sessions.length());
+        this.keepAliveRoundTrips = new LatencyHistogram[sessions.length()];
+        for (int i = 0; i < keepAliveRoundTrips.length; i++) {
+            keepAliveRoundTrips[i] = new LatencyHistogram();
+        }
         this.connectionMonitor = new CustomConnectionMonitor(this, this.app);
         this.connect();
     }
 
     public final void connect() throws Exception {
+        // the additional sessions are opened alongside the first one
+        List<CompletableFuture<Session>> additional = new ArrayList<>();
+        for (int i = 1; i < sessions.length(); i++) {
+            int index = i;
+            additional.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return openSession(index, new TimedSocketFactory(app.getSshProfile()));
+                } catch (JSchException ex) {
+                    throw new CompletionException(ex);
+                }
+            }));
+        }
         try {
             /* Now connect */
             long startTime = System.currentTimeMillis();
-            session = jsch.getSession(app.getClientKey(), server, 443);
-            session.setPassword(app.getClientSecret());
-            session.setConfig("StrictHostKeyChecking", "no");
-            session.connect();
+            long begin = System.nanoTime();
+            TimedSocketFactory socketFactory = new TimedSocketFactory(app.getSshProfile());
+            session = openSession(0, socketFactory);
             long connectTime = System.currentTimeMillis() - startTime;
+            // the key exchange and the authentication happen in the same call
+            app.getStartupTimings().record(StartupTimings.Phase.SSH_CONNECT, begin, begin + socketFactory.connectNanos);
+            app.getStartupTimings().record(StartupTimings.Phase.SSH_AUTH, begin + socketFactory.connectNanos, System.nanoTime());
 
             Logger.getLogger(SSHTunnel.class.getName()).log(Level.INFO,
-                String.format("[%s] Secure connection established in %dms", connectionId, connectTime));
+                String.format("[%s] Secure connection established in %dms, SSH profile %s", connectionId, connectTime, app.getSshProfile().describe()));
         } catch (JSchException ex) {
+            for (CompletableFuture<Session> pending : additional) {
+                pending.thenAccept(Session::disconnect);
+            }
             Logger.getLogger(SSHTunnel.class.getName()).log(Level.SEVERE,
                 String.format("[%s] Connection failed: %s", connectionId, ex.getMessage()), ex);
             throw new Exception("Connection failed: " + ex.getMessage());
         }
+        sessions.set(0, session);
+        for (int i = 1; i < sessions.length(); i++) {
+            try {
+                sessions.set(i, additional.get(i - 1).join());
+            } catch (CompletionException ex) {
+                sessions.set(i, null);
+                Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
+                    String.format("[%s] Could not open SSH session %d, will retry: %s", connectionId, i, ex.getCause().getMessage()));
+                scheduleReopen(i);
+            }
+        }
 
         // Authentication is done during connect() with JSch
         boolean authenticated = session.isConnected();
@@ -67,17 +155,120 @@ public class SSHTunnel {
             throw new Exception("Authentication failed");
         }
 
-        // Start keep-alive timer with configurable interval
-        keepAliveTimer = new Timer("KeepAlive-" + connectionId);
-        keepAliveTimer.schedule(new KeepAliveTask(), 30000, 30000);
+        livenessCheck = MONITOR.scheduleWithFixedDelay(this::checkLiveness, 1, 1, TimeUnit.SECONDS);
+        portForwardingCheck = MONITOR.scheduleWithFixedDelay(this::checkPortForwarding, 15, 15, TimeUnit.SECONDS);
+    }
+
+    private Session openSession(int index, TimedSocketFactory socketFactory) throws JSchException {
+        int current = generation;
+        Session opened = jsch.getSession(app.getClientKey(), server, 443);
+        opened.setPassword(app.getClientSecret());
+        opened.setConfig("StrictHostKeyChecking", "no");
+        app.getSshProfile().applyTo(opened);
+        LivenessMonitor monitor = new LivenessMonitor(opened::sendKeepAliveMsg,
+            reason -> CompletableFuture.runAsync(() -> onSessionDead(index, opened, reason)), keepAliveRoundTrips[index]);
+        socketFactory.monitor = monitor;
+        opened.setSocketFactory(socketFactory);
+        opened.connect();
+        if (generation != current) {
+            // stopped meanwhile, the caller drops the session
+            monitor.stop();
+            return opened;
+        }
+        LivenessMonitor previous = monitors.getAndSet(index, monitor);
+        if (previous != null) {
+            previous.stop();
+        }
+        return opened;
+    }
+
+    private void checkLiveness() {
+        for (int i = 0; i < sessions.length(); i++) {
+            Session current = sessions.get(i);
+            LivenessMonitor monitor = monitors.get(i);
+            if (current == null || monitor == null) {
+                continue;
+            }
+            if (!current.isConnected()) {
+                monitor.lost("Session disconnected");
+            } else {
+                monitor.check();
+            }
+        }
+    }
+
+    private void onSessionDead(int index, Session dead, String reason) {
+        if (shuttingDown || sessions.get(index) != dead) {
+            return;
+        }
+        deadSessions.incrementAndGet();
+        if (index == 0) {
+            connectionMonitor.connectionLost(new Exception(reason));
+            return;
+        }
+        Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
+            String.format("[%s] SSH session %d lost (%s), its connections move to the other sessions", connectionId, index, reason));
+        if (sessions.compareAndSet(index, dead, null)) {
+            dead.disconnect();
+            reopenSession(index, generation);
+        }
+    }
 
-        // Start connection monitoring timer
-        connectionMonitorTimer = new Timer("ConnectionMonitor-" + connectionId);
-        connectionMonitorTimer.schedule(new ConnectionMonitorTask(), 10000, 10000);
+    private void scheduleReopen(int index) {
+        int current = generation;
+        MONITOR.schedule(() -> CompletableFuture.runAsync(() -> reopenSession(index, current)), REOPEN_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
 
-        // Start port forwarding monitoring timer
-        portForwardingMonitorTimer = new Timer("PortForwardingMonitor-" + connectionId);
-        portForwardingMonitorTimer.schedule(new PortForwardingMonitorTask(), 15000, 15000);
+    private void reopenSession(int index, int expectedGeneration) {
+        if (shuttingDown || generation != expectedGeneration) {
+            return;
+        }
+        try {
+            TimedSocketFactory socketFactory = new TimedSocketFactory(app.getSshProfile());
+            Session opened = openSession(index, socketFactory);
+            if (generation != expectedGeneration || !sessions.compareAndSet(index, null, opened)) {
+                socketFactory.monitor.stop();
+                monitors.compareAndSet(index, socketFactory.monitor, null);
+                opened.disconnect();
+                return;
+            }
+            Logger.getLogger(SSHTunnel.class.getName()).log(Level.INFO,
+                String.format("[%s] SSH session %d re-established", connectionId, index));
+        } catch (JSchException ex) {
+            Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
+                String.format("[%s] Could not re-establish SSH session %d, will retry: %s", connectionId, index, ex.getMessage()));
+            scheduleReopen(index);
+        }
+    }
+
+    /**
+     * Exposes the sessions of this tunnel, replacing those of a previous one.
+     */
+    public void registerMetrics() {
+        Family roundTrips = OpenMetrics.histogram("tunnel_ssh_keepalive_rtt_seconds", "Round trip time of the keep-alives sent on idle SSH sessions");
+        for (int i = 0; i < sessions.length(); i++) {
+            roundTrips.sample(OpenMetrics.label("session", String.valueOf(i)), keepAliveRoundTrips[i],
+                OpenMetrics.LATENCY_BUCKETS, OpenMetrics.NANOS_PER_SECOND);
+        }
+        OpenMetrics.counter("tunnel_ssh_dead_sessions", "SSH sessions found dead by the liveness checks")
+            .sample("", deadSessions::get);
+        if (sessions.length() == 1) {
+            return;
+        }
+        Family up = OpenMetrics.gauge("tunnel_ssh_session_up", "Whether an SSH session to the tunnel server is connected");
+        Family channels = OpenMetrics.gauge("tunnel_ssh_session_channels", "Connections to the hub forwarded over an SSH session");
+        for (int i = 0; i < sessions.length(); i++) {
+            int index = i;
+            String label = OpenMetrics.label("session", String.valueOf(index));
+            up.sample(label, () -> {
+                Session current = sessions.get(index);
+                return current != null && current.isConnected() ? 1 : 0;
+            });
+            channels.sample(label, () -> {
+                SessionForwarder forwarder = sessionForwarder;
+                return forwarder == null ? 0 : forwarder.getOpenChannels(index);
+            });
+        }
     }
 
     public void stop(boolean quitting) {
@@ -87,36 +278,91 @@ public class SSHTunnel {
 
     public void stop() {
         Logger.getLogger(SSHTunnel.class.getName()).log(Level.INFO, String.format("[%s] Stopping secure tunnel", connectionId));
-        if (keepAliveTimer != null) {
-            keepAliveTimer.cancel();
+        generation++;
+        if (livenessCheck != null) {
+            livenessCheck.cancel(false);
         }
-        if (connectionMonitorTimer != null) {
-            connectionMonitorTimer.cancel();
+        if (portForwardingCheck != null) {
+            portForwardingCheck.cancel(false);
         }
-        if (portForwardingMonitorTimer != null) {
-            portForwardingMonitorTimer.cancel();
+        for (int i = 0; i < monitors.length(); i++) {
+            LivenessMonitor monitor = monitors.getAndSet(i, null);
+            if (monitor != null) {
+                monitor.stop();
+            }
+        }
+
+        if (sessionForwarder != null) {
+            sessionForwarder.stop();
+            sessionForwarder = null;
         }
 
         if (session != null && session.isConnected()) {
             session.disconnect();
         }
+        for (int i = 1; i < sessions.length(); i++) {
+            Session additional = sessions.getAndSet(i, null);
+            if (additional != null) {
+                additional.disconnect();
+            }
+        }
     }
 
     public void createPortForwarding() {
+        long begin = System.nanoTime();
+        String hubHost = HUB_HOST;
+        int sshPort = localPort;
+        // the remote forward waits for the tunnel server, the local one only binds a port: set them up side by side
+        CompletableFuture<Void> localForward = CompletableFuture.runAsync(() -> {
+            try {
+                forwardLocalPort(sshPort);
+            } catch (JSchException | IOException ex) {
+                throw new CompletionException(ex);
+            }
+        });
         try {
             session.setPortForwardingR(2010, "0.0.0.0", app.getJettyPort());
-            String hubHost = "hub.testingbot.com";
-            session.setPortForwardingL(app.getSSHPort(), hubHost, app.getHubPort());
+            localForward.join();
 
             portForwardingEstablished = true;
+            app.getStartupTimings().record(StartupTimings.Phase.FORWARD, System.nanoTime() - begin);
             Logger.getLogger(SSHTunnel.class.getName()).log(Level.INFO,
                 String.format("[%s] Port forwarding established: %s:2010 -> localhost:%d, localhost:%d -> %s:%d",
-                    connectionId, server, app.getJettyPort(), app.getSSHPort(), hubHost, app.getHubPort()));
-        } catch (JSchException ex) {
+                    connectionId, server, app.getJettyPort(), sshPort, hubHost, app.getHubPort()));
+        } catch (JSchException | CompletionException ex) {
             portForwardingEstablished = false;
             Logger.getLogger(SSHTunnel.class.getName()).log(Level.SEVERE,
-                String.format("[%s] Could not setup port forwarding. Please make sure we can make an outbound connection to port 2010.", connectionId), ex);
+                String.format("[%s] Could not setup port forwarding. Please make sure we can make an outbound connection to port 2010.", connectionId),
+                ex instanceof CompletionException ? ex.getCause() : ex);
+        }
+    }
+
+    private void forwardLocalPort(int sshPort) throws JSchException, IOException {
+        if (sessions.length() == 1) {
+            session.setPortForwardingL(sshPort, HUB_HOST, app.getHubPort());
+            return;
+        }
+        if (sessionForwarder != null) {
+            sessionForwarder.stop();
         }
+        sessionForwarder = new SessionForwarder(sessions, HUB_HOST, app.getHubPort());
+        sessionForwarder.start(sshPort);
+    }
+
+    private boolean isLocalForwardingActive() throws JSchException {
+        if (sessionForwarder != null) {
+            return sessionForwarder.isRunning();
+        }
+        String[] forwardedPorts = session.getPortForwardingL();
+        if (forwardedPorts != null) {
+            // entries look like 4445:hub.testingbot.com:4444
+            for (String forward : forwardedPorts) {
+                if (forward.split(":")[0].equals(String.valueOf(localPort))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     public boolean isShuttingDown() {
@@ -127,6 +373,21 @@ public class SSHTunnel {
         return connectionId;
     }
 
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * @return the local port forwarded to the hub
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public boolean isPortForwardingEstablished() {
+        return portForwardingEstablished;
+    }
+
     /**
      * @return the authenticated
      */
@@ -134,67 +395,57 @@ public class SSHTunnel {
         return session != null && session.isConnected();
     }
 
-    class KeepAliveTask extends TimerTask {
-        @Override
-        public void run() {
-            try {
-                if (session != null && session.isConnected()) {
-                    long startTime = System.currentTimeMillis();
-                    session.sendKeepAliveMsg();
-                    long roundTripTime = System.currentTimeMillis() - startTime;
+    /**
+     * Opens the socket to the tunnel server like JSch does, with the buffer sizes of
+     * the profile, and measures the TCP connect.
+     */
+    private static final class TimedSocketFactory implements SocketFactory {
+        private final int bufferSize;
+        private long connectNanos;
+        private LivenessMonitor monitor;
 
-                    Logger.getLogger(SSHTunnel.class.getName()).log(Level.FINE,
-                        String.format("[%s] Keep-alive sent, RTT: %dms", connectionId, roundTripTime));
-                }
-            } catch (Exception ex) {
-                Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
-                    String.format("[%s] Keep-alive failed: %s", connectionId, ex.getMessage()));
-            }
+        TimedSocketFactory(SshProfile profile) {
+            this.bufferSize = profile.getSocketBufferSize();
         }
-    }
 
-    class ConnectionMonitorTask extends TimerTask {
         @Override
-        public void run() {
-            try {
-                if (session != null && !session.isConnected() && !shuttingDown) {
-                    connectionMonitor.connectionLost(new Exception("Connection lost"));
-                }
-            } catch (Exception ex) {
-                Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
-                    String.format("[%s] Connection monitoring failed: %s", connectionId, ex.getMessage()));
+        public Socket createSocket(String host, int port) throws IOException {
+            long begin = System.nanoTime();
+            Socket socket = new Socket();
+            if (bufferSize > 0) {
+                // set before connecting, so the window scale is negotiated for them
+                socket.setReceiveBufferSize(bufferSize);
+                socket.setSendBufferSize(bufferSize);
             }
+            socket.connect(new InetSocketAddress(host, port));
+            connectNanos = System.nanoTime() - begin;
+            return socket;
         }
-    }
 
-    class PortForwardingMonitorTask extends TimerTask {
         @Override
-        public void run() {
-            try {
-                if (session != null && session.isConnected() && !shuttingDown) {
-                    // Check if port forwarding is still active by testing the forwarded ports
-                    String[] forwardedPorts = session.getPortForwardingL();
-                    boolean localForwardingActive = false;
-
-                    if (forwardedPorts != null) {
-                        for (String port : forwardedPorts) {
-                            if (port.contains(String.valueOf(app.getSSHPort()))) {
-                                localForwardingActive = true;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (!localForwardingActive && portForwardingEstablished) {
-                        Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
-                            String.format("[%s] Local port forwarding lost, attempting to restart", connectionId));
-                        restartPortForwarding();
-                    }
-                }
-            } catch (Exception ex) {
+        public InputStream getInputStream(Socket socket) throws IOException {
+            return monitor == null ? socket.getInputStream() : monitor.wrap(socket.getInputStream());
+        }
+
+        @Override
+        public OutputStream getOutputStream(Socket socket) throws IOException {
+            return socket.getOutputStream();
+        }
+    }
+
+    private void checkPortForwarding() {
+        try {
+            if (session != null && session.isConnected() && !shuttingDown
+                && portForwardingEstablished && !isLocalForwardingActive()) {
                 Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
-                    String.format("[%s] Port forwarding monitoring failed: %s", connectionId, ex.getMessage()));
+                    String.format("[%s] Local port forwarding lost, attempting to restart", connectionId));
+                // waits for the tunnel server, keep the shared monitor thread free
+                portForwardingEstablished = false;
+                CompletableFuture.runAsync(this::restartPortForwarding);
             }
+        } catch (Exception ex) {
+            Logger.getLogger(SSHTunnel.class.getName()).log(Level.WARNING,
+                String.format("[%s] Port forwarding monitoring failed: %s", connectionId, ex.getMessage()));
         }
     }
 
@@ -0,0 +1,177 @@
+package ssh;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local port forward which spreads its connections over several SSH sessions to
+ * the tunnel server.
+ *
+ * JSch multiplexes all channels of a session over one TCP connection with one
+ * cipher stream and one window, so a single session caps the throughput and a
+ * slow channel holds up the others. Every accepted connection becomes a
+ * direct-tcpip channel on the connected session with the fewest open channels;
+ * sessions which are down are skipped until they are back.
+ */
+final class SessionForwarder {
+    static final int CHANNEL_CONNECT_TIMEOUT = 10000;
+
+    private final AtomicReferenceArray<Session> sessions;
+    private final List<ConcurrentLinkedQueue<Channel>> channels;
+    private final String host;
+    private final int port;
+    private final AtomicInteger next = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    /**
+     * @param sessions the sessions to spread over, an entry may be null while its session is being opened
+     * @param host the host the tunnel server connects to
+     * @param port the port the tunnel server connects to
+     */
+    SessionForwarder(AtomicReferenceArray<Session> sessions, String host, int port) {
+        this.sessions = sessions;
+        this.host = host;
+        this.port = port;
+        List<ConcurrentLinkedQueue<Channel>> open = new ArrayList<>(sessions.length());
+        for (int i = 0; i < sessions.length(); i++) {
+            open.add(new ConcurrentLinkedQueue<>());
+        }
+        this.channels = Collections.unmodifiableList(open);
+    }
+
+    /**
+     * Listens on the loopback interface, like a JSch local forward.
+     */
+    void start(int localPort) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ssh-forward");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        Thread acceptor = new Thread(this::accept, "ssh-forward-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void stop() {
+        running = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SessionForwarder.class.getName()).log(Level.FINE, "Could not close the forwarded port", ex);
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    boolean isRunning() {
+        return running && !serverSocket.isClosed();
+    }
+
+    /**
+     * @param session index of the session
+     * @return the number of forwarded connections open on it
+     */
+    int getOpenChannels(int session) {
+        ConcurrentLinkedQueue<Channel> open = channels.get(session);
+        open.removeIf(Channel::isClosed);
+        return open.size();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                // opening a channel is a round trip, do not hold up the next connection
+                executor.execute(() -> open(socket));
+            } catch (IOException ex) {
+                if (running) {
+                    Logger.getLogger(SessionForwarder.class.getName()).log(Level.WARNING, "Could not accept a connection to forward: {0}", ex.getMessage());
+                }
+            }
+        }
+    }
+
+    void open(Socket socket) {
+        int index = pick();
+        if (index == -1) {
+            Logger.getLogger(SessionForwarder.class.getName()).log(Level.WARNING, "No SSH session is connected, dropping the connection to {0}:{1}", new Object[]{host, Integer.toString(port)});
+            close(socket);
+            return;
+        }
+        try {
+            ChannelDirectTCPIP channel = (ChannelDirectTCPIP) sessions.get(index).openChannel("direct-tcpip");
+            channel.setHost(host);
+            channel.setPort(port);
+            channel.setOrgIPAddress(socket.getInetAddress().getHostAddress());
+            channel.setOrgPort(socket.getPort());
+            // the channel closes the socket once either side is done
+            channel.setInputStream(socket.getInputStream());
+            channel.setOutputStream(socket.getOutputStream());
+            channel.connect(CHANNEL_CONNECT_TIMEOUT);
+            channels.get(index).add(channel);
+        } catch (JSchException | IOException ex) {
+            Logger.getLogger(SessionForwarder.class.getName()).log(Level.WARNING, "Could not forward a connection over SSH session {0}: {1}", new Object[]{index, ex.getMessage()});
+            close(socket);
+        }
+    }
+
+    /**
+     * @return the index of the connected session with the fewest open channels, -1 when none is connected
+     */
+    int pick() {
+        int count = sessions.length();
+        // ties go round robin
+        int offset = Math.floorMod(next.getAndIncrement(), count);
+        int best = -1;
+        int bestChannels = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int index = (offset + i) % count;
+            Session session = sessions.get(index);
+            if (session == null || !session.isConnected()) {
+                continue;
+            }
+            int open = getOpenChannels(index);
+            if (open < bestChannels) {
+                best = index;
+                bestChannels = open;
+            }
+        }
+        return best;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SessionForwarder.class.getName()).log(Level.FINE, "Could not close a forwarded connection", ex);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ssh;
+
+import com.jcraft.jsch.Session;
+
+/**
+ * Named sets of SSH algorithms and socket settings, chosen with --ssh-profile.
+ *
+ * The cipher lists are proposals in order of preference; ciphers JSch cannot
+ * load (ChaCha20 needs Bouncy Castle) are left out of the negotiation, and every
+ * list has ciphers the JDK always has.
+ */
+public enum SshProfile {
+    /**
+     * The JSch defaults.
+     */
+    DEFAULT("default", null, null, null, 0, 0),
+    /**
+     * AES-GCM, which the JDK runs with AES-NI and which needs no separate MAC, and
+     * large socket buffers so the TCP window does not cap fast links with a high RTT.
+     */
+    THROUGHPUT("throughput",
+        "aes128-gcm@openssh.com,aes256-gcm@openssh.com,aes128-ctr,aes256-ctr",
+        "hmac-sha2-256-etm@openssh.com,hmac-sha2-256",
+        "none", 0, 4 * 1024 * 1024),
+    /**
+     * AES-128-GCM with ChaCha20-Poly1305 as the alternative, no compression, and the
+     * system socket buffers, so bulk transfers do not queue up in front of commands.
+     * With AES-NI the JDK runs AES-GCM many times faster than ChaCha20.
+     */
+    LOW_LATENCY("low-latency",
+        "aes128-gcm@openssh.com,chacha20-poly1305@openssh.com,aes128-ctr",
+        "hmac-sha2-256-etm@openssh.com,hmac-sha2-256",
+        "none", 0, 0),
+    /**
+     * Compression for thin links, text assets like HTML, CSS and JavaScript shrink several times.
+     */
+    LOW_BANDWIDTH("low-bandwidth",
+        "aes128-gcm@openssh.com,aes128-ctr",
+        "hmac-sha2-256-etm@openssh.com,hmac-sha2-256",
+        "zlib@openssh.com,zlib,none", 6, 0);
+
+    private final String label;
+    private final String ciphers;
+    private final String macs;
+    private final String compression;
+    private final int compressionLevel;
+    private final int socketBufferSize;
+
+    SshProfile(String label, String ciphers, String macs, String compression, int compressionLevel, int socketBufferSize) {
+        this.label = label;
+        this.ciphers = ciphers;
+        this.macs = macs;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    String getCiphers() {
+        return ciphers;
+    }
+
+    String getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the send and receive buffer size of the socket in bytes, 0 for the system default
+     */
+    int getSocketBufferSize() {
+        return socketBufferSize;
+    }
+
+    /**
+     * Sets the algorithm proposals on a session which is not connected yet.
+     */
+    void applyTo(Session session) {
+        if (ciphers == null) {
+            return;
+        }
+        session.setConfig("cipher.c2s", ciphers);
+        session.setConfig("cipher.s2c", ciphers);
+        session.setConfig("mac.c2s", macs);
+        session.setConfig("mac.s2c", macs);
+        session.setConfig("compression.c2s", compression);
+        session.setConfig("compression.s2c", compression);
+        if (compressionLevel > 0) {
+            session.setConfig("compression_level", String.valueOf(compressionLevel));
+        }
+    }
+
+    /**
+     * @param label the name of the profile, for example low-latency
+     * @throws IllegalArgumentException for an unknown name
+     */
+    public static SshProfile fromLabel(String label) {
+        for (SshProfile profile : values()) {
+            if (profile.label.equalsIgnoreCase(label)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown SSH profile: " + label + ". Use default, throughput, low-latency or low-bandwidth.");
+    }
+
+    /**
+     * @return a one line summary for the startup log
+     */
+    public String describe() {
+        if (ciphers == null) {
+            return label + " (JSch defaults)";
+        }
+        StringBuilder sb = new StringBuilder(label).append(" (ciphers ").append(ciphers)
+            .append(", compression ").append(compression);
+        if (compressionLevel > 0) {
+            sb.append(" level ").append(compressionLevel);
+        }
+        if (socketBufferSize > 0) {
+            sb.append(", socket buffers ").append(socketBufferSize / 1024).append(" KB");
+        }
+        return sb.append(')').toString();
+    }
+}
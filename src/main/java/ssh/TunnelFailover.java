@@ -0,0 +1,279 @@
+package ssh;
+
+import com.testingbot.tunnel.Api;
+import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.HttpForwarder;
+import com.testingbot.tunnel.TunnelInfo;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Make-before-break failover to a new tunnel VM (--failover).
+ *
+ * As soon as the SSH connection of the current tunnel is lost, a standby tunnel
+ * is created, polled until it is ready and connected on a local port of its own,
+ * while the reconnect attempts of the current one go on. Whichever is ready
+ * first wins: when the current tunnel comes back the standby is destroyed,
+ * otherwise the forwarder is switched to the standby and the previous tunnel is
+ * destroyed once the commands still relayed over it are done.
+ *
+ * All the work runs on one thread, so {@link #stop()} can wait for a standby
+ * which is being created and destroy it.
+ *
+ * @author TestingBot
+ */
+public class TunnelFailover {
+    private static final long DRAIN_INTERVAL = 1000;
+    private static final long DRAIN_TIMEOUT = 60000;
+    private static final long STOP_TIMEOUT = 30000;
+    private static volatile Thread failoverThread;
+    private static final ScheduledExecutorService FAILOVER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-failover");
+        thread.setDaemon(true);
+        failoverThread = thread;
+        return thread;
+    });
+
+    /**
+     * Connects the SSH tunnel of a standby tunnel VM.
+     */
+    interface Connector {
+        SSHTunnel connect(String ip, int localPort) throws Exception;
+    }
+
+    private final App app;
+    private final Supplier<Api> apis;
+    private final Connector connector;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    // the tunnel the standby is meant to replace, null once it came back
+    private volatile SSHTunnel replacing;
+    private volatile boolean stopped;
+    // only used on the failover thread
+    private Api standbyApi;
+    private TunnelPoller standbyPoller;
+    private final Map<SSHTunnel, Api> draining = new LinkedHashMap<>();
+
+    public TunnelFailover(App app) {
+        this(app, () -> new Api(app), (ip, localPort) -> new SSHTunnel(app, ip, localPort));
+    }
+
+    TunnelFailover(App app, Supplier<Api> apis, Connector connector) {
+        this.app = app;
+        this.apis = apis;
+        this.connector = connector;
+    }
+
+    /**
+     * Starts a standby tunnel, unless one is on its way already.
+     *
+     * @param tunnel the tunnel which lost its SSH connection
+     */
+    public void connectionLost(SSHTunnel tunnel) {
+        if (stopped || app.getTunnel() != tunnel || !pending.compareAndSet(false, true)) {
+            return;
+        }
+        replacing = tunnel;
+        Logger.getLogger(TunnelFailover.class.getName()).log(Level.INFO,
+            String.format("[%s] Starting a standby tunnel", tunnel.getConnectionId()));
+        FAILOVER.execute(this::create);
+    }
+
+    /**
+     * The tunnel is back, a standby started for it is not needed anymore.
+     */
+    public void connectionRestored(SSHTunnel tunnel) {
+        if (replacing == tunnel) {
+            replacing = null;
+        }
+    }
+
+    /**
+     * @return whether a standby tunnel is being started
+     */
+    public boolean isPending() {
+        return pending.get();
+    }
+
+    /**
+     * Destroys the standby tunnel which is being started and the previous tunnels
+     * which are still draining, waits until that is done.
+     */
+    public void stop() {
+        stopped = true;
+        if (Thread.currentThread() == failoverThread) {
+            destroyAll();
+            return;
+        }
+        try {
+            // runs after the step the standby is in right now
+            FAILOVER.submit(this::destroyAll).get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ex) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING, "Could not destroy the standby tunnel: {0}", String.valueOf(ex));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void destroyAll() {
+        if (standbyApi != null) {
+            discard(standbyApi, null);
+        }
+        for (Map.Entry<SSHTunnel, Api> previous : draining.entrySet()) {
+            destroy(previous.getValue(), previous.getKey());
+        }
+        draining.clear();
+    }
+
+    private void create() {
+        if (stopped) {
+            pending.set(false);
+            return;
+        }
+        Api api = apis.get();
+        standbyApi = api;
+        try {
+            TunnelInfo tunnelData = api.createTunnel();
+            if (tunnelData.hasError()) {
+                throw new Exception(tunnelData.getError());
+            }
+            api.setTunnelID(Integer.parseInt(tunnelData.getId()));
+            if (tunnelData.isReady()) {
+                ready(api, tunnelData);
+                return;
+            }
+            standbyPoller = new TunnelPoller(api, tunnelData.getId(), new TunnelPoller.Listener() {
+                @Override
+                public void tunnelReady(TunnelInfo tunnel) {
+                    FAILOVER.execute(() -> ready(api, tunnel));
+                }
+
+                @Override
+                public void pollingFailed(String reason) {
+                    Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING, "Could not poll the standby tunnel: {0}", reason);
+                    FAILOVER.execute(() -> discard(api, null));
+                }
+            });
+        } catch (Exception ex) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING, "Could not create a standby tunnel: {0}", ex.getMessage());
+            try {
+                api.close();
+            } catch (IOException closeEx) {
+                Logger.getLogger(TunnelFailover.class.getName()).log(Level.FINE, "Could not close the API client", closeEx);
+            }
+            standbyApi = null;
+            pending.set(false);
+        }
+    }
+
+    private void ready(Api api, TunnelInfo tunnelData) {
+        if (api != standbyApi) {
+            // destroyed by stop()
+            return;
+        }
+        standbyPoller = null;
+        if (isObsolete()) {
+            discard(api, null);
+            return;
+        }
+        try {
+            connect(api, tunnelData);
+        } catch (Exception ex) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING, "Standby tunnel failed: {0}", ex.getMessage());
+            discard(api, null);
+        }
+    }
+
+    private void connect(Api api, TunnelInfo tunnelData) throws Exception {
+        SSHTunnel standby = connector.connect(tunnelData.getIp(), findFreePort());
+        standby.createPortForwarding();
+        if (!standby.isPortForwardingEstablished()) {
+            discard(api, standby);
+            return;
+        }
+        SSHTunnel previous = replacing;
+        if (isObsolete()) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.INFO,
+                String.format("[%s] The tunnel came back, the standby tunnel is not needed", standby.getConnectionId()));
+            discard(api, standby);
+            return;
+        }
+        Api previousApi = app.getApi();
+        app.switchTunnel(standby, api, Integer.parseInt(tunnelData.getId()));
+        standbyApi = null;
+        replacing = null;
+        pending.set(false);
+        Logger.getLogger(TunnelFailover.class.getName()).log(Level.INFO,
+            String.format("[%s] Switched to the standby tunnel, ip: %s. Destroying the previous tunnel once its commands are done.",
+                standby.getConnectionId(), standby.getServer()));
+        draining.put(previous, previousApi);
+        drain(previous, System.currentTimeMillis());
+    }
+
+    private void drain(SSHTunnel previous, long since) {
+        Api previousApi = draining.get(previous);
+        if (previousApi == null) {
+            // destroyed by stop()
+            return;
+        }
+        HttpForwarder forwarder = app.getHttpForwarder();
+        long active = forwarder == null ? 0 : forwarder.getActiveRequests(previous.getLocalPort());
+        if (active > 0 && System.currentTimeMillis() - since < DRAIN_TIMEOUT) {
+            FAILOVER.schedule(() -> drain(previous, since), DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (active > 0) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING,
+                String.format("[%s] %d commands still running on the previous tunnel after %ds, destroying it", previous.getConnectionId(), active, DRAIN_TIMEOUT / 1000));
+        }
+        draining.remove(previous);
+        destroy(previousApi, previous);
+    }
+
+    private boolean isObsolete() {
+        SSHTunnel previous = replacing;
+        return stopped || previous == null || app.getTunnel() != previous;
+    }
+
+    private void discard(Api api, SSHTunnel standby) {
+        if (api != standbyApi) {
+            // destroyed by stop()
+            return;
+        }
+        if (standbyPoller != null) {
+            standbyPoller.cancel();
+            standbyPoller = null;
+        }
+        standbyApi = null;
+        destroy(api, standby);
+        pending.set(false);
+    }
+
+    private static void destroy(Api api, SSHTunnel tunnel) {
+        if (tunnel != null) {
+            tunnel.stop(true);
+        }
+        try {
+            api.destroyTunnel();
+            api.close();
+        } catch (Exception ex) {
+            Logger.getLogger(TunnelFailover.class.getName()).log(Level.WARNING, "Could not destroy tunnel: {0}", ex.getMessage());
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
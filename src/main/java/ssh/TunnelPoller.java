@@ -2,59 +2,147 @@ package ssh;
 
 import com.testingbot.tunnel.Api;
 import com.testingbot.tunnel.App;
-import java.util.Timer;
-import java.util.TimerTask;
+import com.testingbot.tunnel.TunnelInfo;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import com.fasterxml.jackson.databind.JsonNode;
 
 /**
+ * Polls a new tunnel until its VM is ready.
+ *
+ * Polls are fast at first and back off with jitter up to {@link #MAX_DELAY},
+ * so a VM which boots quickly is noticed within a fraction of a second. Every
+ * poll is conditional and lets the API hold it until the state changes; a held
+ * poll is followed by the next one at once.
+ *
+ * The delays run on one shared scheduler, the polls themselves on threads of
+ * their own, so a poll held by the API does not hold up the polls of another
+ * tunnel, like the standby of a failover.
  *
  * @author TestingBot
  */
 public class TunnelPoller {
-    private final App app;
-    private final Timer timer;
+    static final long BASE_DELAY = 250;
+    static final long MAX_DELAY = 2000;
+    static final int WAIT_SECONDS = 10;
+    private static final long TIMEOUT = 400000;
+    private static final ScheduledExecutorService POLLS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // a poll may be held for WAIT_SECONDS
+    private static final ExecutorService REQUESTS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-poller-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the outcome of the polling, on the poller thread.
+     */
+    public interface Listener {
+        void tunnelReady(TunnelInfo tunnel);
+
+        void pollingFailed(String reason);
+    }
+
+    private final Api api;
     private final String tunnelID;
+    private final Listener listener;
+    private final Backoff backoff;
+    private final long timeoutMillis;
+    private final long startedAt = System.currentTimeMillis();
+    private volatile boolean cancelled;
+    private volatile ScheduledFuture<?> next;
+    // only used on the poller thread
+    private TunnelInfo previous;
 
     public TunnelPoller(App app, String tunnelID) {
-        this.app = app;
+        this(app.getApi(), tunnelID, new Listener() {
+            @Override
+            public void tunnelReady(TunnelInfo tunnel) {
+                app.tunnelReady(tunnel);
+            }
+
+            @Override
+            public void pollingFailed(String reason) {
+                app.tunnelFailed(reason);
+            }
+        });
+    }
+
+    public TunnelPoller(Api api, String tunnelID, Listener listener) {
+        this(api, tunnelID, listener, new Backoff(BASE_DELAY, MAX_DELAY), TIMEOUT);
+    }
+
+    TunnelPoller(Api api, String tunnelID, Listener listener, Backoff backoff, long timeoutMillis) {
+        this.api = api;
         this.tunnelID = tunnelID;
-        timer = new Timer();
-        timer.schedule(new PollTask(), 5000, 5000);
+        this.listener = listener;
+        this.backoff = backoff;
+        this.timeoutMillis = timeoutMillis;
+        // the tunnel was just created, skip the immediate attempt
+        backoff.nextDelayMillis();
+        schedule(backoff.nextDelayMillis());
     }
 
     public void cancel() {
-        timer.cancel();
+        cancelled = true;
+        ScheduledFuture<?> future = next;
+        if (future != null) {
+            future.cancel(false);
+        }
     }
 
-    class PollTask extends TimerTask {
-        int counter = 0;
-
-        @Override
-        public void run() {
-            Api api = app.getApi();
-            JsonNode response;
-            try {
-                response = api.pollTunnel(tunnelID);
-
-                if (this.counter > 80) {
-                    Logger.getLogger(TunnelPoller.class.getName()).log(Level.SEVERE, "Unable to create tunnel, waited for 400 seconds. Please try again or check https://status.testingbot.com");
-                    timer.cancel();
-                    return;
-                }
-
-                if (response.get("state").asText().equals("READY")) {
-                   timer.cancel();
-                   app.tunnelReady(response);
-                } else {
-                    this.counter += 1;
-                    Logger.getLogger(TunnelPoller.class.getName()).log(Level.INFO, "Current tunnel status: {0}", response.get("state").asText());
-                }
-            } catch (Exception ex) {
-                timer.cancel();
-                Logger.getLogger(TunnelPoller.class.getName()).log(Level.SEVERE, "Unable to poll for tunnel status.");
-            }
+    private void schedule(long delay) {
+        if (!cancelled) {
+            next = POLLS.schedule(() -> REQUESTS.execute(this::poll), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void poll() {
+        if (cancelled) {
+            return;
+        }
+        TunnelInfo response;
+        long begin = System.currentTimeMillis();
+        try {
+            response = api.pollTunnel(tunnelID, previous, WAIT_SECONDS);
+        } catch (Exception ex) {
+            cancelled = true;
+            Logger.getLogger(TunnelPoller.class.getName()).log(Level.SEVERE, "Unable to poll for tunnel status.");
+            listener.pollingFailed(ex.getMessage());
+            return;
+        }
+        if (cancelled) {
+            return;
+        }
+
+        if (response.isReady()) {
+            cancelled = true;
+            listener.tunnelReady(response);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - startedAt >= timeoutMillis) {
+            cancelled = true;
+            Logger.getLogger(TunnelPoller.class.getName()).log(Level.SEVERE,
+                "Unable to create tunnel, waited for {0} seconds. Please try again or check https://status.testingbot.com", timeoutMillis / 1000);
+            listener.pollingFailed("not ready after " + (timeoutMillis / 1000) + " seconds");
+            return;
+        }
+
+        if (previous == null || !String.valueOf(previous.getState()).equals(response.getState())) {
+            Logger.getLogger(TunnelPoller.class.getName()).log(Level.INFO, "Current tunnel status: {0}", response.getState());
         }
+        previous = response;
+        // time the API held the poll counts towards the delay
+        schedule(Math.max(0, backoff.nextDelayMillis() - (now - begin)));
     }
 }
@@ -0,0 +1,115 @@
+package com.testingbot.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for AccessLog
+ */
+class AccessLogTest {
+
+    private ByteArrayOutputStream out;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        out = new ByteArrayOutputStream();
+    }
+
+    @Test
+    void drain_shouldWriteFormattedEntries() {
+        // Given: Two queued entries
+        AccessLog log = new AccessLog(16, out);
+        log.log(Statistics.Route.HTTP, "GET", "http", "example.com", 80, "/index.html", 200, 12_000_000);
+        log.log(Statistics.Route.CONNECT, "CONNECT", "https", "example.com", 8443, null, 200, 3_000_000);
+
+        // When: Draining
+        int written = log.drain();
+
+        // Then: Both lines should be written, default ports left out
+        String text = out.toString(StandardCharsets.US_ASCII);
+        assertThat(written).isEqualTo(2);
+        assertThat(text).contains("[GET] http://example.com/index.html (200) - 12 ms\n");
+        assertThat(text).contains("[CONNECT] https://example.com:8443 (200) - 3 ms connect\n");
+    }
+
+    @Test
+    void log_whenFull_shouldDropAndReport() {
+        // Given: A full buffer
+        AccessLog log = new AccessLog(4, out);
+        for (int i = 0; i < 4; i++) {
+            assertThat(log.log(Statistics.Route.HTTP, "GET", "http", "example.com", 80, "/" + i, 200, 0)).isTrue();
+        }
+
+        // When: Logging one more entry
+        boolean queued = log.log(Statistics.Route.HTTP, "GET", "http", "example.com", 80, "/dropped", 200, 0);
+
+        // Then: It should be dropped without blocking and reported on the next drain
+        assertThat(queued).isFalse();
+        assertThat(log.getDropped()).isEqualTo(1);
+        assertThat(log.drain()).isEqualTo(4);
+        assertThat(out.toString(StandardCharsets.US_ASCII)).contains("dropped 1 entries").doesNotContain("/dropped");
+
+        // And: The freed slots should be reusable
+        assertThat(log.log(Statistics.Route.HTTP, "GET", "http", "example.com", 80, "/again", 200, 0)).isTrue();
+    }
+
+    @Test
+    void log_fromManyThreads_shouldNotLoseEntries() throws Exception {
+        // Given: A buffer large enough for all entries
+        AccessLog log = new AccessLog(4096, out);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch done = new CountDownLatch(8);
+
+        // When: Logging concurrently
+        for (int t = 0; t < 8; t++) {
+            executor.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    log.log(Statistics.Route.FORWARDER, "POST", "http", "localhost", 4445, "/wd/hub/session", 200, 0);
+                }
+                done.countDown();
+            });
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+
+        // Then: Every entry should be written exactly once
+        assertThat(log.drain()).isEqualTo(4000);
+        assertThat(log.getDropped()).isZero();
+        assertThat(out.toString(StandardCharsets.US_ASCII).split("\n")).hasSize(4000);
+    }
+
+    @Test
+    void rollingFile_shouldRollOverAtMaximumSize() throws Exception {
+        // Given: A rolling file of at most 100 bytes
+        Path file = tempDir.resolve("access.log");
+        AccessLog.RollingFile rolling = new AccessLog.RollingFile(file, 100, 2);
+        byte[] line = new byte[60];
+
+        // When: Writing more than fits
+        rolling.write(line, 0, line.length);
+        rolling.write(line, 0, line.length);
+        rolling.write(line, 0, line.length);
+        rolling.write(line, 0, line.length);
+        rolling.close();
+
+        // Then: Only the configured number of old files should be kept
+        assertThat(Files.size(file)).isEqualTo(60);
+        assertThat(rolling.rolled(1)).exists();
+        assertThat(rolling.rolled(2)).exists();
+        assertThat(rolling.rolled(3)).doesNotExist();
+    }
+}
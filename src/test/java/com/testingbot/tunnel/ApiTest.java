@@ -2,16 +2,22 @@ package com.testingbot.tunnel;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
-import com.fasterxml.jackson.databind.JsonNode;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.lang.reflect.Field;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import ssh.TunnelPoller;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
@@ -62,11 +68,11 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Creating tunnel
-        JsonNode result = api.createTunnel();
+        TunnelInfo result = api.createTunnel();
 
         // Then: Should return parsed JSON
-        assertThat(result.get("id").asText()).isEqualTo("123");
-        assertThat(result.get("state").asText()).isEqualTo("READY");
+        assertThat(result.getId()).isEqualTo("123");
+        assertThat(result.getState()).isEqualTo("READY");
 
         // And: Request should have correct headers
         String expectedAuth = "Basic " + Base64.getEncoder().encodeToString("test_key:test_secret".getBytes());
@@ -194,12 +200,12 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Polling tunnel
-        JsonNode result = api.pollTunnel("12345");
+        TunnelInfo result = api.pollTunnel("12345");
 
         // Then: Should return parsed JSON
-        assertThat(result.get("id").asText()).isEqualTo("12345");
-        assertThat(result.get("state").asText()).isEqualTo("READY");
-        assertThat(result.get("ip").asText()).isEqualTo("192.168.1.100");
+        assertThat(result.getId()).isEqualTo("12345");
+        assertThat(result.getState()).isEqualTo("READY");
+        assertThat(result.getIp()).isEqualTo("192.168.1.100");
 
         // And: Request should have correct auth header
         String expectedAuth = "Basic " + Base64.getEncoder().encodeToString("test_key:test_secret".getBytes());
@@ -286,11 +292,11 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Creating tunnel
-        JsonNode result = api.createTunnel();
+        TunnelInfo result = api.createTunnel();
 
-        // Then: Should parse correctly
-        assertThat(result.get("id").asText()).isEqualTo("escaped-test");
-        assertThat(result.get("message").asText()).isEqualTo("test value");
+        // Then: Should parse correctly, fields outside of the model are skipped
+        assertThat(result.getId()).isEqualTo("escaped-test");
+        assertThat(result.getIp()).isEqualTo("10.0.0.6");
     }
 
     @Test
@@ -305,11 +311,12 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Polling tunnel
-        JsonNode result = api.pollTunnel("starting-123");
+        TunnelInfo result = api.pollTunnel("starting-123");
 
         // Then: Should correctly parse state
-        assertThat(result.get("state").asText()).isEqualTo("STARTING");
-        assertThat(result.get("progress").asInt()).isEqualTo(50);
+        assertThat(result.getState()).isEqualTo("STARTING");
+        assertThat(result.isReady()).isFalse();
+        assertThat(result.getIp()).isNull();
     }
 
     @Test
@@ -385,14 +392,14 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Polling tunnel
-        JsonNode result = api.pollTunnel("full-response");
+        TunnelInfo result = api.pollTunnel("full-response");
 
         // Then: All fields should be accessible
-        assertThat(result.get("id").asText()).isEqualTo("full-response");
-        assertThat(result.get("state").asText()).isEqualTo("READY");
-        assertThat(result.get("ip").asText()).isEqualTo("10.0.0.11");
-        assertThat(result.get("version").asText()).isEqualTo("4.4");
-        assertThat(result.get("port").asInt()).isEqualTo(2010);
+        assertThat(result.getId()).isEqualTo("full-response");
+        assertThat(result.getState()).isEqualTo("READY");
+        assertThat(result.getIp()).isEqualTo("10.0.0.11");
+        assertThat(result.getVersion()).isEqualTo("4.4");
+        assertThat(result.hasError()).isFalse();
     }
 
     @Test
@@ -467,13 +474,138 @@ class ApiTest {
         api = createApiWithMockServer();
 
         // When: Making multiple calls
-        JsonNode createResult = api.createTunnel();
-        JsonNode pollResult = api.pollTunnel("seq-1");
+        TunnelInfo createResult = api.createTunnel();
+        TunnelInfo pollResult = api.pollTunnel("seq-1");
         api.setTunnelID(1);
         api.destroyTunnel();
 
         // Then: All should succeed
-        assertThat(createResult.get("id").asText()).isEqualTo("seq-1");
-        assertThat(pollResult.get("state").asText()).isEqualTo("RUNNING");
+        assertThat(createResult.getId()).isEqualTo("seq-1");
+        assertThat(pollResult.getState()).isEqualTo("RUNNING");
+    }
+
+    @Test
+    void createTunnel_withError_shouldReturnTheError() throws Exception {
+        // Given: The API refuses the credentials
+        wireMockServer.stubFor(post(urlPathEqualTo("/v1/tunnel/create"))
+            .willReturn(aResponse()
+                .withStatus(401)
+                .withHeader("Content-Type", "application/json")
+                .withBody("{\"error\":\"401 Unauthorized\",\"details\":{\"code\":401}}")));
+
+        api = createApiWithMockServer();
+
+        // When
+        TunnelInfo result = api.createTunnel();
+
+        // Then
+        assertThat(result.hasError()).isTrue();
+        assertThat(result.getError()).isEqualTo("401 Unauthorized");
+        assertThat(result.getId()).isNull();
+    }
+
+    @Test
+    void pollTunnel_withResponseWrappedInAString_shouldUnwrapIt() throws Exception {
+        // Given: An object sent as a JSON encoded string, with a numeric id
+        wireMockServer.stubFor(get(urlPathEqualTo("/v1/tunnel/77"))
+            .willReturn(aResponse()
+                .withStatus(200)
+                .withBody("\"{\\\"id\\\":77,\\\"state\\\":\\\"READY\\\",\\\"ip\\\":\\\"10.0.0.14\\\"}\"")));
+
+        api = createApiWithMockServer();
+
+        // When
+        TunnelInfo result = api.pollTunnel("77");
+
+        // Then
+        assertThat(result.getId()).isEqualTo("77");
+        assertThat(result.isReady()).isTrue();
+        assertThat(result.getIp()).isEqualTo("10.0.0.14");
+    }
+
+    @Test
+    void pollTunnel_shouldReuseOneKeptAliveConnection() throws Exception {
+        // Given
+        wireMockServer.stubFor(get(urlPathEqualTo("/v1/tunnel/88"))
+            .willReturn(aResponse()
+                .withStatus(200)
+                .withBody("{\"id\":\"88\",\"state\":\"STARTING\"}")));
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create().build();
+        api = createApiWithMockServer();
+        api.setHttpClientBuilderSupplier(() -> HttpClientBuilder.create().setConnectionManager(connectionManager));
+
+        // When: Polling a few times
+        for (int i = 0; i < 3; i++) {
+            api.pollTunnel("88");
+        }
+
+        // Then: A single connection should have been opened and kept in the pool
+        assertThat(connectionManager.getTotalStats().getAvailable()).isEqualTo(1);
+        assertThat(connectionManager.getTotalStats().getLeased()).isZero();
+        api.close();
+    }
+
+    @Test
+    void pollTunnel_whenNotModified_shouldReturnThePreviousAnswer() throws Exception {
+        // Given: The API tags its answer and answers 304 to a matching If-None-Match
+        wireMockServer.stubFor(get(urlPathEqualTo("/v1/tunnel/99"))
+            .willReturn(aResponse()
+                .withStatus(200)
+                .withHeader("ETag", "\"v1\"")
+                .withBody("{\"id\":\"99\",\"state\":\"STARTING\"}")));
+        wireMockServer.stubFor(get(urlPathEqualTo("/v1/tunnel/99"))
+            .withHeader("If-None-Match", containing("v1"))
+            .willReturn(aResponse().withStatus(304)));
+
+        api = createApiWithMockServer();
+
+        // When
+        TunnelInfo first = api.pollTunnel("99", null, 5);
+        TunnelInfo second = api.pollTunnel("99", first, 5);
+
+        // Then
+        // WireMock appends its content encoding to the ETag
+        assertThat(first.getEtag()).startsWith("\"v1");
+        assertThat(second).isSameAs(first);
+        wireMockServer.verify(getRequestedFor(urlPathEqualTo("/v1/tunnel/99"))
+            .withHeader("Prefer", equalTo("wait=5")));
+    }
+
+    @Test
+    void tunnelPoller_shouldStopPollingOnceTheTunnelIsReady() throws Exception {
+        // Given: A tunnel which is ready on the fourth poll
+        String[] states = {"STARTING", "STARTING", "BOOTING", "READY"};
+        for (int i = 0; i < states.length; i++) {
+            wireMockServer.stubFor(get(urlPathEqualTo("/v1/tunnel/55"))
+                .inScenario("boot")
+                .whenScenarioStateIs(i == 0 ? STARTED : "poll" + i)
+                .willSetStateTo("poll" + (i + 1))
+                .willReturn(aResponse()
+                    .withStatus(200)
+                    .withBody("{\"id\":\"55\",\"state\":\"" + states[i] + "\",\"ip\":\"10.0.0.55\"}")));
+        }
+        api = createApiWithMockServer();
+        CompletableFuture<TunnelInfo> ready = new CompletableFuture<>();
+        long begin = System.nanoTime();
+
+        // When
+        new TunnelPoller(api, "55", new TunnelPoller.Listener() {
+            @Override
+            public void tunnelReady(TunnelInfo tunnel) {
+                ready.complete(tunnel);
+            }
+
+            @Override
+            public void pollingFailed(String reason) {
+                ready.completeExceptionally(new Exception(reason));
+            }
+        });
+
+        // Then: Four polls take seconds rather than the 20 seconds of a fixed 5 second interval
+        assertThat(ready.get(10, TimeUnit.SECONDS).getIp()).isEqualTo("10.0.0.55");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)).isLessThan(8000);
+        Thread.sleep(1000);
+        wireMockServer.verify(4, getRequestedFor(urlPathEqualTo("/v1/tunnel/55")));
+        api.close();
     }
 }
@@ -1,10 +1,19 @@
 package com.testingbot.tunnel;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import ssh.SSHTunnel;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class AppTest {
 
@@ -122,4 +131,82 @@ class AppTest {
         // Then
         assertThat(app.getProxy()).isEqualTo(proxyConfig);
     }
+
+    @Test
+    void switchTunnel_shouldMakeTheStandbyTheCurrentTunnel() {
+        // Given: A connected standby tunnel
+        SSHTunnel standby = mock(SSHTunnel.class);
+        when(standby.getLocalPort()).thenReturn(45678);
+        when(standby.getServer()).thenReturn("10.0.0.2");
+        Api standbyApi = mock(Api.class);
+        app.setServerIP("10.0.0.1");
+
+        // When
+        app.switchTunnel(standby, standbyApi, 42);
+
+        // Then
+        assertThat(app.getTunnel()).isSameAs(standby);
+        assertThat(app.getApi()).isSameAs(standbyApi);
+        assertThat(app.getTunnelID()).isEqualTo(42);
+        assertThat(app.getSSHPort()).isEqualTo(45678);
+        assertThat(app.getServerIP()).isEqualTo("10.0.0.2");
+        verify(standby).registerMetrics();
+    }
+
+    @Test
+    void selfTest_shouldWaitForTheForwarderTestForAtMostTheBudget() throws Exception {
+        // Given: A forwarder test which hangs
+        StartupTimings timings = new StartupTimings();
+        CountDownLatch hanging = new CountDownLatch(1);
+        long begin = System.nanoTime();
+
+        // When
+        App.selfTest(timings, 4445, () -> {
+            await(hanging);
+            return true;
+        }, null, 200);
+
+        // Then: The ready file is not held up for longer
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)).isBetween(200L, 2000L);
+        assertThat(timings.getSelfTestResult(StartupTimings.SelfTest.FORWARDER)).isEqualTo(StartupTimings.SELF_TEST_PENDING);
+        hanging.countDown();
+    }
+
+    @Test
+    void selfTest_shouldReportTheProxyTestInTheBackground() throws Exception {
+        // Given: A proxy test slower than the forwarder test
+        StartupTimings timings = new StartupTimings();
+        OpenMetrics.registerStartupTimings(timings);
+        CountDownLatch proxyAnswered = new CountDownLatch(1);
+
+        // When
+        App.selfTest(timings, 4445, () -> true, () -> {
+            await(proxyAnswered);
+            return true;
+        }, 5000);
+
+        // Then: Only the forwarder test was waited for
+        assertThat(timings.getSelfTestResult(StartupTimings.SelfTest.FORWARDER)).isEqualTo(StartupTimings.SELF_TEST_PASSED);
+        assertThat(metrics()).contains("tunnel_self_test_result{test=\"proxy\"} 0");
+        proxyAnswered.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!metrics().contains("tunnel_self_test_result{test=\"proxy\"} 1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(metrics()).contains("tunnel_self_test_result{test=\"proxy\"} 1");
+    }
+
+    private static String metrics() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OpenMetrics.getInstance().writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package com.testingbot.tunnel;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the control socket of --reuse
+ */
+class ControlServerTest {
+
+    private App app;
+    private ControlServer server;
+    private final CountDownLatch idle = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() {
+        app = new App();
+        app.setJettyPort(8123);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void attach_shouldWaitUntilTheTunnelIsReady() throws Exception {
+        // Given: A background tunnel which is still starting
+        server = new ControlServer(app, 0, "abc", 60000, idle::countDown);
+
+        // When: A job attaches
+        CompletableFuture<ControlClient.Attachment> attaching = CompletableFuture.supplyAsync(() -> {
+            try {
+                return ControlClient.attach(server.getPort(), "abc", null, null);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+
+        // Then: It is counted, and answered once the tunnel is ready
+        awaitAttached(1);
+        assertThat(attaching).isNotDone();
+        server.tunnelReady();
+        try (ControlClient.Attachment attachment = attaching.get(5, TimeUnit.SECONDS)) {
+            assertThat(attachment.getSeleniumPort()).isEqualTo(app.getSeleniumPort());
+            assertThat(attachment.getProxyPort()).isEqualTo(8123);
+        }
+        awaitAttached(0);
+    }
+
+    @Test
+    void attach_whenReady_shouldTakeMilliseconds() throws Exception {
+        // Given
+        server = new ControlServer(app, 0, "abc", 60000, idle::countDown);
+        server.tunnelReady();
+        long begin = System.nanoTime();
+
+        // When
+        try (ControlClient.Attachment first = ControlClient.attach(server.getPort(), "abc", null, null);
+             ControlClient.Attachment second = ControlClient.attach(server.getPort(), "abc", null, null)) {
+            // Then
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)).isLessThan(1000);
+            awaitAttached(2);
+        }
+        awaitAttached(0);
+    }
+
+    @Test
+    void lastDetach_shouldStopTheTunnelAfterTheIdleTimeout() throws Exception {
+        // Given
+        server = new ControlServer(app, 0, "abc", 200, idle::countDown);
+        server.tunnelReady();
+
+        // When: A job attaches for longer than the idle timeout and then detaches
+        try (ControlClient.Attachment attachment = ControlClient.attach(server.getPort(), "abc", null, null)) {
+            Thread.sleep(500);
+            assertThat(idle.getCount()).isEqualTo(1);
+        }
+
+        // Then
+        assertThat(idle.await(2, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void attach_whenTheTunnelFails_shouldReportWhyAndStopIt() throws Exception {
+        // Given: A job waits for the tunnel
+        server = new ControlServer(app, 0, "abc", 60000, idle::countDown);
+        CompletableFuture<ControlClient.Attachment> attaching = CompletableFuture.supplyAsync(() -> {
+            try {
+                return ControlClient.attach(server.getPort(), "abc", null, null);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        awaitAttached(1);
+
+        // When
+        server.tunnelFailed("not ready after 400 seconds");
+
+        // Then
+        assertThatThrownBy(() -> attaching.get(5, TimeUnit.SECONDS))
+            .hasRootCauseInstanceOf(IOException.class)
+            .hasMessageContaining("could not be started: not ready after 400 seconds");
+        assertThat(idle.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void attach_withOtherOptions_shouldBeRefused() throws Exception {
+        // Given
+        server = new ControlServer(app, 0, "abc", 60000, idle::countDown);
+        server.tunnelReady();
+
+        // When/Then
+        assertThatThrownBy(() -> ControlClient.attach(server.getPort(), "other", null, null))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("other options");
+        assertThat(server.getAttached()).isZero();
+    }
+
+    @Test
+    void fingerprint_shouldIgnoreTheOrderAndTheOptionsOfTheJob() throws Exception {
+        // Given
+        Options options = new Options();
+        options.addOption("f", "readyfile", true, "");
+        options.addOption("P", "se-port", true, "");
+        options.addOption("j", "localproxy", true, "");
+        options.addOption("s", "shared", false, "");
+        options.addOption(null, "reuse", false, "");
+        DefaultParser parser = new DefaultParser();
+        CommandLine first = parser.parse(options, new String[] {"--reuse", "-f", "/tmp/a", "-s", "--se-port", "4446", "key", "secret"});
+        CommandLine second = parser.parse(options, new String[] {"--se-port", "4446", "--reuse", "-s", "key", "secret", "--readyfile", "/tmp/b"});
+        CommandLine other = parser.parse(options, new String[] {"--reuse", "-s", "--se-port", "4447", "key", "secret"});
+        CommandLine swapped = parser.parse(options, new String[] {"-P", "4446", "-j", "8087", "key", "secret"});
+        CommandLine swappedValues = parser.parse(options, new String[] {"-P", "8087", "-j", "4446", "key", "secret"});
+        CommandLine swappedArguments = parser.parse(options, new String[] {"-P", "4446", "-j", "8087", "secret", "key"});
+
+        // When
+        String fingerprint = ControlClient.fingerprint("key", ControlClient.tunnelArguments(first));
+
+        // Then
+        assertThat(ControlClient.tunnelArguments(first)).containsExactly(
+            List.of("--shared"), List.of("--se-port", "4446"), List.of("key", "secret"));
+        assertThat(ControlClient.fingerprint("key", ControlClient.tunnelArguments(second))).isEqualTo(fingerprint);
+        assertThat(ControlClient.fingerprint("key", ControlClient.tunnelArguments(other))).isNotEqualTo(fingerprint);
+        // an option keeps its values, the positional arguments keep their order
+        String swappedFingerprint = ControlClient.fingerprint("key", ControlClient.tunnelArguments(swapped));
+        assertThat(ControlClient.fingerprint("key", ControlClient.tunnelArguments(swappedValues))).isNotEqualTo(swappedFingerprint);
+        assertThat(ControlClient.fingerprint("key", ControlClient.tunnelArguments(swappedArguments))).isNotEqualTo(swappedFingerprint);
+    }
+
+    private void awaitAttached(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getAttached() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(server.getAttached()).isEqualTo(expected);
+    }
+}
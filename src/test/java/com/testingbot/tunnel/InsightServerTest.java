@@ -11,8 +11,6 @@ import org.junit.jupiter.api.Test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import java.lang.reflect.Field;
-
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -194,6 +192,94 @@ class InsightServerTest {
         }
     }
 
+    @Test
+    void metricsEndpoint_shouldReturnRouteBreakdown() throws Exception {
+        // Given: Traffic on several proxy paths
+        resetStatistics();
+        Statistics.addRequest(Statistics.Route.CONNECT);
+        Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.UPSTREAM, 10);
+        Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.DOWNSTREAM, 20);
+        Statistics.addRequest(Statistics.Route.FORWARDER);
+
+        app.setMetricsPort(8992);
+        insightServer = new InsightServer(app);
+        Thread.sleep(500);
+
+        // When: Getting metrics
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            HttpGet request = new HttpGet("http://localhost:8992/");
+            client.execute(request, response -> {
+                String body = EntityUtils.toString(response.getEntity());
+                JsonNode routes = objectMapper.readTree(body).get("routes");
+
+                // Then: Each route should be reported
+                assertThat(routes.get("connect").get("requests").asLong()).isEqualTo(1);
+                assertThat(routes.get("connect").get("bytesUpstream").asLong()).isEqualTo(10);
+                assertThat(routes.get("connect").get("bytesDownstream").asLong()).isEqualTo(20);
+                assertThat(routes.get("forwarder").get("requests").asLong()).isEqualTo(1);
+                assertThat(routes.get("http").get("requests").asLong()).isEqualTo(0);
+                assertThat(routes.has("websocket")).isTrue();
+                return null;
+            });
+        }
+    }
+
+    @Test
+    void metricsEndpoint_shouldReturnLatencyPercentiles() throws Exception {
+        // Given: Recorded latencies for the proxy
+        resetStatistics();
+        Statistics.getTimeToFirstByte(Statistics.Route.HTTP).record(2_000_000);
+        Statistics.getTotalTime(Statistics.Route.HTTP).record(5_000_000);
+
+        app.setMetricsPort(8991);
+        insightServer = new InsightServer(app);
+        Thread.sleep(500);
+
+        // When: Getting metrics
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            HttpGet request = new HttpGet("http://localhost:8991/");
+            client.execute(request, response -> {
+                String body = EntityUtils.toString(response.getEntity());
+                JsonNode http = objectMapper.readTree(body).get("latency").get("http");
+
+                // Then: Percentiles should be reported in milliseconds
+                assertThat(http.get("ttfb").get("count").asLong()).isEqualTo(1);
+                assertThat(http.get("ttfb").get("p50").asDouble()).isEqualTo(2.0);
+                assertThat(http.get("total").get("p99").asDouble()).isEqualTo(5.0);
+                assertThat(http.get("total").has("p999")).isTrue();
+                return null;
+            });
+        }
+    }
+
+    @Test
+    void prometheusEndpoint_shouldReturnOpenMetrics() throws Exception {
+        // Given: A recorded CONNECT request
+        resetStatistics();
+        Statistics.addRequest(Statistics.Route.CONNECT);
+        Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.UPSTREAM, 321);
+
+        app.setMetricsPort(8990);
+        insightServer = new InsightServer(app);
+        Thread.sleep(500);
+
+        // When: Scraping /metrics
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            HttpGet request = new HttpGet("http://localhost:8990/metrics");
+            client.execute(request, response -> {
+                String body = EntityUtils.toString(response.getEntity());
+
+                // Then: The OpenMetrics exposition should be returned
+                assertThat(response.getCode()).isEqualTo(200);
+                assertThat(response.getFirstHeader("Content-Type").getValue()).startsWith("application/openmetrics-text");
+                assertThat(body).contains("tunnel_requests_total{route=\"connect\"} 1\n");
+                assertThat(body).contains("tunnel_bytes_total{route=\"connect\",direction=\"upstream\"} 321\n");
+                assertThat(body).endsWith("# EOF\n");
+                return null;
+            });
+        }
+    }
+
     @Test
     void metricsEndpoint_shouldHandleMultipleRequests() throws Exception {
         // Given: Running InsightServer
@@ -215,19 +301,9 @@ class InsightServerTest {
     }
 
     /**
-     * Reset static fields using reflection
+     * Reset static counters
      */
-    private void resetStatistics() throws Exception {
-        Field requestsField = Statistics.class.getDeclaredField("numberOfRequests");
-        requestsField.setAccessible(true);
-        requestsField.setLong(null, 0);
-
-        Field bytesField = Statistics.class.getDeclaredField("bytesTransferred");
-        bytesField.setAccessible(true);
-        bytesField.setLong(null, 0);
-
-        Field startTimeField = Statistics.class.getDeclaredField("startTime");
-        startTimeField.setAccessible(true);
-        startTimeField.setLong(null, 0);
+    private void resetStatistics() {
+        Statistics.reset();
     }
 }
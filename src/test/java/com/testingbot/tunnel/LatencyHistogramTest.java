@@ -0,0 +1,92 @@
+package com.testingbot.tunnel;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Tests for LatencyHistogram
+ */
+class LatencyHistogramTest {
+
+    private LatencyHistogram histogram;
+
+    @BeforeEach
+    void setUp() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    void emptyHistogram_shouldReportZero() {
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+    }
+
+    @Test
+    void record_shouldTrackCountSumAndMax() {
+        // When: Recording a few values
+        histogram.record(1_000);
+        histogram.record(2_000);
+        histogram.record(3_000);
+
+        // Then: Aggregates should be exact
+        assertThat(histogram.getCount()).isEqualTo(3);
+        assertThat(histogram.getSum()).isEqualTo(6_000);
+        assertThat(histogram.getMax()).isEqualTo(3_000);
+    }
+
+    @Test
+    void percentiles_shouldStayWithinRelativeError() {
+        // Given: 1ms .. 1000ms uniformly
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+
+        // Then: Percentiles should be within 2% of the exact value
+        assertThat((double) histogram.getValueAtPercentile(50)).isCloseTo(500_000_000d, within(10_000_000d));
+        assertThat((double) histogram.getValueAtPercentile(90)).isCloseTo(900_000_000d, within(18_000_000d));
+        assertThat((double) histogram.getValueAtPercentile(99)).isCloseTo(990_000_000d, within(19_800_000d));
+        assertThat(histogram.getValueAtPercentile(99.9)).isLessThanOrEqualTo(histogram.getMax());
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(1_000_000_000L);
+    }
+
+    @Test
+    void record_withNegativeValue_shouldCountAsZero() {
+        histogram.record(-5);
+
+        assertThat(histogram.getCount()).isEqualTo(1);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    void record_withHugeValue_shouldBeClamped() {
+        histogram.record(Long.MAX_VALUE);
+
+        assertThat(histogram.getCount()).isEqualTo(1);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(histogram.getMax());
+    }
+
+    @Test
+    void bucketIndexes_shouldBeContiguous() {
+        // Every bucket upper bound + 1 should map to the next bucket
+        for (int i = 0; i < histogram.getBuckets() - 1; i++) {
+            long upper = LatencyHistogram.getBucketUpperBound(i);
+            assertThat(LatencyHistogram.indexOf(upper)).isEqualTo(i);
+            assertThat(LatencyHistogram.indexOf(upper + 1)).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    void reset_shouldClearEverything() {
+        histogram.record(42);
+        histogram.reset();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getSum()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,116 @@
+package com.testingbot.tunnel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for OpenMetrics
+ */
+class OpenMetricsTest {
+
+    @BeforeEach
+    void setUp() {
+        Statistics.reset();
+    }
+
+    @Test
+    void render_shouldExposeCountersPerRoute() throws Exception {
+        // Given: Requests on two routes
+        Statistics.addRequest(Statistics.Route.HTTP);
+        Statistics.addRequest(Statistics.Route.HTTP);
+        Statistics.addRequest(Statistics.Route.WEBSOCKET);
+        Statistics.connectionOpened(Statistics.Route.WEBSOCKET);
+
+        // When: Rendering
+        String text = scrape();
+
+        // Then: Every route should have its own sample
+        assertThat(text).contains("# TYPE tunnel_requests counter\n");
+        assertThat(text).contains("tunnel_requests_total{route=\"http\"} 2\n");
+        assertThat(text).contains("tunnel_requests_total{route=\"websocket\"} 1\n");
+        assertThat(text).contains("tunnel_open_connections{route=\"websocket\"} 1\n");
+        assertThat(text).contains("jvm_threads ");
+        assertThat(text).endsWith("# EOF\n");
+    }
+
+    @Test
+    void render_shouldExposeCumulativeHistogramBuckets() throws Exception {
+        // Given: A 3ms and a 40ms time to first byte
+        Statistics.getTimeToFirstByte(Statistics.Route.FORWARDER).record(3_000_000);
+        Statistics.getTimeToFirstByte(Statistics.Route.FORWARDER).record(40_000_000);
+
+        // When: Rendering
+        String text = scrape();
+
+        // Then: Buckets are cumulative and in seconds
+        String name = "tunnel_time_to_first_byte_seconds";
+        assertThat(text).contains(name + "_bucket{route=\"forwarder\",le=\"0.0025\"} 0\n");
+        assertThat(text).contains(name + "_bucket{route=\"forwarder\",le=\"0.005\"} 1\n");
+        assertThat(text).contains(name + "_bucket{route=\"forwarder\",le=\"0.05\"} 2\n");
+        assertThat(text).contains(name + "_bucket{route=\"forwarder\",le=\"+Inf\"} 2\n");
+        assertThat(text).contains(name + "_count{route=\"forwarder\"} 2\n");
+        assertThat(text).contains(name + "_sum{route=\"forwarder\"} 0.043\n");
+    }
+
+    @Test
+    void registerThreadPool_shouldExposeJettyThreads() throws Exception {
+        // Given: A registered thread pool
+        QueuedThreadPool pool = new QueuedThreadPool(16, 2);
+        OpenMetrics.registerThreadPool("test", pool);
+
+        // When: Rendering
+        String text = scrape();
+
+        // Then: The pool gauges should be exposed
+        assertThat(text).contains("jetty_threads_max{pool=\"test\"} 16\n");
+        assertThat(text).contains("jetty_queue_size{pool=\"test\"} 0\n");
+    }
+
+    @Test
+    void sample_withSameLabels_shouldReplacePreviousSample() throws Exception {
+        OpenMetrics.gauge("test_replaced", "Replaced gauge").sample("a=\"1\"", () -> 1);
+        OpenMetrics.gauge("test_replaced", "Replaced gauge").sample("a=\"1\"", () -> 2);
+
+        String text = scrape();
+
+        assertThat(text).contains("test_replaced{a=\"1\"} 2\n");
+        assertThat(text).doesNotContain("test_replaced{a=\"1\"} 1\n");
+    }
+
+    @Test
+    void family_withDifferentType_shouldBeRejected() {
+        OpenMetrics.counter("test_typed", "Typed counter");
+
+        assertThatThrownBy(() -> OpenMetrics.gauge("test_typed", "Typed gauge"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void label_shouldEscapeValues() {
+        assertThat(OpenMetrics.label("gc", "a\"b\\c")).isEqualTo("gc=\"a\\\"b\\\\c\"");
+    }
+
+    @Test
+    void appendScaled_shouldPrintExactDecimals() {
+        StringBuilder sb = new StringBuilder();
+        OpenMetrics.appendScaled(sb, 2_500_000_000L, OpenMetrics.NANOS_PER_SECOND);
+        sb.append(' ');
+        OpenMetrics.appendScaled(sb, 1_000_000L, OpenMetrics.NANOS_PER_SECOND);
+        sb.append(' ');
+        OpenMetrics.appendScaled(sb, 60_000_000_000L, OpenMetrics.NANOS_PER_SECOND);
+
+        assertThat(sb.toString()).isEqualTo("2.5 0.001 60");
+    }
+
+    private String scrape() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OpenMetrics.getInstance().writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
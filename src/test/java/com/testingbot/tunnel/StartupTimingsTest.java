@@ -0,0 +1,119 @@
+package com.testingbot.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StartupTimingsTest {
+
+    @Test
+    void phases_shouldBeReportedInMilliseconds() {
+        // Given
+        StartupTimings timings = new StartupTimings();
+
+        // When
+        timings.record(StartupTimings.Phase.API_CREATE, TimeUnit.MILLISECONDS.toNanos(120));
+        timings.record(StartupTimings.Phase.SSH_AUTH, TimeUnit.MILLISECONDS.toNanos(450));
+
+        // Then
+        assertThat(timings.getMillis(StartupTimings.Phase.API_CREATE)).isEqualTo(120);
+        assertThat(timings.getMillis(StartupTimings.Phase.POLL)).isEqualTo(0);
+        assertThat(timings.toString()).startsWith("api_create=120ms poll=0ms ssh_connect=0ms ssh_auth=450ms ");
+    }
+
+    @Test
+    void total_shouldOnlyBeKnownOnceReady() throws InterruptedException {
+        // Given
+        StartupTimings timings = new StartupTimings();
+        Thread.sleep(5);
+
+        // Then
+        assertThat(timings.getTotalMillis()).isEqualTo(0);
+
+        // When
+        timings.ready();
+
+        // Then
+        assertThat(timings.getTotalMillis()).isGreaterThanOrEqualTo(5);
+        assertThat(timings.toString()).endsWith("total=" + timings.getTotalMillis() + "ms");
+    }
+
+    @Test
+    void criticalPath_shouldFollowThePhasesWaitedFor() {
+        // Given: The local work is done while the tunnel VM boots
+        StartupTimings timings = new StartupTimings();
+        long start = System.nanoTime();
+        timings.record(StartupTimings.Phase.API_CREATE, start, start + millis(100));
+        timings.record(StartupTimings.Phase.LOCAL_PREPARE, start, start + millis(20));
+        timings.record(StartupTimings.Phase.PROXY_START, start + millis(20), start + millis(200));
+        timings.record(StartupTimings.Phase.POLL, start + millis(100), start + millis(3100));
+        timings.record(StartupTimings.Phase.SSH_CONNECT, start + millis(3100), start + millis(3150));
+        timings.record(StartupTimings.Phase.SSH_AUTH, start + millis(3150), start + millis(3400));
+        timings.record(StartupTimings.Phase.FORWARD, start + millis(3400), start + millis(3450));
+        timings.record(StartupTimings.Phase.FORWARDER_SELF_TEST, start + millis(3450), start + millis(3600));
+        // goes through the forwarding, not part of the local work
+        timings.record(StartupTimings.Phase.PROXY_SELF_TEST, start + millis(3600), start + millis(3700));
+
+        // Then
+        assertThat(timings.getCriticalPath()).containsExactly(
+            StartupTimings.Phase.API_CREATE, StartupTimings.Phase.POLL, StartupTimings.Phase.SSH_CONNECT,
+            StartupTimings.Phase.SSH_AUTH, StartupTimings.Phase.FORWARD, StartupTimings.Phase.PROXY_SELF_TEST);
+        assertThat(timings.trace())
+            .contains("proxy_start")
+            .contains("critical path: api_create (100ms) -> poll (3000ms) -> ssh_connect (50ms)");
+    }
+
+    @Test
+    void criticalPath_shouldSkipPhasesWhichDidNotRun() {
+        // Given: A tunnel which was ready right away, without polling
+        StartupTimings timings = new StartupTimings();
+        long start = System.nanoTime();
+        timings.record(StartupTimings.Phase.API_CREATE, start, start + millis(100));
+        timings.record(StartupTimings.Phase.SSH_CONNECT, start + millis(100), start + millis(150));
+
+        // Then
+        assertThat(timings.getCriticalPath()).containsExactly(StartupTimings.Phase.API_CREATE, StartupTimings.Phase.SSH_CONNECT);
+    }
+
+    @Test
+    void criticalPath_shouldLeaveOutPhasesWhichEndedAfterTheTunnelWasReady() {
+        // Given: The proxy self-test is still running when the tunnel is ready
+        StartupTimings timings = new StartupTimings();
+        long start = System.nanoTime() - millis(1000);
+        timings.record(StartupTimings.Phase.API_CREATE, start, start + millis(100));
+        timings.record(StartupTimings.Phase.FORWARD, start + millis(100), start + millis(150));
+        timings.record(StartupTimings.Phase.FORWARDER_SELF_TEST, start + millis(150), System.nanoTime());
+        timings.ready();
+
+        // When
+        timings.record(StartupTimings.Phase.PROXY_SELF_TEST, start + millis(150), System.nanoTime() + millis(1000));
+
+        // Then
+        assertThat(timings.getCriticalPath()).containsExactly(
+            StartupTimings.Phase.API_CREATE, StartupTimings.Phase.FORWARD, StartupTimings.Phase.FORWARDER_SELF_TEST);
+    }
+
+    @Test
+    void selfTests_shouldBePendingUntilDone() {
+        // Given
+        StartupTimings timings = new StartupTimings();
+
+        // When
+        timings.selfTestDone(StartupTimings.SelfTest.FORWARDER, true);
+
+        // Then
+        assertThat(timings.getSelfTestResult(StartupTimings.SelfTest.FORWARDER)).isEqualTo(StartupTimings.SELF_TEST_PASSED);
+        assertThat(timings.getSelfTestResult(StartupTimings.SelfTest.PROXY)).isEqualTo(StartupTimings.SELF_TEST_PENDING);
+
+        // When
+        timings.selfTestDone(StartupTimings.SelfTest.PROXY, false);
+
+        // Then
+        assertThat(timings.getSelfTestResult(StartupTimings.SelfTest.PROXY)).isEqualTo(StartupTimings.SELF_TEST_FAILED);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
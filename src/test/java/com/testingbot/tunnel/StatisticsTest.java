@@ -3,8 +3,6 @@ package com.testingbot.tunnel;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import java.lang.reflect.Field;
-
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
@@ -111,20 +109,100 @@ class StatisticsTest {
         assertThat(Statistics.getBytesTransferred()).isEqualTo(2L * 1024L * 1024L * 1024L);
     }
 
+    @Test
+    void addRequest_perRoute_shouldBeTrackedSeparately() {
+        // When: Recording requests on different proxy paths
+        Statistics.addRequest(Statistics.Route.HTTP);
+        Statistics.addRequest(Statistics.Route.CONNECT);
+        Statistics.addRequest(Statistics.Route.CONNECT);
+        Statistics.addRequest(Statistics.Route.FORWARDER);
+
+        // Then: Each route keeps its own count and the total sums them
+        assertThat(Statistics.getNumberOfRequests(Statistics.Route.HTTP)).isEqualTo(1);
+        assertThat(Statistics.getNumberOfRequests(Statistics.Route.CONNECT)).isEqualTo(2);
+        assertThat(Statistics.getNumberOfRequests(Statistics.Route.WEBSOCKET)).isEqualTo(0);
+        assertThat(Statistics.getNumberOfRequests(Statistics.Route.FORWARDER)).isEqualTo(1);
+        assertThat(Statistics.getNumberOfRequests()).isEqualTo(4);
+    }
+
+    @Test
+    void addBytesTransferred_perDirection_shouldBeTrackedSeparately() {
+        // When: Recording bytes in both directions
+        Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.UPSTREAM, 100);
+        Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.DOWNSTREAM, 4000);
+        Statistics.addBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM, 50);
+
+        // Then: Breakdown and total should match
+        assertThat(Statistics.getBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.UPSTREAM)).isEqualTo(100);
+        assertThat(Statistics.getBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.DOWNSTREAM)).isEqualTo(4000);
+        assertThat(Statistics.getBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM)).isEqualTo(50);
+        assertThat(Statistics.getBytesTransferred(Statistics.Route.HTTP, Statistics.Direction.DOWNSTREAM)).isEqualTo(0);
+        assertThat(Statistics.getBytesTransferred()).isEqualTo(4150);
+    }
+
+    @Test
+    void concurrentUpdates_shouldNotLoseCounts() throws Exception {
+        // Given: Many threads recording at the same time
+        int threads = 8;
+        int iterations = 10000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < iterations; j++) {
+                    Statistics.addRequest(Statistics.Route.CONNECT);
+                    Statistics.addBytesTransferred(Statistics.Route.CONNECT, Statistics.Direction.DOWNSTREAM, 2);
+                }
+            });
+            workers[i].start();
+        }
+
+        // When: All threads are done
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // Then: No update should be lost
+        assertThat(Statistics.getNumberOfRequests(Statistics.Route.CONNECT)).isEqualTo((long) threads * iterations);
+        assertThat(Statistics.getBytesTransferred()).isEqualTo(2L * threads * iterations);
+    }
+
+    @Test
+    void getThroughput_shouldAverageOverWindowOfAtLeastOneSecond() throws Exception {
+        // Given: A first poll opens the window
+        assertThat(Statistics.getThroughput(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM)).isEqualTo(0);
+        Statistics.addBytesTransferred(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM, 4096);
+
+        // When: Polled again within the second
+        long early = Statistics.getThroughput(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM);
+
+        // Then: The window is not closed yet
+        assertThat(early).isEqualTo(0);
+
+        // When: Polled after the second
+        Thread.sleep(1100);
+        long rate = Statistics.getThroughput(Statistics.Route.WEBSOCKET, Statistics.Direction.DOWNSTREAM);
+
+        // Then: The bytes are spread over the window
+        assertThat(rate).isBetween(1L, 4096L);
+        assertThat(Statistics.getThroughput(Statistics.Route.WEBSOCKET, Statistics.Direction.UPSTREAM)).isEqualTo(0);
+    }
+
+    @Test
+    void addWebSocketFrames_shouldCountPerDirection() {
+        // When
+        Statistics.addWebSocketFrames(Statistics.Direction.UPSTREAM, 3);
+        Statistics.addWebSocketFrames(Statistics.Direction.DOWNSTREAM, 5);
+        Statistics.addWebSocketFrames(Statistics.Direction.DOWNSTREAM, 1);
+
+        // Then
+        assertThat(Statistics.getWebSocketFrames(Statistics.Direction.UPSTREAM)).isEqualTo(3);
+        assertThat(Statistics.getWebSocketFrames(Statistics.Direction.DOWNSTREAM)).isEqualTo(6);
+    }
+
     /**
-     * Reset static fields using reflection
+     * Reset static counters
      */
-    private void resetStatistics() throws Exception {
-        Field requestsField = Statistics.class.getDeclaredField("numberOfRequests");
-        requestsField.setAccessible(true);
-        requestsField.setLong(null, 0);
-
-        Field bytesField = Statistics.class.getDeclaredField("bytesTransferred");
-        bytesField.setAccessible(true);
-        bytesField.setLong(null, 0);
-
-        Field startTimeField = Statistics.class.getDeclaredField("startTime");
-        startTimeField.setAccessible(true);
-        startTimeField.setLong(null, 0);
+    private void resetStatistics() {
+        Statistics.reset();
     }
 }
@@ -0,0 +1,49 @@
+package com.testingbot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebDriverCommandTest {
+
+    @Test
+    void match_shouldRecogniseSessionCommands() {
+        assertThat(WebDriverCommand.match("POST", "/session")).isEqualTo(WebDriverCommand.NEW_SESSION);
+        assertThat(WebDriverCommand.match("DELETE", "/session/abc")).isEqualTo(WebDriverCommand.DELETE_SESSION);
+        assertThat(WebDriverCommand.match("POST", "/session/abc/url")).isEqualTo(WebDriverCommand.NAVIGATE_TO);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/url")).isEqualTo(WebDriverCommand.GET_CURRENT_URL);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/screenshot")).isEqualTo(WebDriverCommand.TAKE_SCREENSHOT);
+        assertThat(WebDriverCommand.match("POST", "/session/abc/execute/sync")).isEqualTo(WebDriverCommand.EXECUTE_SCRIPT);
+    }
+
+    @Test
+    void match_shouldRecogniseElementCommands() {
+        assertThat(WebDriverCommand.match("POST", "/session/abc/element")).isEqualTo(WebDriverCommand.FIND_ELEMENT);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/element/active")).isEqualTo(WebDriverCommand.GET_ACTIVE_ELEMENT);
+        assertThat(WebDriverCommand.match("POST", "/session/abc/element/e-1/click")).isEqualTo(WebDriverCommand.ELEMENT_CLICK);
+        assertThat(WebDriverCommand.match("POST", "/session/abc/element/e-1/element")).isEqualTo(WebDriverCommand.FIND_ELEMENT_FROM_ELEMENT);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/element/e-1/attribute/href")).isEqualTo(WebDriverCommand.GET_ELEMENT_ATTRIBUTE);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/element/e-1/screenshot")).isEqualTo(WebDriverCommand.TAKE_ELEMENT_SCREENSHOT);
+    }
+
+    @Test
+    void match_belowAPrefix_shouldSkipThePrefix() {
+        assertThat(WebDriverCommand.match("POST", "/wd/hub/session")).isEqualTo(WebDriverCommand.NEW_SESSION);
+        assertThat(WebDriverCommand.match("POST", "/wd/hub/session/abc/element/e-1/value")).isEqualTo(WebDriverCommand.ELEMENT_SEND_KEYS);
+        assertThat(WebDriverCommand.match("GET", "/wd/hub/status")).isEqualTo(WebDriverCommand.STATUS);
+    }
+
+    @Test
+    void match_withTrailingSlash_shouldMatch() {
+        assertThat(WebDriverCommand.match("GET", "/session/abc/title/")).isEqualTo(WebDriverCommand.GET_TITLE);
+    }
+
+    @Test
+    void match_unknownRequests_shouldBeOther() {
+        assertThat(WebDriverCommand.match("PUT", "/session/abc/url")).isEqualTo(WebDriverCommand.OTHER);
+        assertThat(WebDriverCommand.match("GET", "/session/abc/unknown")).isEqualTo(WebDriverCommand.OTHER);
+        assertThat(WebDriverCommand.match("GET", "/")).isEqualTo(WebDriverCommand.OTHER);
+        assertThat(WebDriverCommand.match("GET", "")).isEqualTo(WebDriverCommand.OTHER);
+        assertThat(WebDriverCommand.match("GET", null)).isEqualTo(WebDriverCommand.OTHER);
+    }
+}
@@ -0,0 +1,97 @@
+package com.testingbot.tunnel.proxy;
+
+import org.eclipse.jetty.io.AbstractConnection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for AdaptiveBufferSize
+ */
+class AdaptiveBufferSizeTest {
+
+    private AbstractConnection connection;
+
+    @BeforeEach
+    void setUp() {
+        connection = new AbstractConnection(null, Runnable::run) {
+            @Override
+            public void onFillable() {
+            }
+        };
+    }
+
+    @Test
+    void fullReads_shouldGrowUpToMaximum() {
+        // Given
+        AdaptiveBufferSize size = new AdaptiveBufferSize(connection, 4096);
+
+        // When
+        size.onRead(4096);
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(8192);
+        assertThat(connection.getInputBufferSize()).isEqualTo(8192);
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            size.onRead(size.getSize());
+        }
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(AdaptiveBufferSize.MAX_SIZE);
+        assertThat(connection.getInputBufferSize()).isEqualTo(AdaptiveBufferSize.MAX_SIZE);
+    }
+
+    @Test
+    void smallReads_shouldShrinkDownToMinimum() {
+        // Given
+        AdaptiveBufferSize size = new AdaptiveBufferSize(connection, 4096);
+
+        // When
+        for (int i = 0; i < AdaptiveBufferSize.SHRINK_AFTER - 1; i++) {
+            size.onRead(10);
+        }
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(4096);
+
+        // When
+        size.onRead(10);
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(2048);
+
+        // When
+        for (int i = 0; i < 10 * AdaptiveBufferSize.SHRINK_AFTER; i++) {
+            size.onRead(10);
+        }
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(AdaptiveBufferSize.MIN_SIZE);
+        assertThat(connection.getInputBufferSize()).isEqualTo(AdaptiveBufferSize.MIN_SIZE);
+    }
+
+    @Test
+    void mediumReadsAndIdleReads_shouldKeepSize() {
+        // Given
+        AdaptiveBufferSize size = new AdaptiveBufferSize(connection, 4096);
+
+        // When
+        for (int i = 0; i < 4 * AdaptiveBufferSize.SHRINK_AFTER; i++) {
+            size.onRead(i % 2 == 0 ? 10 : 2048);
+            size.onRead(0);
+            size.onRead(-1);
+        }
+
+        // Then
+        assertThat(size.getSize()).isEqualTo(4096);
+    }
+
+    @Test
+    void initialSize_shouldBeClamped() {
+        assertThat(new AdaptiveBufferSize(connection, 1).getSize()).isEqualTo(AdaptiveBufferSize.MIN_SIZE);
+        assertThat(new AdaptiveBufferSize(connection, 1 << 20).getSize()).isEqualTo(AdaptiveBufferSize.MAX_SIZE);
+    }
+}
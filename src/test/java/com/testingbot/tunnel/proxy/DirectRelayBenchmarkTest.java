@@ -0,0 +1,132 @@
+package com.testingbot.tunnel.proxy;
+
+import com.testingbot.tunnel.App;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the throughput of a CONNECT tunnel with Jetty's relay loop and with {@link DirectRelay}.
+ *
+ * Only runs when asked for: mvn test -Dtest=DirectRelayBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class DirectRelayBenchmarkTest {
+
+    private static final int TRANSFER_BYTES = 256 * 1024 * 1024;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    private ServerSocket source;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        // Given: A target which sends a large download to every connection
+        source = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            byte[] chunk = new byte[64 * 1024];
+            while (!source.isClosed()) {
+                try (Socket socket = source.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    for (int sent = 0; sent < TRANSFER_BYTES; sent += chunk.length) {
+                        out.write(chunk);
+                    }
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        source.close();
+    }
+
+    @Test
+    void relayThroughput() throws Exception {
+        // When: Downloading through both relays
+        double jetty = measure(false);
+        double direct = measure(true);
+
+        // Then
+        System.out.printf("CONNECT relay of %d MB: jetty %.0f MB/s, direct %.0f MB/s (%+.1f%%)%n",
+            TRANSFER_BYTES / (1024 * 1024), jetty, direct, (direct / jetty - 1) * 100);
+        assertThat(direct).isPositive();
+    }
+
+    private double measure(boolean directRelay) throws Exception {
+        App app = new App();
+        CustomConnectHandler handler = new CustomConnectHandler(app);
+        if (directRelay) {
+            handler.setByteBufferPool(DirectRelay.newBufferPool());
+            handler.setDirectRelay(true);
+        }
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(handler);
+        server.start();
+        try {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                download(connector.getLocalPort());
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                best = Math.min(best, download(connector.getLocalPort()));
+            }
+            return TRANSFER_BYTES / (1024.0 * 1024.0) / (best / 1e9);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return the nanoseconds it took to receive the whole download
+     */
+    private long download(int proxyPort) throws IOException {
+        try (Socket client = new Socket("localhost", proxyPort)) {
+            client.getOutputStream().write(("CONNECT localhost:" + source.getLocalPort() + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = client.getInputStream();
+            assertThat(readHeaders(in)).startsWith("HTTP/1.1 200");
+
+            long start = System.nanoTime();
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            int read;
+            while (received < TRANSFER_BYTES && (read = in.read(buffer)) > 0) {
+                received += read;
+            }
+            long elapsed = System.nanoTime() - start;
+            assertThat(received).isEqualTo(TRANSFER_BYTES);
+            return elapsed;
+        }
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            headers.write(b);
+            if (headers.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+                break;
+            }
+        }
+        return headers.toString(StandardCharsets.US_ASCII);
+    }
+}
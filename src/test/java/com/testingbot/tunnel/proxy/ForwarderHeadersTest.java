@@ -0,0 +1,65 @@
+package com.testingbot.tunnel.proxy;
+
+import com.testingbot.tunnel.App;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.PreEncodedHttpField;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ForwarderHeadersTest {
+
+    private App app;
+
+    @BeforeEach
+    void setUp() {
+        app = new App();
+        app.setClientKey("key");
+        app.setClientSecret("secret");
+    }
+
+    @Test
+    void of_shouldBuildPreEncodedTunnelHeaders() {
+        // Given
+        app.setServerIP("10.0.0.1");
+
+        // When
+        ForwarderHeaders headers = ForwarderHeaders.of(app);
+
+        // Then
+        assertThat(headers.getServerIP()).isEqualTo("10.0.0.1");
+        assertThat(headers.getSshPort()).isEqualTo(app.getSSHPort());
+        assertThat(headers.getFields()).extracting(HttpField::getName)
+            .containsExactly("TB-Tunnel", "TB-Tunnel-Version", "TB-Credentials");
+        assertThat(headers.getFields()).allMatch(field -> field instanceof PreEncodedHttpField);
+        assertThat(headers.getFields().get(2).getValue()).isEqualTo("key_secret");
+    }
+
+    @Test
+    void of_withoutServerIP_shouldLeaveTunnelHeaderOut() {
+        // When
+        ForwarderHeaders headers = ForwarderHeaders.of(app);
+
+        // Then
+        assertThat(headers.getFields()).extracting(HttpField::getName)
+            .doesNotContain("TB-Tunnel");
+    }
+
+    @Test
+    void of_withPac_shouldAddPacHeader() {
+        // Given
+        App pacApp = new App() {
+            @Override
+            public String getPac() {
+                return "http://example.com/proxy.pac";
+            }
+        };
+
+        // When
+        ForwarderHeaders headers = ForwarderHeaders.of(pacApp);
+
+        // Then
+        assertThat(headers.getFields()).extracting(HttpField::getName).contains("TB-Tunnel-Pac");
+    }
+}
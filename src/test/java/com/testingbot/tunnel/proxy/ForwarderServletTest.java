@@ -0,0 +1,328 @@
+package com.testingbot.tunnel.proxy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.OpenMetrics;
+import com.testingbot.tunnel.Statistics;
+import com.testingbot.tunnel.WebDriverCommand;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ForwarderServletTest {
+
+    private Server hub;
+    private Server forwarder;
+    private ForwarderServlet servlet;
+    private App app;
+    private volatile String serverIP;
+    private volatile int sshPort;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (forwarder != null) {
+            forwarder.stop();
+        }
+        if (hub != null) {
+            hub.stop();
+        }
+    }
+
+    @Test
+    void sessionId_shouldBeTakenFromTheSessionPath() {
+        assertThat(ForwarderServlet.sessionId("/wd/hub/session/abc123/url")).isEqualTo("abc123");
+        assertThat(ForwarderServlet.sessionId("/session/abc123")).isEqualTo("abc123");
+        assertThat(ForwarderServlet.sessionId("/wd/hub/session/abc123/element/e1/click")).isEqualTo("abc123");
+    }
+
+    @Test
+    void sessionId_outsideOfASession_shouldBeNull() {
+        assertThat(ForwarderServlet.sessionId("/wd/hub/session")).isNull();
+        assertThat(ForwarderServlet.sessionId("/wd/hub/session/")).isNull();
+        assertThat(ForwarderServlet.sessionId("/wd/hub/status")).isNull();
+        assertThat(ForwarderServlet.sessionId(null)).isNull();
+    }
+
+    @Test
+    void commandsOfASession_shouldReuseOneConnectionToTheHub() throws Exception {
+        // Given: A hub answering with the client port of the connection it was reached on
+        int forwarderPort = startForwarder(startHub());
+
+        // When: Sending commands of two sessions
+        String first = get(forwarderPort, "/wd/hub/session/one/url");
+        String second = get(forwarderPort, "/wd/hub/session/one/title");
+        String third = get(forwarderPort, "/wd/hub/session/one/element");
+        String other = get(forwarderPort, "/wd/hub/session/two/url");
+
+        // Then: The commands of a session should share a kept-alive connection, and other sessions their own
+        assertThat(second).isEqualTo(first);
+        assertThat(third).isEqualTo(first);
+        assertThat(other).isNotEqualTo(first);
+
+        // And: The pools should be reported, once the connections are back in them
+        String text = awaitMetric("tunnel_forwarder_connections{state=\"idle\"} 2\n");
+        assertThat(text).contains("tunnel_forwarder_sessions 2\n");
+        assertThat(text).contains("tunnel_forwarder_connections{state=\"idle\"} 2\n");
+        assertThat(text).contains("tunnel_forwarder_saturated_total 0\n");
+
+        // And: The commands should be recognised
+        assertThat(text).contains("tunnel_webdriver_command_duration_seconds_count{command=\"get_current_url\"} ");
+        assertThat(text).contains("tunnel_webdriver_command_bytes_total{command=\"get_title\",direction=\"downstream\"} ");
+    }
+
+    @Test
+    void tunnelHeaders_shouldBeSentAndSwappedWhenTheServerChanges() throws Exception {
+        // Given: A tunnel on server 10.0.0.1
+        serverIP = "10.0.0.1";
+        int forwarderPort = startForwarder(startHub());
+
+        // When
+        HttpURLConnection before = open(forwarderPort, "/wd/hub/status");
+
+        // Then
+        assertThat(before.getHeaderField("X-Seen-TB-Tunnel")).isEqualTo("10.0.0.1");
+        assertThat(before.getHeaderField("X-Seen-TB-Credentials")).isEqualTo("test_key_test_secret");
+
+        // When: The tunnel moved to another server
+        serverIP = "10.0.0.2";
+        servlet.refreshHeaders();
+        HttpURLConnection after = open(forwarderPort, "/wd/hub/status");
+
+        // Then
+        assertThat(after.getHeaderField("X-Seen-TB-Tunnel")).isEqualTo("10.0.0.2");
+    }
+
+    @Test
+    void failover_shouldMoveNewCommandsToTheStandbyTunnel() throws Exception {
+        // Given: A tunnel on server 10.0.0.1 and a standby one on 10.0.0.2 with its own forward
+        serverIP = "10.0.0.1";
+        int forwarderPort = startForwarder(startHub());
+        int previousPort = sshPort;
+        Server previousHub = hub;
+        int standbyPort = startHub();
+        get(forwarderPort, "/wd/hub/session/one/url");
+
+        // When: Switching to the standby tunnel, the previous one is gone
+        serverIP = "10.0.0.2";
+        sshPort = standbyPort;
+        servlet.refreshHeaders();
+        previousHub.stop();
+        HttpURLConnection after = open(forwarderPort, "/wd/hub/session/one/title");
+
+        // Then: The command should reach the standby forward with its server IP, and the previous one drained
+        assertThat(after.getHeaderField("X-Seen-TB-Tunnel")).isEqualTo("10.0.0.2");
+        assertThat(servlet.getActiveRequests(previousPort)).isZero();
+    }
+
+    @Test
+    void largeBodies_withinTheLimits_shouldBeStreamedThrough() throws Exception {
+        // Given
+        int forwarderPort = startForwarder(startHub());
+
+        // When: Uploading a file and taking a large screenshot
+        HttpURLConnection upload = post(forwarderPort, "/wd/hub/session/one/se/file", new byte[3 * 1024 * 1024], false);
+        String screenshot = get(forwarderPort, "/wd/hub/session/one/screenshot/" + 5 * 1024 * 1024);
+
+        // Then
+        assertThat(upload.getResponseCode()).isEqualTo(200);
+        assertThat(new String(upload.getInputStream().readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(String.valueOf(3 * 1024 * 1024));
+        assertThat(screenshot).hasSize(5 * 1024 * 1024);
+
+        // And: The body sizes should be reported
+        ByteArrayOutputStream metrics = new ByteArrayOutputStream();
+        OpenMetrics.getInstance().writeTo(metrics);
+        String text = metrics.toString(StandardCharsets.UTF_8);
+        assertThat(text).contains("tunnel_forwarder_body_bytes_count{direction=\"upstream\"} ");
+        assertThat(text).contains("tunnel_forwarder_body_bytes_bucket{direction=\"downstream\",le=\"+Inf\"} ");
+    }
+
+    @Test
+    void chunkedCommand_shouldRecordTheBytesRead() throws Exception {
+        // Given
+        int forwarderPort = startForwarder(startHub());
+        long before = Statistics.getWebDriverBytes(WebDriverCommand.NAVIGATE_TO, Statistics.Direction.UPSTREAM);
+
+        // When: The body has no Content-Length
+        HttpURLConnection connection = post(forwarderPort, "/wd/hub/session/one/url", new byte[5000], true);
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+
+        // Then
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Statistics.getWebDriverBytes(WebDriverCommand.NAVIGATE_TO, Statistics.Direction.UPSTREAM) == before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(Statistics.getWebDriverBytes(WebDriverCommand.NAVIGATE_TO, Statistics.Direction.UPSTREAM) - before).isEqualTo(5000);
+    }
+
+    @Test
+    void webDriverError_shouldEscapeTheMessage() throws Exception {
+        // When
+        byte[] body = ForwarderServlet.webDriverError("invalid argument", "a \"quoted\" C:\\path\nand a new line");
+
+        // Then
+        JsonNode value = new ObjectMapper().readTree(body).get("value");
+        assertThat(value.get("error").asText()).isEqualTo("invalid argument");
+        assertThat(value.get("message").asText()).isEqualTo("a \"quoted\" C:\\path\nand a new line");
+        assertThat(value.get("stacktrace").asText()).isEmpty();
+    }
+
+    @Test
+    void requestOverTheLimit_shouldFailFastWithAWebDriverError() throws Exception {
+        // Given
+        int forwarderPort = startForwarder(startHub());
+        app.setMaxRequestSize(1024);
+
+        // When: The size is announced or the body is chunked
+        HttpURLConnection announced = post(forwarderPort, "/wd/hub/session/one/se/file", new byte[4096], false);
+        HttpURLConnection chunked = post(forwarderPort, "/wd/hub/session/one/se/file", new byte[4096], true);
+
+        // Then
+        for (HttpURLConnection connection : new HttpURLConnection[]{announced, chunked}) {
+            assertThat(connection.getResponseCode()).isEqualTo(400);
+            assertThat(connection.getContentType()).startsWith("application/json");
+            String body = new String(connection.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertThat(body).startsWith("{\"value\":{\"error\":\"invalid argument\"");
+            assertThat(body).contains("--max-request-size");
+        }
+    }
+
+    @Test
+    void responseOverTheLimit_shouldFailWithAWebDriverError() throws Exception {
+        // Given
+        int forwarderPort = startForwarder(startHub());
+        app.setMaxResponseSize(1024);
+
+        // When
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + forwarderPort + "/wd/hub/session/one/screenshot/4096").openConnection();
+
+        // Then
+        assertThat(connection.getResponseCode()).isEqualTo(500);
+        String body = new String(connection.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertThat(body).startsWith("{\"value\":{\"error\":\"unknown error\"");
+        assertThat(body).contains("--max-response-size");
+    }
+
+    private int startHub() throws Exception {
+        hub = new Server();
+        ServerConnector connector = new ServerConnector(hub);
+        connector.setPort(0);
+        hub.addConnector(connector);
+        hub.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                response.setStatus(200);
+                if ("POST".equals(request.getMethod())) {
+                    response.getWriter().print(request.getInputStream().readAllBytes().length);
+                    return;
+                }
+                if (target.contains("/screenshot/")) {
+                    byte[] body = new byte[Integer.parseInt(target.substring(target.lastIndexOf('/') + 1))];
+                    response.setContentLength(body.length);
+                    response.getOutputStream().write(body);
+                    return;
+                }
+                response.setHeader("X-Seen-TB-Tunnel", request.getHeader("TB-Tunnel"));
+                response.setHeader("X-Seen-TB-Credentials", request.getHeader("TB-Credentials"));
+                response.getWriter().print(request.getRemotePort());
+            }
+        });
+        hub.start();
+        return connector.getLocalPort();
+    }
+
+    private int startForwarder(int hubPort) throws Exception {
+        sshPort = hubPort;
+        app = new App() {
+            @Override
+            public int getSSHPort() {
+                return sshPort;
+            }
+
+            @Override
+            public String getServerIP() {
+                return serverIP;
+            }
+        };
+        app.setClientKey("test_key");
+        app.setClientSecret("test_secret");
+
+        forwarder = new Server();
+        ServerConnector connector = new ServerConnector(forwarder);
+        connector.setPort(0);
+        forwarder.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        servlet = new ForwarderServlet(app);
+        context.addServlet(new ServletHolder(servlet), "/*");
+        forwarder.setHandler(context);
+        forwarder.start();
+        return connector.getLocalPort();
+    }
+
+    private static HttpURLConnection open(int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        connection.getInputStream().readAllBytes();
+        connection.disconnect();
+        return connection;
+    }
+
+    private static HttpURLConnection post(int port, String path, byte[] body, boolean chunked) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        if (chunked) {
+            connection.setChunkedStreamingMode(1024);
+        } else {
+            connection.setFixedLengthStreamingMode(body.length);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return connection;
+    }
+
+    private static String get(int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertThat(connection.getResponseCode()).isEqualTo(200);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the metrics, as soon as they contain the sample or after a few seconds
+     */
+    private static String awaitMetric(String sample) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            ByteArrayOutputStream metrics = new ByteArrayOutputStream();
+            OpenMetrics.getInstance().writeTo(metrics);
+            String text = metrics.toString(StandardCharsets.UTF_8);
+            if (text.contains(sample) || System.currentTimeMillis() > deadline) {
+                return text;
+            }
+            Thread.sleep(20);
+        }
+    }
+}
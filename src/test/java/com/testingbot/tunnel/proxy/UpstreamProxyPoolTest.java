@@ -0,0 +1,113 @@
+package com.testingbot.tunnel.proxy;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for UpstreamProxyPool
+ */
+class UpstreamProxyPoolTest {
+
+    private ServerSocket proxy;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+    private UpstreamProxyPool pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        proxy = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(proxy.accept());
+                }
+            } catch (Exception ex) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (pool != null) {
+            pool.stop();
+        }
+        proxy.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void start_shouldOpenMinimumIdleConnections() throws Exception {
+        // When: Starting a pool of 3
+        pool = new UpstreamProxyPool("localhost", proxy.getLocalPort(), 3, 30000);
+        pool.start();
+
+        // Then: 3 connections should be opened to the proxy
+        waitFor(() -> pool.getIdleCount() == 3 && accepted.size() == 3);
+        assertThat(pool.getIdleCount()).isEqualTo(3);
+    }
+
+    @Test
+    void acquire_shouldHandOutConnectedChannelAndRefill() throws Exception {
+        // Given: A warm pool
+        pool = new UpstreamProxyPool("localhost", proxy.getLocalPort(), 2, 30000);
+        pool.start();
+        waitFor(() -> pool.getIdleCount() == 2);
+
+        // When: Taking a connection
+        SocketChannel channel = pool.acquire();
+
+        // Then: It should be usable and replaced in the background
+        assertThat(channel).isNotNull();
+        assertThat(channel.isConnected()).isTrue();
+        assertThat(channel.isBlocking()).isFalse();
+        assertThat(pool.getHits()).isEqualTo(1);
+        waitFor(() -> pool.getIdleCount() == 2 && accepted.size() == 3);
+        channel.close();
+    }
+
+    @Test
+    void acquire_shouldSkipConnectionsClosedByTheProxy() throws Exception {
+        // Given: A warm pool whose connection was dropped by the proxy
+        pool = new UpstreamProxyPool("localhost", proxy.getLocalPort(), 1, 30000);
+        pool.start();
+        waitFor(() -> pool.getIdleCount() == 1 && accepted.size() == 1);
+        accepted.get(0).close();
+        Thread.sleep(100);
+
+        // When: Taking a connection
+        SocketChannel channel = pool.acquire();
+
+        // Then: The dead connection should not be handed out
+        assertThat(channel).isNull();
+        assertThat(pool.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    void isProxyAddress_shouldMatchHostAndPort() {
+        pool = new UpstreamProxyPool("localhost", 3128, 1, 30000);
+
+        assertThat(pool.isProxyAddress(InetSocketAddress.createUnresolved("localhost", 3128))).isTrue();
+        assertThat(pool.isProxyAddress(InetSocketAddress.createUnresolved("localhost", 8080))).isFalse();
+        assertThat(pool.isProxyAddress(InetSocketAddress.createUnresolved("example.com", 3128))).isFalse();
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+}
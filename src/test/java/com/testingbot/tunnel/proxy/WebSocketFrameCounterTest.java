@@ -0,0 +1,85 @@
+package com.testingbot.tunnel.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for WebSocketFrameCounter
+ */
+class WebSocketFrameCounterTest {
+
+    @Test
+    void unmaskedFrames_shouldBeCounted() {
+        // Given: Two unmasked text frames of 5 and 2 bytes
+        ByteBuffer buffer = ByteBuffer.wrap(concat(frame(5, false), frame(2, false)));
+        WebSocketFrameCounter counter = new WebSocketFrameCounter();
+
+        // When
+        int frames = counter.onBytes(buffer, 0, buffer.limit());
+
+        // Then
+        assertThat(frames).isEqualTo(2);
+        assertThat(counter.getFrames()).isEqualTo(2);
+        assertThat(buffer.position()).isEqualTo(0);
+    }
+
+    @Test
+    void maskedFramesWithExtendedLengths_shouldBeCounted() {
+        // Given: A 16 bit and a 64 bit length, as sent by a browser
+        ByteBuffer buffer = ByteBuffer.wrap(concat(frame(300, true), frame(70000, true), frame(0, true)));
+        WebSocketFrameCounter counter = new WebSocketFrameCounter();
+
+        // When
+        int frames = counter.onBytes(buffer, 0, buffer.limit());
+
+        // Then
+        assertThat(frames).isEqualTo(3);
+    }
+
+    @Test
+    void framesSplitOverReads_shouldBeCountedOnce() {
+        // Given
+        byte[] stream = concat(frame(300, true), frame(1, false), frame(70000, false));
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        WebSocketFrameCounter counter = new WebSocketFrameCounter();
+
+        // When: The stream arrives one byte at a time
+        int frames = 0;
+        for (int i = 0; i < stream.length; i++) {
+            frames += counter.onBytes(buffer, i, i + 1);
+        }
+
+        // Then
+        assertThat(frames).isEqualTo(3);
+        assertThat(counter.getFrames()).isEqualTo(3);
+    }
+
+    private static byte[] frame(int length, boolean masked) {
+        int lengthBytes = length < 126 ? 0 : length <= 0xFFFF ? 2 : 8;
+        ByteBuffer frame = ByteBuffer.allocate(2 + lengthBytes + (masked ? 4 : 0) + length);
+        frame.put((byte) 0x82);
+        int maskBit = masked ? 0x80 : 0;
+        if (lengthBytes == 0) {
+            frame.put((byte) (maskBit | length));
+        } else if (lengthBytes == 2) {
+            frame.put((byte) (maskBit | 126)).putShort((short) length);
+        } else {
+            frame.put((byte) (maskBit | 127)).putLong(length);
+        }
+        if (masked) {
+            frame.putInt(0x11223344);
+        }
+        return frame.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer all = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(p -> p.length).sum());
+        for (byte[] part : parts) {
+            all.put(part);
+        }
+        return all.array();
+    }
+}
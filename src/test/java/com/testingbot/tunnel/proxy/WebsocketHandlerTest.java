@@ -0,0 +1,139 @@
+package com.testingbot.tunnel.proxy;
+
+import com.testingbot.tunnel.Statistics;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WebsocketHandlerTest {
+
+    private Server server;
+    private ServerSocket target;
+    private int proxyPort;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new WebsocketHandler());
+        server.start();
+        proxyPort = connector.getLocalPort();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.stop();
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    @Test
+    void upgrade_shouldRelayFramesSentWithTheHandshakeResponse() throws Exception {
+        // Given: A target sending a frame in the same write as its 101 response
+        CompletableFuture<String> upgradeRequest = startTarget("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n"
+            + "\u0081\u0002hi");
+        long framesBefore = Statistics.getWebSocketFrames(Statistics.Direction.DOWNSTREAM);
+
+        try (Socket client = new Socket("localhost", proxyPort)) {
+            client.setSoTimeout(5000);
+
+            // When: Upgrading through the proxy
+            String response = sendUpgrade(client, "/chat?room=1");
+
+            // Then: The handshake and the early frame should reach the browser
+            assertThat(response).startsWith("HTTP/1.1 101");
+            assertThat(response).contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+            assertThat(client.getInputStream().readNBytes(4)).containsExactly(0x81, 0x02, 'h', 'i');
+            assertThat(Statistics.getWebSocketFrames(Statistics.Direction.DOWNSTREAM)).isGreaterThan(framesBefore);
+
+            // And: Traffic should flow both ways
+            client.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+            assertThat(new String(client.getInputStream().readNBytes(4), StandardCharsets.US_ASCII)).isEqualTo("ping");
+        }
+
+        assertThat(upgradeRequest.get(5, TimeUnit.SECONDS)).startsWith("GET /chat?room=1 HTTP/1.1\r\n");
+    }
+
+    @Test
+    void upgrade_rejectedByTarget_shouldPassStatusOn() throws Exception {
+        // Given: A target refusing the upgrade
+        startTarget("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n");
+
+        try (Socket client = new Socket("localhost", proxyPort)) {
+            client.setSoTimeout(5000);
+
+            // When: Upgrading through the proxy
+            String response = sendUpgrade(client, "/chat");
+
+            // Then: The browser should see the target's status
+            assertThat(response).startsWith("HTTP/1.1 403");
+        }
+    }
+
+    private CompletableFuture<String> startTarget(String response) throws IOException {
+        target = new ServerSocket(0);
+        CompletableFuture<String> request = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try (Socket socket = target.accept()) {
+                request.complete(readHeaders(socket.getInputStream()));
+                OutputStream out = socket.getOutputStream();
+                out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } catch (Exception ex) {
+                request.completeExceptionally(ex);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return request;
+    }
+
+    private String sendUpgrade(Socket client, String path) throws IOException {
+        String authority = "localhost:" + target.getLocalPort();
+        String request = "GET http://" + authority + path + " HTTP/1.1\r\n"
+            + "Host: " + authority + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+        client.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        return readHeaders(client.getInputStream());
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            headers.write(b);
+            String text = headers.toString(StandardCharsets.ISO_8859_1);
+            if (text.endsWith("\r\n\r\n")) {
+                return text;
+            }
+        }
+        return headers.toString(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,41 @@
+package ssh;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BackoffTest {
+
+    @Test
+    void nextDelayMillis_shouldRetryAtOnceAndThenBackOffUpToTheCap() {
+        // Given: The largest jitter every time
+        Backoff backoff = new Backoff(1000, 30000, () -> 0.999999);
+
+        // When & Then
+        assertThat(backoff.nextDelayMillis()).isZero();
+        assertThat(backoff.nextDelayMillis()).isEqualTo(1000);
+        assertThat(backoff.nextDelayMillis()).isBetween(2990L, 3000L);
+        assertThat(backoff.nextDelayMillis()).isBetween(8900L, 9000L);
+        assertThat(backoff.nextDelayMillis()).isBetween(26000L, 27000L);
+        assertThat(backoff.nextDelayMillis()).isBetween(29900L, 30000L);
+        assertThat(backoff.nextDelayMillis()).isBetween(29900L, 30000L);
+
+        // When
+        backoff.reset();
+
+        // Then
+        assertThat(backoff.nextDelayMillis()).isZero();
+    }
+
+    @Test
+    void nextDelayMillis_shouldStayBetweenTheBaseAndTheCap() {
+        // Given
+        Backoff backoff = new Backoff(1000, 5000);
+        backoff.nextDelayMillis();
+
+        // When & Then
+        for (int i = 0; i < 1000; i++) {
+            assertThat(backoff.nextDelayMillis()).isBetween(1000L, 5000L);
+        }
+    }
+}
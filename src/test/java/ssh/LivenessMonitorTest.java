@@ -0,0 +1,116 @@
+package ssh;
+
+import com.testingbot.tunnel.LatencyHistogram;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LivenessMonitorTest {
+
+    private final AtomicLong now = new AtomicLong(1);
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private final CompletableFuture<String> dead = new CompletableFuture<>();
+
+    @Test
+    void check_shouldMeasureTheRoundTripAndStretchTheInterval() throws Exception {
+        // Given: A session which received nothing for the keep-alive interval
+        CountDownLatch keepAlives = new CountDownLatch(1);
+        LivenessMonitor monitor = new LivenessMonitor(keepAlives::countDown, dead::complete, roundTrips, now::get);
+        InputStream in = monitor.wrap(new ByteArrayInputStream(new byte[64]));
+        now.addAndGet(LivenessMonitor.MIN_INTERVAL_NANOS);
+
+        // When
+        monitor.check();
+
+        // Then: A keep-alive is sent
+        assertThat(keepAlives.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When: The reply arrives 40ms later
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+        in.read(new byte[16]);
+        monitor.check();
+
+        // Then
+        assertThat(roundTrips.getCount()).isEqualTo(1);
+        assertThat(roundTrips.getMax()).isBetween(TimeUnit.MILLISECONDS.toNanos(39), TimeUnit.MILLISECONDS.toNanos(41));
+        assertThat(monitor.getIntervalNanos()).isEqualTo(2 * LivenessMonitor.MIN_INTERVAL_NANOS);
+        assertThat(monitor.getTimeoutNanos()).isEqualTo(LivenessMonitor.MIN_TIMEOUT_NANOS);
+        assertThat(dead).isNotDone();
+    }
+
+    @Test
+    void check_withTraffic_shouldNotSendKeepAlives() throws Exception {
+        // Given
+        AtomicLong keepAlives = new AtomicLong();
+        LivenessMonitor monitor = new LivenessMonitor(keepAlives::incrementAndGet, dead::complete, roundTrips, now::get);
+        InputStream in = monitor.wrap(new ByteArrayInputStream(new byte[64]));
+
+        // When: Bytes arrive every second
+        for (int i = 0; i < 20; i++) {
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            in.read();
+            monitor.check();
+        }
+
+        // Then
+        assertThat(keepAlives.get()).isZero();
+        assertThat(dead).isNotDone();
+    }
+
+    @Test
+    void check_withoutReply_shouldReportTheSessionDeadOnce() throws Exception {
+        // Given: A keep-alive was sent
+        LivenessMonitor monitor = new LivenessMonitor(() -> { }, dead::complete, roundTrips, now::get);
+        now.addAndGet(LivenessMonitor.MIN_INTERVAL_NANOS);
+        monitor.check();
+
+        // When: No reply within the timeout
+        now.addAndGet(LivenessMonitor.MIN_TIMEOUT_NANOS - 1);
+        monitor.check();
+
+        // Then
+        assertThat(dead).isNotDone();
+
+        // When
+        now.addAndGet(2);
+        monitor.check();
+        monitor.lost("again");
+
+        // Then
+        assertThat(dead.get(1, TimeUnit.SECONDS)).startsWith("No reply to a keep-alive within 3000ms");
+        assertThat(roundTrips.getCount()).isZero();
+    }
+
+    @Test
+    void wrap_atEndOfStream_shouldReportTheSessionDead() throws Exception {
+        // Given
+        LivenessMonitor monitor = new LivenessMonitor(() -> { }, dead::complete, roundTrips, now::get);
+        InputStream in = monitor.wrap(new ByteArrayInputStream(new byte[0]));
+
+        // When
+        in.read(new byte[16]);
+
+        // Then
+        assertThat(dead.get(1, TimeUnit.SECONDS)).isEqualTo("Connection closed by the server");
+    }
+
+    @Test
+    void stop_shouldKeepAnIntentionalDisconnectQuiet() throws Exception {
+        // Given
+        LivenessMonitor monitor = new LivenessMonitor(() -> { }, dead::complete, roundTrips, now::get);
+        InputStream in = monitor.wrap(new ByteArrayInputStream(new byte[0]));
+
+        // When
+        monitor.stop();
+        in.read();
+
+        // Then
+        assertThat(dead).isNotDone();
+    }
+}
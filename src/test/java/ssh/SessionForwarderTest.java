@@ -0,0 +1,80 @@
+package ssh;
+
+import com.jcraft.jsch.ChannelDirectTCPIP;
+import com.jcraft.jsch.Session;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SessionForwarderTest {
+
+    @Test
+    void pick_shouldSkipSessionsWhichAreDown() {
+        // Given: Three sessions, of which the second is down and the third is still being opened
+        AtomicReferenceArray<Session> sessions = new AtomicReferenceArray<>(3);
+        sessions.set(0, session(true));
+        sessions.set(1, session(false));
+        SessionForwarder forwarder = new SessionForwarder(sessions, "hub.testingbot.com", 4444);
+
+        // When & Then
+        for (int i = 0; i < 5; i++) {
+            assertThat(forwarder.pick()).isEqualTo(0);
+        }
+
+        // When: No session is connected
+        sessions.set(0, session(false));
+
+        // Then
+        assertThat(forwarder.pick()).isEqualTo(-1);
+    }
+
+    @Test
+    void open_shouldSpreadConnectionsOverTheSessions() throws Exception {
+        // Given: Two connected sessions
+        AtomicReferenceArray<Session> sessions = new AtomicReferenceArray<>(2);
+        ChannelDirectTCPIP first = mock(ChannelDirectTCPIP.class);
+        ChannelDirectTCPIP second = mock(ChannelDirectTCPIP.class);
+        sessions.set(0, session(true));
+        sessions.set(1, session(true));
+        when(sessions.get(0).openChannel("direct-tcpip")).thenReturn(first);
+        when(sessions.get(1).openChannel("direct-tcpip")).thenReturn(second);
+        SessionForwarder forwarder = new SessionForwarder(sessions, "hub.testingbot.com", 4444);
+
+        try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+             Socket a = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket b = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            // When: Forwarding two connections
+            forwarder.open(server.accept());
+            forwarder.open(server.accept());
+
+            // Then: Each session should carry one of them
+            assertThat(forwarder.getOpenChannels(0)).isEqualTo(1);
+            assertThat(forwarder.getOpenChannels(1)).isEqualTo(1);
+            verify(first).setHost("hub.testingbot.com");
+            verify(first).setPort(4444);
+            verify(first).connect(anyInt());
+            verify(second).connect(anyInt());
+
+            // When: A connection is done
+            when(first.isClosed()).thenReturn(true);
+
+            // Then: The next one should go to its session
+            assertThat(forwarder.getOpenChannels(0)).isEqualTo(0);
+            assertThat(forwarder.pick()).isEqualTo(0);
+        }
+    }
+
+    private static Session session(boolean connected) {
+        Session session = mock(Session.class);
+        when(session.isConnected()).thenReturn(connected);
+        return session;
+    }
+}
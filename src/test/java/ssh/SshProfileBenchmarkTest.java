@@ -0,0 +1,109 @@
+package ssh;
+
+import com.jcraft.jsch.JSch;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the cost of the algorithms of the SSH profiles: the preferred cipher
+ * on full SSH packets, and the compression of text assets, with the time a
+ * text asset then needs on a thin link.
+ *
+ * There is no SSH server to run against in the build, so the ciphers are the
+ * JDK implementations JSch's jce ciphers delegate to (ChaCha20 from the JDK
+ * stands in for the Bouncy Castle one JSch loads when it is present).
+ *
+ * Only runs when asked for: mvn test -Dtest=SshProfileBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class SshProfileBenchmarkTest {
+
+    private static final int PACKET_BYTES = 32 * 1024;
+    private static final int TRANSFER_BYTES = 512 * 1024 * 1024;
+    private static final long THIN_LINK_BYTES_PER_SECOND = 10_000_000 / 8;
+
+    @Test
+    void profiles() throws Exception {
+        byte[] asset = textAsset(10 * 1024 * 1024);
+        for (SshProfile profile : SshProfile.values()) {
+            String ciphers = profile.getCiphers() == null ? JSch.getConfig("cipher.c2s") : profile.getCiphers();
+            String cipher = ciphers.split(",")[0];
+            measureCipher(cipher);
+            double cipherRate = measureCipher(cipher);
+
+            int level = profile.getCompression() != null && profile.getCompression().startsWith("zlib") ? 6 : 0;
+            long begin = System.nanoTime();
+            int compressed = level == 0 ? asset.length : compress(asset, level);
+            double compressSeconds = level == 0 ? 0 : (System.nanoTime() - begin) / 1e9;
+            double linkSeconds = Math.max(compressSeconds, (double) compressed / THIN_LINK_BYTES_PER_SECOND);
+
+            System.out.printf("%-14s %-30s %6.0f MB/s, 10 MB text asset: %5.1f MB on the wire, %5.1f s on 10 Mbit/s%n",
+                profile.getLabel(), cipher, cipherRate, compressed / (1024.0 * 1024), linkSeconds);
+            assertThat(cipherRate).isPositive();
+        }
+        measureCipher("chacha20-poly1305@openssh.com");
+        System.out.printf("%-14s %-30s %6.0f MB/s%n", "alternative", "chacha20-poly1305@openssh.com", measureCipher("chacha20-poly1305@openssh.com"));
+    }
+
+    private static double measureCipher(String name) throws Exception {
+        byte[] packet = new byte[PACKET_BYTES];
+        byte[] out = new byte[PACKET_BYTES + 16];
+        boolean chacha = name.startsWith("chacha20");
+        int keyLength = name.startsWith("aes256") || chacha ? 32 : 16;
+        SecretKeySpec key = new SecretKeySpec(new byte[keyLength], chacha ? "ChaCha20" : "AES");
+        Cipher cipher = Cipher.getInstance(chacha ? "ChaCha20-Poly1305" : name.contains("gcm") ? "AES/GCM/NoPadding" : "AES/CTR/NoPadding");
+        byte[] nonce = new byte[12];
+
+        long begin = System.nanoTime();
+        for (long sent = 0, sequence = 0; sent < TRANSFER_BYTES; sent += PACKET_BYTES, sequence++) {
+            // like SSH, every packet has its own nonce
+            nonce[8] = (byte) (sequence >>> 24);
+            nonce[9] = (byte) (sequence >>> 16);
+            nonce[10] = (byte) (sequence >>> 8);
+            nonce[11] = (byte) sequence;
+            if (chacha) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+            } else if (name.contains("gcm")) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+            } else if (sequence == 0) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+            }
+            if (chacha || name.contains("gcm")) {
+                cipher.doFinal(packet, 0, packet.length, out, 0);
+            } else {
+                cipher.update(packet, 0, packet.length, out, 0);
+            }
+        }
+        return TRANSFER_BYTES / ((System.nanoTime() - begin) / 1e9) / (1024 * 1024);
+    }
+
+    private static int compress(byte[] data, int level) {
+        Deflater deflater = new Deflater(level);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[PACKET_BYTES];
+        int total = 0;
+        while (!deflater.finished()) {
+            total += deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        }
+        deflater.end();
+        return total;
+    }
+
+    private static byte[] textAsset(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("<div class=\"row item-").append(i % 97).append("\"><span class=\"label\">Item ").append(i)
+                .append("</span><a href=\"/products/").append(i * 31 % 1000).append("\">Details</a></div>\n");
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
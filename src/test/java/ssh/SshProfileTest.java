@@ -0,0 +1,48 @@
+package ssh;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SshProfileTest {
+
+    @Test
+    void fromLabel_shouldFindTheProfile() {
+        assertThat(SshProfile.fromLabel("throughput")).isEqualTo(SshProfile.THROUGHPUT);
+        assertThat(SshProfile.fromLabel("Low-Bandwidth")).isEqualTo(SshProfile.LOW_BANDWIDTH);
+        assertThatThrownBy(() -> SshProfile.fromLabel("fast"))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("Unknown SSH profile");
+    }
+
+    @Test
+    void applyTo_shouldSetTheAlgorithmProposals() throws Exception {
+        // Given
+        Session session = new JSch().getSession("key", "localhost", 443);
+
+        // When
+        SshProfile.LOW_BANDWIDTH.applyTo(session);
+
+        // Then
+        assertThat(session.getConfig("cipher.c2s")).startsWith("aes128-gcm@openssh.com");
+        assertThat(session.getConfig("compression.s2c")).isEqualTo("zlib@openssh.com,zlib,none");
+        assertThat(session.getConfig("compression_level")).isEqualTo("6");
+    }
+
+    @Test
+    void defaultProfile_shouldKeepTheJSchDefaults() throws Exception {
+        // Given
+        Session session = new JSch().getSession("key", "localhost", 443);
+        String ciphers = session.getConfig("cipher.c2s");
+
+        // When
+        SshProfile.DEFAULT.applyTo(session);
+
+        // Then
+        assertThat(session.getConfig("cipher.c2s")).isEqualTo(ciphers);
+        assertThat(session.getConfig("compression.c2s")).isEqualTo("none");
+    }
+}
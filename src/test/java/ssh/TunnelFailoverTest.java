@@ -0,0 +1,155 @@
+package ssh;
+
+import com.testingbot.tunnel.Api;
+import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.HttpForwarder;
+import com.testingbot.tunnel.TunnelInfo;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for TunnelFailover
+ */
+class TunnelFailoverTest {
+
+    private App app;
+    private SSHTunnel current;
+    private Api currentApi;
+    private Api standbyApi;
+    private SSHTunnel standby;
+    private TunnelFailover failover;
+    private final CountDownLatch switched = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        app = mock(App.class);
+        current = mock(SSHTunnel.class);
+        currentApi = mock(Api.class);
+        standbyApi = mock(Api.class);
+        standby = mock(SSHTunnel.class);
+        when(app.getTunnel()).thenReturn(current);
+        when(app.getApi()).thenReturn(currentApi);
+        when(standby.isPortForwardingEstablished()).thenReturn(true);
+        // switchTunnel is synchronized, verifying it with a timeout would hold its lock
+        doAnswer(invocation -> {
+            switched.countDown();
+            return null;
+        }).when(app).switchTunnel(any(), any(), anyInt());
+        failover = new TunnelFailover(app, () -> standbyApi, (ip, localPort) -> standby);
+    }
+
+    @Test
+    void stop_whileTheStandbyIsBeingCreated_shouldDestroyItBeforeReturning() throws Exception {
+        // Given: The API is still creating the standby tunnel
+        CountDownLatch creating = new CountDownLatch(1);
+        CountDownLatch created = new CountDownLatch(1);
+        when(standbyApi.createTunnel()).thenAnswer(invocation -> {
+            creating.countDown();
+            created.await(5, TimeUnit.SECONDS);
+            return new TunnelInfo("2", "READY", "10.0.0.2", null, null);
+        });
+        failover.connectionLost(current);
+        assertThat(creating.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When: The tunnel is stopped, and the API answers afterwards
+        new Thread(() -> {
+            sleep(200);
+            created.countDown();
+        }).start();
+        failover.stop();
+
+        // Then
+        verify(standbyApi).destroyTunnel();
+        verify(standbyApi).close();
+        verify(app, never()).switchTunnel(any(), any(), anyInt());
+        assertThat(failover.isPending()).isFalse();
+    }
+
+    @Test
+    void stop_whileTheStandbyIsPolled_shouldDestroyIt() throws Exception {
+        // Given
+        when(standbyApi.createTunnel()).thenReturn(new TunnelInfo("2", "PENDING", null, null, null));
+        when(standbyApi.pollTunnel(anyString(), any(), anyInt())).thenReturn(new TunnelInfo("2", "PENDING", null, null, null));
+        failover.connectionLost(current);
+        verify(standbyApi, timeout(5000)).setTunnelID(2);
+
+        // When
+        failover.stop();
+
+        // Then
+        verify(standbyApi).destroyTunnel();
+        assertThat(failover.isPending()).isFalse();
+    }
+
+    @Test
+    void standby_whenTheTunnelCameBack_shouldBeDestroyed() throws Exception {
+        // Given: The tunnel comes back while the standby is created
+        when(standbyApi.createTunnel()).thenAnswer(invocation -> {
+            failover.connectionRestored(current);
+            return new TunnelInfo("2", "READY", "10.0.0.2", null, null);
+        });
+
+        // When
+        failover.connectionLost(current);
+
+        // Then
+        verify(standbyApi, timeout(5000)).destroyTunnel();
+        verify(app, never()).switchTunnel(any(), any(), anyInt());
+        verify(standby, never()).createPortForwarding();
+        verify(currentApi, never()).destroyTunnel();
+    }
+
+    @Test
+    void standby_whenReadyFirst_shouldReplaceTheTunnel() throws Exception {
+        // Given
+        when(standbyApi.createTunnel()).thenReturn(new TunnelInfo("2", "READY", "10.0.0.2", null, null));
+
+        // When
+        failover.connectionLost(current);
+
+        // Then: The previous tunnel has no commands running and is destroyed at once
+        assertThat(switched.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(app).switchTunnel(standby, standbyApi, 2);
+        verify(current, timeout(5000)).stop(true);
+        verify(currentApi, timeout(5000)).destroyTunnel();
+        verify(standbyApi, never()).destroyTunnel();
+        assertThat(failover.isPending()).isFalse();
+    }
+
+    @Test
+    void stop_whileThePreviousTunnelDrains_shouldDestroyIt() throws Exception {
+        // Given: A command still runs on the previous tunnel
+        HttpForwarder forwarder = mock(HttpForwarder.class);
+        when(app.getHttpForwarder()).thenReturn(forwarder);
+        when(current.getLocalPort()).thenReturn(5000);
+        when(forwarder.getActiveRequests(5000)).thenReturn(1L);
+        when(standbyApi.createTunnel()).thenReturn(new TunnelInfo("2", "READY", "10.0.0.2", null, null));
+        failover.connectionLost(current);
+        assertThat(switched.await(5, TimeUnit.SECONDS)).isTrue();
+        verify(app).switchTunnel(standby, standbyApi, 2);
+        verify(currentApi, never()).destroyTunnel();
+
+        // When
+        failover.stop();
+
+        // Then
+        verify(current).stop(true);
+        verify(currentApi).destroyTunnel();
+        verify(standbyApi, never()).destroyTunnel();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
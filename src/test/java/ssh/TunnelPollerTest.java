@@ -1,14 +1,16 @@
 package ssh;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.testingbot.tunnel.Api;
 import com.testingbot.tunnel.App;
+import com.testingbot.tunnel.TunnelInfo;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -19,21 +21,19 @@ class TunnelPollerTest {
 
     private App app;
     private Api api;
-    private ObjectMapper objectMapper;
 
     @BeforeEach
     void setUp() {
         app = mock(App.class);
         api = mock(Api.class);
         when(app.getApi()).thenReturn(api);
-        objectMapper = new ObjectMapper();
     }
 
     @Test
     void constructor_shouldStartPolling() throws Exception {
         // Given: API returns READY state
-        JsonNode readyResponse = objectMapper.readTree("{\"state\":\"READY\",\"tunnel_id\":\"123\"}");
-        when(api.pollTunnel(anyString())).thenReturn(readyResponse);
+        TunnelInfo readyResponse = new TunnelInfo("123", "READY", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(readyResponse);
 
         // When: Creating TunnelPoller
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
@@ -42,7 +42,7 @@ class TunnelPollerTest {
         assertThat(poller).isNotNull();
 
         // Wait for at least one poll
-        Thread.sleep(6000);
+        Thread.sleep(1500);
 
         // Clean up
         poller.cancel();
@@ -51,17 +51,17 @@ class TunnelPollerTest {
     @Test
     void pollTask_whenStateIsReady_shouldCallTunnelReady() throws Exception {
         // Given: API returns READY state
-        JsonNode readyResponse = objectMapper.readTree("{\"state\":\"READY\",\"tunnel_id\":\"123\"}");
-        when(api.pollTunnel(anyString())).thenReturn(readyResponse);
+        TunnelInfo readyResponse = new TunnelInfo("123", "READY", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(readyResponse);
 
         // When: Starting poller
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
 
         // Wait for poll to execute
-        Thread.sleep(6000);
+        Thread.sleep(1500);
 
         // Then: Should call tunnelReady
-        verify(app, atLeastOnce()).tunnelReady(any(JsonNode.class));
+        verify(app, atLeastOnce()).tunnelReady(any(TunnelInfo.class));
 
         // Clean up
         poller.cancel();
@@ -70,10 +70,10 @@ class TunnelPollerTest {
     @Test
     void pollTask_whenStateIsPending_shouldContinuePolling() throws Exception {
         // Given: API returns PENDING then READY
-        JsonNode pendingResponse = objectMapper.readTree("{\"state\":\"PENDING\",\"tunnel_id\":\"123\"}");
-        JsonNode readyResponse = objectMapper.readTree("{\"state\":\"READY\",\"tunnel_id\":\"123\"}");
+        TunnelInfo pendingResponse = new TunnelInfo("123", "PENDING", null, null, null);
+        TunnelInfo readyResponse = new TunnelInfo("123", "READY", null, null, null);
 
-        when(api.pollTunnel(anyString()))
+        when(api.pollTunnel(anyString(), any(), anyInt()))
             .thenReturn(pendingResponse)
             .thenReturn(pendingResponse)
             .thenReturn(readyResponse);
@@ -82,10 +82,10 @@ class TunnelPollerTest {
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
 
         // Wait for multiple polls
-        Thread.sleep(16000);
+        Thread.sleep(6000);
 
         // Then: Should eventually call tunnelReady
-        verify(app, atLeastOnce()).tunnelReady(any(JsonNode.class));
+        verify(app, atLeastOnce()).tunnelReady(any(TunnelInfo.class));
 
         // Clean up
         poller.cancel();
@@ -94,33 +94,33 @@ class TunnelPollerTest {
     @Test
     void cancel_shouldStopPolling() throws Exception {
         // Given: API returns PENDING state
-        JsonNode pendingResponse = objectMapper.readTree("{\"state\":\"PENDING\",\"tunnel_id\":\"123\"}");
-        when(api.pollTunnel(anyString())).thenReturn(pendingResponse);
+        TunnelInfo pendingResponse = new TunnelInfo("123", "PENDING", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(pendingResponse);
 
         // When: Creating and immediately canceling poller
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
         poller.cancel();
 
         // Wait to verify no more polling
-        Thread.sleep(6000);
+        Thread.sleep(1500);
 
         // Then: Should not call tunnelReady
-        verify(app, never()).tunnelReady(any(JsonNode.class));
+        verify(app, never()).tunnelReady(any(TunnelInfo.class));
     }
 
     @Test
     void pollTask_whenExceptionOccurs_shouldCancelPolling() throws Exception {
         // Given: API throws exception
-        when(api.pollTunnel(anyString())).thenThrow(new RuntimeException("API Error"));
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenThrow(new RuntimeException("API Error"));
 
         // When: Starting poller
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
 
         // Wait for poll to execute
-        Thread.sleep(6000);
+        Thread.sleep(1500);
 
         // Then: Should not call tunnelReady
-        verify(app, never()).tunnelReady(any(JsonNode.class));
+        verify(app, never()).tunnelReady(any(TunnelInfo.class));
 
         // Clean up
         poller.cancel();
@@ -129,8 +129,8 @@ class TunnelPollerTest {
     @Test
     void pollTask_shouldPassCorrectTunnelId() throws Exception {
         // Given: API returns READY state
-        JsonNode readyResponse = objectMapper.readTree("{\"state\":\"READY\",\"tunnel_id\":\"456\"}");
-        when(api.pollTunnel(anyString())).thenReturn(readyResponse);
+        TunnelInfo readyResponse = new TunnelInfo("456", "READY", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(readyResponse);
 
         String tunnelId = "tunnel456";
 
@@ -138,11 +138,11 @@ class TunnelPollerTest {
         TunnelPoller poller = new TunnelPoller(app, tunnelId);
 
         // Wait for poll
-        Thread.sleep(6000);
+        Thread.sleep(1500);
 
         // Then: Should poll with correct tunnel ID
         ArgumentCaptor<String> tunnelIdCaptor = ArgumentCaptor.forClass(String.class);
-        verify(api, atLeastOnce()).pollTunnel(tunnelIdCaptor.capture());
+        verify(api, atLeastOnce()).pollTunnel(tunnelIdCaptor.capture(), any(), anyInt());
         assertThat(tunnelIdCaptor.getValue()).isEqualTo(tunnelId);
 
         // Clean up
@@ -152,11 +152,11 @@ class TunnelPollerTest {
     @Test
     void pollTask_withDifferentStates_shouldHandleAll() throws Exception {
         // Given: API returns various states
-        JsonNode initializingResponse = objectMapper.readTree("{\"state\":\"INITIALIZING\",\"tunnel_id\":\"123\"}");
-        JsonNode connectingResponse = objectMapper.readTree("{\"state\":\"CONNECTING\",\"tunnel_id\":\"123\"}");
-        JsonNode readyResponse = objectMapper.readTree("{\"state\":\"READY\",\"tunnel_id\":\"123\"}");
+        TunnelInfo initializingResponse = new TunnelInfo("123", "INITIALIZING", null, null, null);
+        TunnelInfo connectingResponse = new TunnelInfo("123", "CONNECTING", null, null, null);
+        TunnelInfo readyResponse = new TunnelInfo("123", "READY", null, null, null);
 
-        when(api.pollTunnel(anyString()))
+        when(api.pollTunnel(anyString(), any(), anyInt()))
             .thenReturn(initializingResponse)
             .thenReturn(connectingResponse)
             .thenReturn(readyResponse);
@@ -165,31 +165,91 @@ class TunnelPollerTest {
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
 
         // Wait for polls
-        Thread.sleep(16000);
+        Thread.sleep(6000);
 
         // Then: Should eventually reach READY and call tunnelReady
-        verify(app, atLeastOnce()).tunnelReady(any(JsonNode.class));
+        verify(app, atLeastOnce()).tunnelReady(any(TunnelInfo.class));
 
         // Clean up
         poller.cancel();
     }
 
     @Test
-    void pollTask_shouldPollEvery5Seconds() throws Exception {
+    void pollTask_shouldPollSoonAndKeepPolling() throws Exception {
         // Given: API returns PENDING state
-        JsonNode pendingResponse = objectMapper.readTree("{\"state\":\"PENDING\",\"tunnel_id\":\"123\"}");
-        when(api.pollTunnel(anyString())).thenReturn(pendingResponse);
+        TunnelInfo pendingResponse = new TunnelInfo("123", "PENDING", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(pendingResponse);
 
         // When: Starting poller
         TunnelPoller poller = new TunnelPoller(app, "tunnel123");
 
         // Wait for multiple poll cycles
-        Thread.sleep(16000);
+        Thread.sleep(6000);
 
-        // Then: Should have polled multiple times (at least 2-3 times in 16 seconds)
-        verify(api, atLeast(2)).pollTunnel(anyString());
+        // Then: Should have polled multiple times, the delays are capped at 2 seconds
+        verify(api, atLeast(3)).pollTunnel(anyString(), any(), anyInt());
 
         // Clean up
         poller.cancel();
     }
+
+    @Test
+    void pollTask_shouldPassThePreviousAnswer() throws Exception {
+        // Given: The API answers STARTING, then READY
+        TunnelInfo startingResponse = new TunnelInfo("123", "STARTING", null, null, null);
+        TunnelInfo readyResponse = new TunnelInfo("123", "READY", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt()))
+            .thenReturn(startingResponse)
+            .thenReturn(readyResponse);
+        TunnelPoller.Listener listener = mock(TunnelPoller.Listener.class);
+
+        // When
+        TunnelPoller poller = new TunnelPoller(api, "tunnel123", listener, new Backoff(10, 10), 60000);
+
+        // Then: The second poll is conditional on the first answer
+        verify(listener, timeout(2000)).tunnelReady(readyResponse);
+        verify(api).pollTunnel("tunnel123", null, TunnelPoller.WAIT_SECONDS);
+        verify(api).pollTunnel("tunnel123", startingResponse, TunnelPoller.WAIT_SECONDS);
+        poller.cancel();
+    }
+
+    @Test
+    void pollTask_whenNotReadyInTime_shouldReportFailure() throws Exception {
+        // Given: The tunnel never gets ready
+        TunnelInfo pendingResponse = new TunnelInfo("123", "PENDING", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(pendingResponse);
+        TunnelPoller.Listener listener = mock(TunnelPoller.Listener.class);
+
+        // When
+        new TunnelPoller(api, "tunnel123", listener, new Backoff(10, 10), 200);
+
+        // Then
+        verify(listener, timeout(2000)).pollingFailed(anyString());
+        verify(listener, never()).tunnelReady(any(TunnelInfo.class));
+    }
+
+    @Test
+    void heldPoll_shouldNotHoldUpTheOtherPollers() throws Exception {
+        // Given: The API holds the polls of one tunnel
+        Api held = mock(Api.class);
+        CountDownLatch release = new CountDownLatch(1);
+        when(held.pollTunnel(anyString(), any(), anyInt())).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return new TunnelInfo("1", "PENDING", null, null, null);
+        });
+        TunnelInfo readyResponse = new TunnelInfo("2", "READY", null, null, null);
+        when(api.pollTunnel(anyString(), any(), anyInt())).thenReturn(readyResponse);
+        TunnelPoller.Listener listener = mock(TunnelPoller.Listener.class);
+        TunnelPoller holding = new TunnelPoller(held, "1", mock(TunnelPoller.Listener.class), new Backoff(10, 10), 60000);
+        verify(held, timeout(2000)).pollTunnel(anyString(), any(), anyInt());
+
+        // When
+        TunnelPoller standby = new TunnelPoller(api, "2", listener, new Backoff(10, 10), 60000);
+
+        // Then
+        verify(listener, timeout(1000)).tunnelReady(readyResponse);
+        holding.cancel();
+        standby.cancel();
+        release.countDown();
+    }
 }